@@ -0,0 +1,157 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Synthetic benchmark fixtures: Git repositories with many tags, POM trees, large POMs. Created on local disk under
+ * {@code target/benchmark} (see {@code benchmark.dir}).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+class Fixtures {
+
+	/**
+	 * Fixtures are given old timestamps, so that caches do not consider them racy (see {@link PomScanner#RACY_MILLIS}).
+	 */
+	static final long TIMESTAMP = System.currentTimeMillis() - 3600 * 1000;
+
+	static File newDirectory(String name) throws IOException {
+		File dir = new File(System.getProperty("benchmark.dir", "target/benchmark"),
+								  String.format("%s-%d", name, System.nanoTime())).getAbsoluteFile();
+		FileUtils.forceMkdir(dir);
+		return dir;
+	}
+
+	static void delete(File dir) {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	///
+
+	/**
+	 * Creates repository with a single commit, tagged {@code 1.0.0} (release tag) and {@code build-1} (build tag), and
+	 * given number of other tags pointing elsewhere, all in {@code packed-refs}.
+	 *
+	 * @return id of the tagged commit
+	 */
+	static String createGitRepository(File dir, int tags) throws IOException {
+		git(dir, "init", "-q");
+		git(dir, "-c", "user.name=benchmark", "-c", "user.email=benchmark@localhost",
+			 "commit", "-q", "--allow-empty", "-m", "benchmark");
+		String commit = git(dir, "rev-parse", "HEAD").trim();
+
+		List<String> refs = new ArrayList<String>(tags + 2);
+		refs.add(String.format("%s refs/tags/1.0.0", commit));
+		refs.add(String.format("%s refs/tags/build-1", commit));
+		for (int i = 0; i < tags; i++) {
+			refs.add(String.format("%040x refs/tags/0.%d", i + 1, i));
+		}
+		Collections.sort(refs, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return o1.substring(41).compareTo(o2.substring(41));
+			}
+		});
+		refs.add(0, "# pack-refs with: peeled fully-peeled sorted ");
+		File packed = new File(dir, ".git/packed-refs");
+		FileUtils.writeLines(packed, "UTF-8", refs, "\n");
+		packed.setLastModified(TIMESTAMP);
+		return commit;
+	}
+
+	static String git(File dir, String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add("git");
+		Collections.addAll(command, args);
+		Process p = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+		InputStream in = p.getInputStream();
+		try {
+			String out = IOUtils.toString(in, "UTF-8");
+			if (p.waitFor() != 0) {
+				throw new IOException(command + ": " + out);
+			}
+			return out;
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	///
+
+	/**
+	 * Creates tree of given number of module directories (fan-out 10), each with {@code pom.xml} and a source file
+	 * (in {@code src/}, which discovery is expected to skip).
+	 */
+	static void createPomTree(File root, int dirs) throws IOException {
+		Queue<File> queue = new LinkedList<File>();
+		queue.add(root);
+		int created = 1;
+		List<File> all = new ArrayList<File>();
+		while (!queue.isEmpty()) {
+			File dir = queue.poll();
+			all.add(dir);
+			createPom(new File(dir, PomScanner.POM_FNAME), 2, false);
+			File src = new File(dir, "src/main/java/example");
+			FileUtils.forceMkdir(src);
+			FileUtils.writeStringToFile(new File(src, "Example.java"), "class Example {}\n", "UTF-8");
+			for (int i = 0; i < 10 && created < dirs; i++, created++) {
+				File sub = new File(dir, "module" + i);
+				FileUtils.forceMkdir(sub);
+				queue.add(sub);
+			}
+		}
+		// children first: creating entries updates parent mtime
+		Collections.reverse(all);
+		for (File dir : all) {
+			new File(dir, "src/main/java/example").setLastModified(TIMESTAMP);
+			new File(dir, "src/main/java").setLastModified(TIMESTAMP);
+			new File(dir, "src/main").setLastModified(TIMESTAMP);
+			new File(dir, "src").setLastModified(TIMESTAMP);
+			dir.setLastModified(TIMESTAMP);
+		}
+	}
+
+	/**
+	 * Creates POM with given number of dependencies.
+	 *
+	 * @param comment whether to put a comment into version element (which rules out byte-level rewrite)
+	 */
+	static File createPom(File file, int dependencies, boolean comment) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n");
+		sb.append("\t<modelVersion>4.0.0</modelVersion>\n");
+		sb.append("\t<parent>\n\t\t<groupId>example</groupId>\n\t\t<artifactId>parent</artifactId>\n");
+		sb.append("\t\t<version>local-SNAPSHOT</version>\n\t</parent>\n");
+		sb.append("\t<artifactId>").append(file.getParentFile().getName()).append("</artifactId>\n");
+		sb.append("\t<version>local-SNAPSHOT").append(comment ? "<!-- computed by build -->" : "").append("</version>\n");
+		sb.append("\t<dependencies>\n");
+		for (int i = 0; i < dependencies; i++) {
+			sb.append("\t\t<!-- dependency ").append(i).append(" -->\n");
+			sb.append("\t\t<dependency>\n");
+			sb.append("\t\t\t<groupId>example.group").append(i % 100).append("</groupId>\n");
+			sb.append("\t\t\t<artifactId>artifact").append(i).append("</artifactId>\n");
+			sb.append("\t\t\t<version>${project.version}</version>\n");
+			sb.append("\t\t</dependency>\n");
+		}
+		sb.append("\t</dependencies>\n");
+		sb.append("</project>\n");
+		FileUtils.writeStringToFile(file, sb.toString(), "UTF-8");
+		file.setLastModified(TIMESTAMP);
+		return file;
+	}
+}
@@ -0,0 +1,75 @@
+package org.jrevolt.build;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MavenExtension#detectReleaseTag} in a repository with given number of packed tags: with the tag index cached
+ * (repeated builds in one JVM), and with {@code packed-refs} changed before every call (index rebuilt).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GitBenchmark {
+
+	@Param({"10", "10000", "100000"})
+	int tags;
+
+	final MavenExtension extension = new MavenExtension();
+	File dir;
+	File packedRefs;
+	GitRepository git;
+	String commit;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Fixtures.newDirectory("git");
+		commit = Fixtures.createGitRepository(dir, tags);
+		packedRefs = new File(dir, ".git/packed-refs");
+		git = GitRepository.find(dir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(dir);
+	}
+
+	/**
+	 * Changes {@code packed-refs} timestamp, which invalidates cached tag index.
+	 */
+	@State(Scope.Thread)
+	public static class Stale {
+
+		long counter;
+
+		@Setup(Level.Invocation)
+		public void touch(GitBenchmark benchmark) {
+			benchmark.packedRefs.setLastModified(Fixtures.TIMESTAMP + (++counter % 2) * 1000);
+		}
+	}
+
+	@Benchmark
+	public String detectReleaseTag() {
+		return extension.detectReleaseTag(git, commit);
+	}
+
+	@Benchmark
+	public String detectReleaseTagUncached(Stale stale) {
+		return extension.detectReleaseTag(git, commit);
+	}
+}
@@ -0,0 +1,70 @@
+package org.jrevolt.build;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MavenExtension#findPoms} on a tree of given number of module directories: full parallel scan (empty index),
+ * and validation of a persistent index saved by a previous build.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PomScanBenchmark {
+
+	@Param({"10", "1000", "10000"})
+	int dirs;
+
+	final MavenExtension extension = new MavenExtension();
+	File dir;
+	File indexFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Fixtures.newDirectory("poms");
+		File root = new File(dir, "root");
+		Fixtures.createPomTree(root, dirs);
+		indexFile = new File(dir, "pom-index");
+		PomScanner scanner = newScanner();
+		PomIndex index = PomIndex.load(indexFile, root, scanner.getKey());
+		index.findPoms(scanner);
+		index.save(scanner);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(dir);
+	}
+
+	PomScanner newScanner() {
+		return new PomScanner(new File(dir, "root")).ignore(PomScanner.DEFAULT_IGNORES);
+	}
+
+	@Benchmark
+	public List<File> findPoms() {
+		PomScanner scanner = newScanner();
+		return extension.findPoms(scanner, new PomIndex(indexFile, new File(dir, "root"), scanner.getKey()));
+	}
+
+	@Benchmark
+	public List<File> findPomsIndexed() {
+		PomScanner scanner = newScanner();
+		return extension.findPoms(scanner, PomIndex.load(indexFile, new File(dir, "root"), scanner.getKey()));
+	}
+}
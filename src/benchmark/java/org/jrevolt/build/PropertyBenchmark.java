@@ -0,0 +1,61 @@
+package org.jrevolt.build;
+
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MavenExtension#getProperty} lookups: user property, missing property with a default, and missing property
+ * without a default. Lookup falls through user properties, session system properties and JVM system properties to the
+ * default; nothing is published anywhere.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PropertyBenchmark {
+
+	final MavenExtension extension = new MavenExtension();
+	MavenSession session;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		MavenExecutionRequest request = new DefaultMavenExecutionRequest();
+		Properties user = new Properties();
+		user.setProperty(MavenExtension.P_SCAN, "modules");
+		request.setUserProperties(user);
+		Properties system = new Properties();
+		system.putAll(System.getProperties());
+		request.setSystemProperties(system);
+		session = new MavenSession(null, null, request, new DefaultMavenExecutionResult());
+	}
+
+	@Benchmark
+	public String getUserProperty() {
+		return extension.getProperty(session, MavenExtension.P_SCAN, "disk");
+	}
+
+	@Benchmark
+	public String getDefault() {
+		return extension.getProperty(session, MavenExtension.P_SCAN_THREADS, "4");
+	}
+
+	@Benchmark
+	public String getMissing() {
+		return extension.getProperty(session, MavenExtension.P_TYPE);
+	}
+}
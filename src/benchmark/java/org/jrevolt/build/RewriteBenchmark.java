@@ -0,0 +1,72 @@
+package org.jrevolt.build;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MavenExtension#rewritePOM} (rewritten temp file plus journal record) of a small (5 dependencies) and a large
+ * (20k dependencies, some 3 MB) POM, by byte-level patching and by the StAX fallback (forced by a comment inside
+ * version element).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RewriteBenchmark {
+
+	@Param({"small", "large"})
+	String size;
+
+	@Param({"patch", "stax"})
+	String rewriter;
+
+	final MavenExtension extension = new MavenExtension();
+	File dir;
+	File pom;
+	PomIndex index;
+	Map<File, String> versions;
+	RewriteJournal journal;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Fixtures.newDirectory("rewrite");
+		File module = new File(dir, "module");
+		module.mkdirs();
+		pom = Fixtures.createPom(new File(module, PomScanner.POM_FNAME), size.equals("small") ? 5 : 20000,
+										  rewriter.equals("stax"));
+		index = new PomIndex(new File(dir, "pom-index"), dir, "");
+		index.get(pom);
+		versions = WorkspaceRepositories.assign(Collections.singletonList(pom), "develop-SNAPSHOT");
+		// never committed nor leased: not visible to other sessions
+		journal = new RewriteJournal(new File(dir, "benchmark.journal"), "benchmark");
+		journal.root = dir;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Fixtures.delete(dir);
+	}
+
+	@Benchmark
+	public RewriteJournal rewritePOM() {
+		journal.records.clear();
+		extension.rewritePOM(null, pom, index, journal, "local-SNAPSHOT", versions);
+		return journal;
+	}
+}
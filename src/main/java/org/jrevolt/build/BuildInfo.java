@@ -0,0 +1,167 @@
+package org.jrevolt.build;
+
+import static org.jrevolt.build.MavenExtension.P_BRANCH;
+import static org.jrevolt.build.MavenExtension.P_BRANCH_SIMPLE;
+import static org.jrevolt.build.MavenExtension.P_BUILD_COUNTER;
+import static org.jrevolt.build.MavenExtension.P_BUILD_ID;
+import static org.jrevolt.build.MavenExtension.P_COMMIT;
+import static org.jrevolt.build.MavenExtension.P_COMMIT_SIMPLE;
+import static org.jrevolt.build.MavenExtension.P_TAG;
+import static org.jrevolt.build.MavenExtension.P_TC_BUILDNUM;
+import static org.jrevolt.build.MavenExtension.P_TYPE;
+import static org.jrevolt.build.MavenExtension.P_VERSION;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Build metadata of one session, as computed by {@link MavenExtension}: the {@code build.*} values and the project
+ * version. Immutable; available to other components through {@link BuildInfoRegistry}.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public final class BuildInfo {
+
+	private final Map<String, String> properties;
+	private final String projectVersion;
+
+	/**
+	 * @param properties     {@code build.*} values; {@code null} values (unknown metadata) are left out
+	 * @param projectVersion version assigned to reactor projects
+	 */
+	public BuildInfo(Map<String, String> properties, String projectVersion) {
+		Map<String, String> copy = new TreeMap<String, String>();
+		for (Map.Entry<String, String> e : properties.entrySet()) {
+			if (e.getValue() != null) {
+				copy.put(e.getKey(), e.getValue());
+			}
+		}
+		this.properties = Collections.unmodifiableMap(copy);
+		this.projectVersion = projectVersion;
+	}
+
+	/**
+	 * @return {@code build.*} values, sorted by name
+	 */
+	public Map<String, String> getProperties() {
+		return properties;
+	}
+
+	public String get(String name) {
+		return properties.get(name);
+	}
+
+	public String getBuildId() {
+		return get(P_BUILD_ID);
+	}
+
+	public String getBuildCounter() {
+		return get(P_BUILD_COUNTER);
+	}
+
+	public String getBuildNumber() {
+		return get(P_TC_BUILDNUM);
+	}
+
+	public String getCommit() {
+		return get(P_COMMIT);
+	}
+
+	public String getCommitSimple() {
+		return get(P_COMMIT_SIMPLE);
+	}
+
+	public String getBranch() {
+		return get(P_BRANCH);
+	}
+
+	public String getBranchSimple() {
+		return get(P_BRANCH_SIMPLE);
+	}
+
+	public String getTag() {
+		return get(P_TAG);
+	}
+
+	public String getType() {
+		return get(P_TYPE);
+	}
+
+	public boolean isRelease() {
+		return MavenExtension.BuildType.RELEASE.name().equals(getType());
+	}
+
+	public String getVersion() {
+		return get(P_VERSION);
+	}
+
+	public String getProjectVersion() {
+		return projectVersion;
+	}
+
+	/**
+	 * Content of {@code build-info.properties} of given project: {@code build.*} values and project coordinates, in a
+	 * stable order and without a timestamp, so that it only changes when the values do.
+	 */
+	public String toPropertiesFile(String groupId, String artifactId, String version) {
+		Map<String, String> all = new TreeMap<String, String>(properties);
+		all.put("project.groupId", groupId);
+		all.put("project.artifactId", artifactId);
+		all.put("project.version", version);
+		StringBuilder sb = new StringBuilder("# generated by MavenExtension\n");
+		for (Map.Entry<String, String> e : all.entrySet()) {
+			sb.append(escape(e.getKey(), true)).append('=').append(escape(e.getValue(), false)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Escapes key or value like {@link java.util.Properties#store(java.io.OutputStream, String)} does.
+	 */
+	static String escape(String s, boolean key) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\f':
+					sb.append("\\f");
+					break;
+				case ' ':
+					sb.append((i == 0 || key) ? "\\ " : " ");
+					break;
+				case '=':
+				case ':':
+				case '#':
+				case '!':
+					sb.append('\\').append(c);
+					break;
+				default:
+					if (c < 0x20 || c > 0x7e) {
+						sb.append(String.format("\\u%04X", (int) c));
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, project.version=%s", properties, projectVersion);
+	}
+}
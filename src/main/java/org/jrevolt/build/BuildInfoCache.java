@@ -0,0 +1,153 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of build metadata (commit, branch, tag, build type) computed by {@link MavenExtension}, so that repeated builds
+ * of the same checkout skip Git detection. Entries are keyed by {@link GitRepository#getStateStamp()} and user
+ * supplied overrides, therefore any checkout, commit or tag change simply misses.
+ * <p/>
+ * Recently used entries are kept in memory for the life of the JVM (which helps long-lived Maven daemons) and in a
+ * small file in the cache directory.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class BuildInfoCache {
+
+	static private final String FORMAT = "MavenExtension.BuildInfoCache.1";
+
+	static private final int MAX_ENTRIES = 32;
+
+	static private final Map<File, BuildInfoCache> cache = new HashMap<File, BuildInfoCache>();
+
+	/**
+	 * Returns cache backed by given file, loading it only once per JVM.
+	 */
+	static public BuildInfoCache forFile(File file) {
+		synchronized (cache) {
+			BuildInfoCache c = cache.get(file);
+			if (c == null) {
+				c = new BuildInfoCache(file);
+				c.load();
+				cache.put(file, c);
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * Builds cache key of given repository state and property overrides ({@code null} values are fine).
+	 */
+	static public String key(String state, String... overrides) {
+		StringBuilder sb = new StringBuilder(state);
+		for (String s : overrides) {
+			sb.append('\n').append(s != null ? s : "\u0000");
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			return GitRepository.toHex(md.digest(sb.toString().getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new UnsupportedOperationException(e);
+		} catch (IOException e) {
+			throw new UnsupportedOperationException(e);
+		}
+	}
+
+	final File file;
+	final Map<String, Map<String, String>> entries = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true);
+
+	BuildInfoCache(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return cached metadata (property name to value), or {@code null} if there is no entry for the key
+	 */
+	public synchronized Map<String, String> get(String key) {
+		Map<String, String> values = entries.get(key);
+		return (values != null) ? Collections.unmodifiableMap(values) : null;
+	}
+
+	/**
+	 * Stores metadata under given key and saves the cache file. {@code null} values are not stored (and read back as
+	 * {@code null}).
+	 */
+	public synchronized void put(String key, Map<String, String> values) {
+		Map<String, String> copy = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> e : values.entrySet()) {
+			if (e.getValue() == null) {
+				continue;
+			}
+			if (e.getValue().matches(".*[\t\n\r].*")) {
+				return; // not representable, do not cache at all
+			}
+			copy.put(e.getKey(), e.getValue());
+		}
+		entries.put(key, copy);
+		while (entries.size() > MAX_ENTRIES) {
+			entries.remove(entries.keySet().iterator().next());
+		}
+		save();
+	}
+
+	///
+
+	private void load() {
+		if (!file.isFile()) {
+			return;
+		}
+		try {
+			List<String> lines = FileUtils.readLines(file, "UTF-8");
+			if (lines.isEmpty() || !lines.get(0).equals(FORMAT)) {
+				MavenExtension.debug("Build info cache %s is outdated, ignoring", file);
+				return;
+			}
+			for (String line : lines.subList(1, lines.size())) {
+				String[] t = line.split("\t");
+				Map<String, String> values = new LinkedHashMap<String, String>();
+				for (int i = 1; i < t.length; i++) {
+					int eq = t[i].indexOf('=');
+					values.put(t[i].substring(0, eq), t[i].substring(eq + 1));
+				}
+				entries.put(t[0], values);
+			}
+		} catch (Exception e) {
+			MavenExtension.debug("Cannot read build info cache %s: %s", file, e);
+			entries.clear();
+		}
+	}
+
+	private void save() {
+		List<String> lines = new ArrayList<String>(entries.size() + 1);
+		lines.add(FORMAT);
+		for (Map.Entry<String, Map<String, String>> e : entries.entrySet()) {
+			StringBuilder sb = new StringBuilder(e.getKey());
+			for (Map.Entry<String, String> v : e.getValue().entrySet()) {
+				sb.append('\t').append(v.getKey()).append('=').append(v.getValue());
+			}
+			lines.add(sb.toString());
+		}
+		File tmp = null;
+		try {
+			// concurrent builds of the same workspace must not clash on the temp file
+			tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			FileUtils.writeLines(tmp, "UTF-8", lines, "\n");
+			RewriteJournal.move(tmp, file);
+		} catch (IOException e) {
+			MavenExtension.debug("Cannot write build info cache %s: %s", file, e);
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package org.jrevolt.build;
+
+import org.apache.maven.execution.MavenSession;
+import org.codehaus.plexus.component.annotations.Component;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Gives other components access to {@link BuildInfo} of a session, without reading {@code build.*} properties:
+ * <pre>
+ * &#64;Requirement
+ * BuildInfoRegistry registry;
+ * ...
+ * BuildInfo info = registry.get(session);
+ * </pre>
+ * Sessions are held weakly, so that long-lived Maven processes do not accumulate them.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+@Component(role = BuildInfoRegistry.class)
+public class BuildInfoRegistry {
+
+	private final Map<MavenSession, BuildInfo> infos = Collections.synchronizedMap(new WeakHashMap<MavenSession, BuildInfo>());
+
+	/**
+	 * @return build metadata of given session, or {@code null} if the extension is disabled for it
+	 */
+	public BuildInfo get(MavenSession session) {
+		return infos.get(session);
+	}
+
+	void register(MavenSession session, BuildInfo info) {
+		infos.put(session, info);
+	}
+}
@@ -0,0 +1,440 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.ArtifactUtils;
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.io.xpp3.MavenXpp3Writer;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local content-addressed cache of build outputs: the output directory ({@code target/classes}), main artifact and
+ * attached artifacts of successfully built projects, keyed by project inputs. A project whose key is found in the cache
+ * gets its outputs restored and is removed from the reactor; downstream projects use the restored artifacts.
+ * <p/>
+ * Key of a project covers:
+ * <ul>
+ * <li>content of all files in its base directory, except for the build directory, nested projects, hidden files and
+ * the POM itself</li>
+ * <li>its effective model, with the base directory and versions of the project (final name included), its parent and
+ * its reactor dependencies masked, so that a version stamped by {@link MavenExtension} does not matter</li>
+ * <li>keys of its upstream reactor projects</li>
+ * <li>Java version and user properties (except {@code build.*} and {@code MavenExtension.*})</li>
+ * </ul>
+ * Entries are directories named by the key, published by an atomic rename. Least recently used entries are evicted
+ * when the session ends, once the cache exceeds its size limit.
+ * <p/>
+ * Note that restored artifacts are the previous build's output as is: the project version recorded in them (e.g.
+ * {@code META-INF/maven/.../pom.properties} or {@code Implementation-Version} of the manifest) is the version of the
+ * build that stored them, not the current one.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class BuildOutputCache {
+
+	static private final String MANIFEST = "manifest.properties";
+	static private final String FILES = "files";
+	static private final String TEMP = ".tmp-";
+
+	final File dir;
+	final long maxSize;
+	final Map<MavenProject, String> keys = Collections.synchronizedMap(new IdentityHashMap<MavenProject, String>());
+
+	final AtomicInteger hits = new AtomicInteger();
+	final AtomicInteger misses = new AtomicInteger();
+	final AtomicInteger stored = new AtomicInteger();
+	final AtomicInteger evicted = new AtomicInteger();
+	final AtomicLong size = new AtomicLong();
+	final AtomicInteger entries = new AtomicInteger();
+
+	/**
+	 * @param maxSize size limit in bytes
+	 */
+	public BuildOutputCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return key computed by {@link #computeKeys}, or {@code null} if the project is not cached
+	 */
+	public String getKey(MavenProject project) {
+		return keys.get(project);
+	}
+
+	/**
+	 * Computes keys of given projects. Inputs of the projects are hashed concurrently.
+	 *
+	 * @param projects    projects, in build order
+	 * @param upstream    direct upstream projects of each project
+	 * @param environment user properties
+	 */
+	public void computeKeys(List<MavenProject> projects, Map<MavenProject, List<MavenProject>> upstream,
+									Properties environment, int threads) {
+		final Set<File> basedirs = new HashSet<File>();
+		final Set<String> reactor = new HashSet<String>();
+		for (MavenProject p : projects) {
+			basedirs.add(p.getBasedir().getAbsoluteFile());
+			reactor.add(ArtifactUtils.versionlessKey(p.getGroupId(), p.getArtifactId()));
+		}
+		List<String> env = new ArrayList<String>();
+		env.add("java.version=" + System.getProperty("java.version"));
+		for (String name : environment.stringPropertyNames()) {
+			if (!name.startsWith("build.") && !name.startsWith(MavenExtension.P_ENABLE)) {
+				env.add(name + "=" + environment.getProperty(name));
+			}
+		}
+		Collections.sort(env);
+		final String envKey = BuildInfoCache.key("env", env.toArray(new String[env.size()]));
+
+		final Map<MavenProject, String> inputs = Collections.synchronizedMap(new IdentityHashMap<MavenProject, String>());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Runnable> tasks = new ArrayList<Runnable>(projects.size());
+			for (final MavenProject p : projects) {
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							inputs.put(p, BuildInfoCache.key(envKey, hashModel(p, reactor), hashFiles(p, basedirs)));
+						} catch (IOException e) {
+							MavenExtension.debug("%s: %s. Project will not be cached", p.getId(), e);
+						}
+					}
+				});
+			}
+			MavenExtension.runAll(executor, tasks);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (MavenProject p : projects) {
+			String input = inputs.get(p);
+			if (input == null) {
+				continue;
+			}
+			List<String> parts = new ArrayList<String>();
+			for (MavenProject u : upstream.get(p)) {
+				String key = keys.get(u);
+				if (key == null) {
+					input = null; // upstream is not cacheable, neither is this one
+					break;
+				}
+				parts.add(key);
+			}
+			if (input != null) {
+				Collections.sort(parts);
+				keys.put(p, BuildInfoCache.key(input, parts.toArray(new String[parts.size()])));
+			}
+		}
+	}
+
+	/**
+	 * Restores outputs of the project, if cached: copies them into the build directory and sets the project's main and
+	 * attached artifacts.
+	 *
+	 * @return whether the project has been restored
+	 */
+	public boolean restore(MavenProject project, MavenProjectHelper helper) {
+		String key = keys.get(project);
+		File entry = (key != null) ? new File(dir, key) : null;
+		if (entry == null || !new File(entry, MANIFEST).isFile()) {
+			misses.incrementAndGet();
+			return false;
+		}
+		try {
+			Properties manifest = load(new File(entry, MANIFEST));
+			File build = new File(project.getBuild().getDirectory());
+			File files = new File(entry, FILES);
+			if (files.isDirectory()) {
+				FileUtils.copyDirectory(files, build);
+			}
+			String artifact = manifest.getProperty("artifact");
+			if (artifact != null) {
+				project.getArtifact().setFile(new File(build, artifact));
+			}
+			for (int i = 0; manifest.getProperty("attached." + i) != null; i++) {
+				String[] a = manifest.getProperty("attached." + i).split(":", 3);
+				helper.attachArtifact(project, a[0], a[1].isEmpty() ? null : a[1], new File(build, a[2]));
+			}
+			entry.setLastModified(System.currentTimeMillis());
+			hits.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			MavenExtension.log("Cannot restore %s from build cache: %s", project.getId(), e);
+			misses.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Stores outputs of successfully built project. Projects not packaged in this build (and projects with outputs
+	 * outside of the build directory) are not stored.
+	 */
+	public void store(MavenProject project) {
+		String key = keys.remove(project);
+		if (key == null || new File(dir, key).exists()) {
+			return;
+		}
+		File build = new File(project.getBuild().getDirectory()).getAbsoluteFile();
+		Properties manifest = new Properties();
+		List<String> paths = new ArrayList<String>();
+
+		File output = new File(project.getBuild().getOutputDirectory()).getAbsoluteFile();
+		if (output.isDirectory()) {
+			String path = relativize(build, output);
+			if (path == null) {
+				return;
+			}
+			paths.add(path);
+		}
+		File artifact = project.getArtifact().getFile();
+		if (artifact != null) {
+			String path = relativize(build, artifact.getAbsoluteFile());
+			if (path == null || !artifact.isFile()) {
+				return;
+			}
+			manifest.setProperty("artifact", path);
+			paths.add(path);
+		} else if (!"pom".equals(project.getPackaging())) {
+			return; // not packaged
+		}
+		int i = 0;
+		for (Artifact a : project.getAttachedArtifacts()) {
+			String path = (a.getFile() != null) ? relativize(build, a.getFile().getAbsoluteFile()) : null;
+			if (path == null || !a.getFile().isFile()) {
+				return;
+			}
+			manifest.setProperty("attached." + i++, String.format("%s:%s:%s", a.getType(),
+																						 (a.getClassifier() != null) ? a.getClassifier() : "", path));
+			paths.add(path);
+		}
+
+		File tmp = new File(dir, key + TEMP + UUID.randomUUID());
+		try {
+			File files = new File(tmp, FILES);
+			for (String path : paths) {
+				File src = new File(build, path);
+				if (src.isDirectory()) {
+					FileUtils.copyDirectory(src, new File(files, path));
+				} else {
+					FileUtils.copyFile(src, new File(files, path));
+				}
+			}
+			long bytes = files.exists() ? FileUtils.sizeOfDirectory(files) : 0;
+			manifest.setProperty("project", project.getId());
+			manifest.setProperty("size", Long.toString(bytes));
+			save(manifest, new File(tmp, MANIFEST));
+			if (tmp.renameTo(new File(dir, key))) {
+				stored.incrementAndGet();
+			}
+		} catch (IOException e) {
+			MavenExtension.log("Cannot store %s in build cache: %s", project.getId(), e);
+		} finally {
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+
+	/**
+	 * Deletes least recently used entries until the cache fits into its size limit, and abandoned temp directories.
+	 */
+	public void evict() {
+		File[] list = dir.listFiles();
+		if (list == null) {
+			return;
+		}
+		List<File> all = new ArrayList<File>();
+		long stale = System.currentTimeMillis() - 3600 * 1000;
+		for (File f : list) {
+			if (f.getName().contains(TEMP)) {
+				if (f.lastModified() < stale) {
+					FileUtils.deleteQuietly(f);
+				}
+			} else if (f.isDirectory()) {
+				all.add(f);
+			}
+		}
+		final Map<File, Long> modified = new IdentityHashMap<File, Long>();
+		for (File f : all) {
+			modified.put(f, f.lastModified());
+		}
+		Collections.sort(all, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return modified.get(o2).compareTo(modified.get(o1));
+			}
+		});
+		long total = 0;
+		int count = 0;
+		for (File f : all) {
+			long bytes;
+			try {
+				bytes = Long.parseLong(load(new File(f, MANIFEST)).getProperty("size", "0"));
+			} catch (Exception e) {
+				bytes = -1; // incomplete or foreign, drop it
+			}
+			if (bytes < 0 || total + bytes > maxSize) {
+				FileUtils.deleteQuietly(f);
+				evicted.incrementAndGet();
+			} else {
+				total += bytes;
+				count++;
+			}
+		}
+		size.set(total);
+		entries.set(count);
+	}
+
+	/**
+	 * Summary of hits, misses, stored and evicted entries, and of the cache size (as of the last {@link #evict}).
+	 */
+	public String getStatistics() {
+		int h = hits.get();
+		int m = misses.get();
+		return String.format("%d hit(s), %d miss(es) (%d%% hit rate), %d stored, %d evicted; %d entries, %.1f of %.1f MB",
+									h, m, (h + m > 0) ? h * 100 / (h + m) : 0, stored.get(), evicted.get(), entries.get(),
+									size.get() / 1048576.0, maxSize / 1048576.0);
+	}
+
+	///
+
+	/**
+	 * @param reactor {@code groupId:artifactId} of reactor projects; versions of dependencies on these are masked (their
+	 *                content is covered by keys of upstream projects)
+	 */
+	static String hashModel(MavenProject project, Set<String> reactor) throws IOException {
+		Model model = project.getModel().clone();
+		model.setVersion(null);
+		if (model.getParent() != null) {
+			model.getParent().setVersion(null);
+		}
+		Build build = model.getBuild();
+		if (build != null && build.getFinalName() != null) {
+			// defaults to ${project.artifactId}-${project.version}
+			build.setFinalName(build.getFinalName().replace(project.getVersion(), "${project.version}"));
+		}
+		maskVersions(model.getDependencies(), reactor);
+		if (model.getDependencyManagement() != null) {
+			maskVersions(model.getDependencyManagement().getDependencies(), reactor);
+		}
+		StringWriter out = new StringWriter();
+		new MavenXpp3Writer().write(out, model);
+		String xml = out.toString().replace(project.getBasedir().getAbsolutePath(), "${basedir}");
+		return BuildInfoCache.key("model", xml);
+	}
+
+	static private void maskVersions(List<Dependency> dependencies, Set<String> reactor) {
+		for (Dependency d : dependencies) {
+			if (reactor.contains(ArtifactUtils.versionlessKey(d.getGroupId(), d.getArtifactId()))) {
+				d.setVersion(null);
+			}
+		}
+	}
+
+	static String hashFiles(MavenProject project, Set<File> basedirs) throws IOException {
+		File basedir = project.getBasedir().getAbsoluteFile();
+		Set<File> excluded = new HashSet<File>(basedirs);
+		excluded.remove(basedir);
+		excluded.add(new File(project.getBuild().getDirectory()).getAbsoluteFile());
+		excluded.add(project.getFile().getAbsoluteFile());
+
+		List<String> hashes = new ArrayList<String>();
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new UnsupportedOperationException(e);
+		}
+		hashFiles(basedir, "", excluded, md, new byte[65536], hashes);
+		return BuildInfoCache.key("files", hashes.toArray(new String[hashes.size()]));
+	}
+
+	static private void hashFiles(File dir, String prefix, Set<File> excluded, MessageDigest md, byte[] buf,
+											List<String> hashes) throws IOException {
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			File f = new File(dir, name);
+			if (name.startsWith(".") || name.endsWith(RewriteJournal.TEMP_SUFFIX) || excluded.contains(f)) {
+				continue;
+			}
+			if (f.isDirectory()) {
+				hashFiles(f, prefix + name + "/", excluded, md, buf, hashes);
+				continue;
+			}
+			InputStream in = new FileInputStream(f);
+			try {
+				for (int n; (n = in.read(buf)) > 0; ) {
+					md.update(buf, 0, n);
+				}
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+			hashes.add(prefix + name + " " + GitRepository.toHex(md.digest()));
+		}
+	}
+
+	static private String relativize(File base, File f) {
+		String prefix = base.getPath() + File.separator;
+		return f.getPath().startsWith(prefix) ? f.getPath().substring(prefix.length()).replace(File.separatorChar, '/') : null;
+	}
+
+	static private Properties load(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		try {
+			Properties p = new Properties();
+			p.load(in);
+			return p;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	static private void save(Properties p, File f) throws IOException {
+		f.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(f);
+		try {
+			p.store(out, null);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return dir.toString();
+	}
+}
@@ -0,0 +1,340 @@
+package org.jrevolt.build;
+
+import org.apache.maven.execution.AbstractExecutionListener;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.WriterFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records start and end times of every project and mojo execution, and reports them when the session ends: as a
+ * Chrome trace event file (open in {@code chrome://tracing} or Perfetto), as a table of the slowest mojo executions,
+ * and as TeamCity {@code buildStatisticValue} service messages (total time per plugin goal).
+ * <p/>
+ * Registered as an observer (see {@link MavenExecutionListener#addObserver}). Events are appended to preallocated
+ * parallel arrays (time, kind, thread, subject), so recording allocates nothing but the occasional array growth;
+ * intervals are paired up only at the end. If async dispatch dropped events (see
+ * {@link MavenExecutionListener.Event#getDroppedEvents}), the trace is marked incomplete and mojo statistics are not
+ * reported.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class BuildTimer extends AbstractExecutionListener {
+
+	static private final byte PROJECT_START = 1;
+	static private final byte PROJECT_END = 2;
+	static private final byte MOJO_START = 3;
+	static private final byte MOJO_END = 4;
+
+	final File traceFile;
+	final int top;
+	final long origin = System.nanoTime();
+	long end;
+	long dropped; // events lost on async queue overflow: intervals are not reliable
+
+	// trace track by thread id (see #trackName())
+	final Map<Long, Integer> threads = new ConcurrentHashMap<Long, Integer>();
+	final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+
+	// event buffer
+	int size;
+	long[] times;
+	byte[] kinds;
+	int[] tids;
+	MavenProject[] projects;
+	MojoExecution[] mojos;
+
+	/**
+	 * @param traceFile Chrome trace output file; {@code null} to skip
+	 * @param top       number of slowest mojo executions to report
+	 * @param capacity  initial event buffer capacity (grows as needed)
+	 */
+	public BuildTimer(File traceFile, int top, int capacity) {
+		this.traceFile = traceFile;
+		this.top = top;
+		capacity = Math.max(16, capacity);
+		times = new long[capacity];
+		kinds = new byte[capacity];
+		tids = new int[capacity];
+		projects = new MavenProject[capacity];
+		mojos = new MojoExecution[capacity];
+	}
+
+	///
+
+	@Override
+	public void projectStarted(ExecutionEvent event) {
+		record(event, PROJECT_START);
+	}
+
+	@Override
+	public void projectSucceeded(ExecutionEvent event) {
+		record(event, PROJECT_END);
+	}
+
+	@Override
+	public void projectFailed(ExecutionEvent event) {
+		record(event, PROJECT_END);
+	}
+
+	@Override
+	public void mojoStarted(ExecutionEvent event) {
+		record(event, MOJO_START);
+	}
+
+	@Override
+	public void mojoSucceeded(ExecutionEvent event) {
+		record(event, MOJO_END);
+	}
+
+	@Override
+	public void mojoFailed(ExecutionEvent event) {
+		record(event, MOJO_END);
+	}
+
+	@Override
+	public void sessionEnded(ExecutionEvent event) {
+		end = time(event);
+		if (event instanceof MavenExecutionListener.Event) {
+			dropped = ((MavenExecutionListener.Event) event).getDroppedEvents();
+		}
+		report();
+	}
+
+	private long time(ExecutionEvent event) {
+		return (event instanceof MavenExecutionListener.Event)
+				? ((MavenExecutionListener.Event) event).getNanoTime()
+				: System.nanoTime();
+	}
+
+	private int tid(ExecutionEvent event) {
+		boolean copy = (event instanceof MavenExecutionListener.Event);
+		long id = copy ? ((MavenExecutionListener.Event) event).getThreadId() : Thread.currentThread().getId();
+		Integer tid = threads.get(id);
+		if (tid == null) {
+			synchronized (threadNames) {
+				tid = threads.get(id);
+				if (tid == null) {
+					tid = threadNames.size();
+					threadNames.add(trackName(id, copy ? ((MavenExecutionListener.Event) event).getThread()
+															  : Thread.currentThread().getName()));
+					threads.put(id, tid);
+				}
+			}
+		}
+		return tid;
+	}
+
+	/**
+	 * Maven's parallel builder renames its threads after the project being built ({@code mvn-builder-<artifactId>}),
+	 * which would mislabel the track for every other project built on the thread; these are named by thread id.
+	 */
+	static String trackName(long id, String name) {
+		return name.startsWith("mvn-builder-") ? "mvn-builder-" + id : name;
+	}
+
+	private void record(ExecutionEvent event, byte kind) {
+		long time = time(event);
+		int tid = tid(event);
+		synchronized (this) {
+			if (size == times.length) {
+				int capacity = size * 2;
+				times = Arrays.copyOf(times, capacity);
+				kinds = Arrays.copyOf(kinds, capacity);
+				tids = Arrays.copyOf(tids, capacity);
+				projects = Arrays.copyOf(projects, capacity);
+				mojos = Arrays.copyOf(mojos, capacity);
+			}
+			times[size] = time;
+			kinds[size] = kind;
+			tids[size] = tid;
+			projects[size] = event.getProject();
+			mojos[size] = event.getMojoExecution();
+			size++;
+		}
+	}
+
+	///
+
+	/**
+	 * Completed project or mojo execution.
+	 */
+	static class Interval {
+
+		final MavenProject project;
+		final MojoExecution mojo;
+		final int tid;
+		final long start;
+		long end = -1;
+
+		Interval(MavenProject project, MojoExecution mojo, int tid, long start) {
+			this.project = project;
+			this.mojo = mojo;
+			this.tid = tid;
+			this.start = start;
+		}
+
+		long duration() {
+			return end - start;
+		}
+
+		String getName() {
+			return (mojo != null)
+					? String.format("%s:%s (%s)", mojo.getArtifactId(), mojo.getGoal(), mojo.getExecutionId())
+					: project.getArtifactId();
+		}
+
+		String getGoal() {
+			return String.format("%s:%s", mojo.getArtifactId(), mojo.getGoal());
+		}
+	}
+
+	/**
+	 * Pairs recorded start/end events (on the same thread) into intervals. Unfinished intervals end with the session.
+	 */
+	synchronized List<Interval> getIntervals() {
+		List<Interval> intervals = new ArrayList<Interval>(size / 2);
+		Map<Integer, LinkedList<Interval>> stacks = new LinkedHashMap<Integer, LinkedList<Interval>>();
+		for (int i = 0; i < size; i++) {
+			LinkedList<Interval> stack = stacks.get(tids[i]);
+			if (stack == null) {
+				stack = new LinkedList<Interval>();
+				stacks.put(tids[i], stack);
+			}
+			boolean mojo = (kinds[i] == MOJO_START || kinds[i] == MOJO_END);
+			if (kinds[i] == PROJECT_START || kinds[i] == MOJO_START) {
+				Interval interval = new Interval(projects[i], mojo ? mojos[i] : null, tids[i], times[i]);
+				stack.push(interval);
+				intervals.add(interval);
+				continue;
+			}
+			// close innermost matching interval
+			for (Interval open : stack) {
+				if (open.project == projects[i] && (open.mojo != null) == mojo && (!mojo || open.mojo == mojos[i])) {
+					open.end = times[i];
+					stack.remove(open);
+					break;
+				}
+			}
+		}
+		for (Interval interval : intervals) {
+			if (interval.end < 0) {
+				interval.end = end;
+			}
+		}
+		return intervals;
+	}
+
+	void report() {
+		List<Interval> intervals = getIntervals();
+		if (traceFile != null) {
+			try {
+				writeTrace(traceFile, intervals);
+				MavenExtension.log("Build trace: %s", traceFile);
+			} catch (IOException e) {
+				MavenExtension.log("Cannot write build trace %s: %s", traceFile, e);
+			}
+		}
+
+		if (dropped > 0) {
+			// unmatched starts would last until the session end: made-up durations
+			MavenExtension.log("Build timing incomplete, %d event(s) dropped (increase %s); not reporting mojo statistics",
+									 dropped, MavenExtension.P_EVENTS_QUEUE);
+			MavenExtension.log("##teamcity[buildStatisticValue key='MavenExtension.session' value='%d']",
+									 (end - origin) / 1000000);
+			return;
+		}
+
+		List<Interval> mojos = new ArrayList<Interval>();
+		Map<String, Long> byGoal = new LinkedHashMap<String, Long>();
+		for (Interval i : intervals) {
+			if (i.mojo == null) {
+				continue;
+			}
+			mojos.add(i);
+			Long total = byGoal.get(i.getGoal());
+			byGoal.put(i.getGoal(), (total != null ? total : 0) + i.duration());
+		}
+		Collections.sort(mojos, new Comparator<Interval>() {
+			@Override
+			public int compare(Interval o1, Interval o2) {
+				return Long.valueOf(o2.duration()).compareTo(o1.duration());
+			}
+		});
+
+		MavenExtension.log("Slowest mojo executions (of %d):", mojos.size());
+		for (Interval i : mojos.subList(0, Math.min(top, mojos.size()))) {
+			MavenExtension.log("%10.3f s  %-50s @ %s", i.duration() / 1e9, i.getName(), i.project.getArtifactId());
+		}
+
+		// this is for teamcity; it will chart these as build statistics
+		for (Map.Entry<String, Long> e : byGoal.entrySet()) {
+			MavenExtension.log("##teamcity[buildStatisticValue key='%s' value='%d']",
+									 escape("MavenExtension.mojo." + e.getKey()), e.getValue() / 1000000);
+		}
+		MavenExtension.log("##teamcity[buildStatisticValue key='MavenExtension.session' value='%d']",
+								 (end - origin) / 1000000);
+	}
+
+	void writeTrace(File file, List<Interval> intervals) throws IOException {
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		Writer w = WriterFactory.newWriter(file, "UTF-8");
+		try {
+			w.write(String.format("{\"displayTimeUnit\":\"ms\",\"otherData\":{\"droppedEvents\":%d,\"complete\":%s},"
+											 + "\"traceEvents\":[\n", dropped, dropped == 0));
+			synchronized (threadNames) {
+				for (int tid = 0; tid < threadNames.size(); tid++) {
+					w.write(String.format("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}},\n",
+												 tid, json(threadNames.get(tid))));
+				}
+			}
+			for (Interval i : intervals) {
+				w.write(String.format("{\"ph\":\"X\",\"cat\":\"%s\",\"name\":\"%s\",\"pid\":1,\"tid\":%d,\"ts\":%d,\"dur\":%d,\"args\":{\"project\":\"%s\"}},\n",
+											 i.mojo != null ? "mojo" : "project", json(i.getName()), i.tid,
+											 (i.start - origin) / 1000, i.duration() / 1000, json(i.project.getId())));
+			}
+			w.write(String.format("{\"ph\":\"X\",\"cat\":\"session\",\"name\":\"session\",\"pid\":1,\"tid\":0,\"ts\":0,\"dur\":%d}\n",
+										 (end - origin) / 1000));
+			w.write("]}\n");
+		} finally {
+			IOUtil.close(w);
+		}
+	}
+
+	static private String json(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * TeamCity service message value escaping.
+	 */
+	static String escape(String s) {
+		return s.replace("|", "||").replace("'", "|'").replace("[", "|[").replace("]", "|]")
+				.replace("\n", "|n").replace("\r", "|r");
+	}
+}
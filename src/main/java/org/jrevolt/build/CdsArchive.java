@@ -0,0 +1,103 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Dynamic AppCDS archive of a forked JVM (JDK 13+): the first run dumps classes it loaded into the archive
+ * ({@code -XX:ArchiveClassesAtExit}), later runs map the archive ({@code -XX:SharedArchiveFile}) and skip most of class
+ * loading, parsing and verification.
+ * <p/>
+ * Archive is dumped into a temp file which replaces the archive only when the dumping JVM has exited, so concurrent
+ * first runs never see (or map) a partially written archive. JVM verifies the archive against its own version, options
+ * and classpath, and silently ignores an archive that does not match.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class CdsArchive {
+
+	static private final Pattern JAVA_VERSION = Pattern.compile("JAVA_VERSION=\"(1\\.)?(\\d+).*\"");
+
+	/**
+	 * Reads feature version of the Java installation from its {@code release} file.
+	 *
+	 * @return version (e.g. 8, 17), or 0 if unknown
+	 */
+	static public int getJavaVersion(File javaHome) {
+		File release = new File(javaHome, "release");
+		try {
+			if (release.isFile()) {
+				for (String line : FileUtils.readLines(release, "UTF-8")) {
+					Matcher m = JAVA_VERSION.matcher(line);
+					if (m.matches()) {
+						return Integer.parseInt(m.group(2));
+					}
+				}
+			}
+		} catch (IOException ignore) {
+		}
+		return 0;
+	}
+
+	/**
+	 * @return whether JVM of given feature version supports dynamic archives
+	 */
+	static public boolean isSupported(int javaVersion) {
+		return javaVersion >= 13;
+	}
+
+	final File file;
+	File dump;
+
+	public CdsArchive(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return JVM options that map the archive, or dump a new one if there is none yet
+	 */
+	public List<String> getJvmArgs() throws IOException {
+		// unusable archive is reported as a warning on stdout; it is an optimization, keep the output clean
+		String quiet = "-Xlog:cds=off,cds+dynamic=off";
+		if (file.isFile()) {
+			return Arrays.asList(quiet, "-XX:SharedArchiveFile=" + file.getPath());
+		}
+		FileUtils.forceMkdir(file.getParentFile());
+		dump = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		dump.delete();
+		return Arrays.asList(quiet, "-XX:ArchiveClassesAtExit=" + dump.getPath());
+	}
+
+	/**
+	 * Publishes archive dumped by the JVM which has just exited (if any).
+	 *
+	 * @param success whether the JVM exited normally; archive of a failed run is discarded
+	 * @return whether a new archive has been created
+	 */
+	public boolean finish(boolean success) throws IOException {
+		if (dump == null) {
+			return false;
+		}
+		try {
+			if (success && dump.isFile() && dump.length() > 0) {
+				RewriteJournal.move(dump, file);
+				return true;
+			}
+			return false;
+		} finally {
+			FileUtils.deleteQuietly(dump);
+			dump = null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of runtime classpaths resolved by {@link RunMojo}, keyed by {@code groupId:artifactId:version:packaging} of the
+ * main artifact (with SNAPSHOT versions resolved to their timestamped form, so that a newly deployed snapshot simply
+ * misses).
+ * <p/>
+ * The cache file lives in the local repository it describes. Entries store paths relative to the repository (except
+ * for files outside of it), and an entry is only valid as long as all its files exist.
+ * <p/>
+ * Used by the mojo (in plugin class realm), so it reports problems to the caller rather than through
+ * {@link MavenExtension#log}.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class ClasspathCache {
+
+	static private final String FORMAT = "MavenExtension.ClasspathCache.1";
+
+	static private final int MAX_ENTRIES = 256;
+
+	static private final Map<File, ClasspathCache> cache = new HashMap<File, ClasspathCache>();
+
+	/**
+	 * Returns cache of given local repository, loading it only once per JVM.
+	 */
+	static public ClasspathCache forRepository(File basedir) {
+		synchronized (cache) {
+			ClasspathCache c = cache.get(basedir);
+			if (c == null) {
+				c = new ClasspathCache(basedir, new File(basedir, ".MavenExtension/run-classpath"));
+				c.load();
+				cache.put(basedir, c);
+			}
+			return c;
+		}
+	}
+
+	final File basedir;
+	final File file;
+	final Map<String, List<String>> entries = new LinkedHashMap<String, List<String>>(16, 0.75f, true);
+
+	ClasspathCache(File basedir, File file) {
+		this.basedir = basedir;
+		this.file = file;
+	}
+
+	/**
+	 * @return cached classpath, or {@code null} if there is no entry for the key or any of its files is missing
+	 */
+	public synchronized List<File> get(String key) {
+		List<String> paths = entries.get(key);
+		if (paths == null) {
+			return null;
+		}
+		List<File> files = new ArrayList<File>(paths.size());
+		for (String path : paths) {
+			File f = new File(path);
+			f = f.isAbsolute() ? f : new File(basedir, path);
+			if (!f.exists()) {
+				return null; // stale
+			}
+			files.add(f);
+		}
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * Stores classpath under given key and saves the cache file.
+	 */
+	public synchronized void put(String key, List<File> classpath) throws IOException {
+		String prefix = basedir.getAbsolutePath() + File.separator;
+		List<String> paths = new ArrayList<String>(classpath.size());
+		for (File f : classpath) {
+			String path = f.getAbsolutePath();
+			if (path.matches(".*[\t\n\r].*")) {
+				return; // not representable, do not cache at all
+			}
+			paths.add(path.startsWith(prefix) ? path.substring(prefix.length()) : path);
+		}
+		entries.put(key, paths);
+		while (entries.size() > MAX_ENTRIES) {
+			entries.remove(entries.keySet().iterator().next());
+		}
+		save();
+	}
+
+	///
+
+	private void load() {
+		if (!file.isFile()) {
+			return;
+		}
+		try {
+			List<String> lines = FileUtils.readLines(file, "UTF-8");
+			if (lines.isEmpty() || !lines.get(0).equals(FORMAT)) {
+				return; // outdated
+			}
+			for (String line : lines.subList(1, lines.size())) {
+				String[] t = line.split("\t");
+				List<String> paths = new ArrayList<String>(t.length - 1);
+				for (int i = 1; i < t.length; i++) {
+					paths.add(t[i]);
+				}
+				entries.put(t[0], paths);
+			}
+		} catch (Exception e) {
+			// unreadable cache is an empty cache, next put() overwrites it
+			entries.clear();
+		}
+	}
+
+	private void save() throws IOException {
+		List<String> lines = new ArrayList<String>(entries.size() + 1);
+		lines.add(FORMAT);
+		for (Map.Entry<String, List<String>> e : entries.entrySet()) {
+			StringBuilder sb = new StringBuilder(e.getKey());
+			for (String path : e.getValue()) {
+				sb.append('\t').append(path);
+			}
+			lines.add(sb.toString());
+		}
+		File tmp = null;
+		try {
+			FileUtils.forceMkdir(file.getParentFile());
+			// concurrent invocations must not clash on the temp file
+			tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			FileUtils.writeLines(tmp, "UTF-8", lines, "\n");
+			RewriteJournal.move(tmp, file);
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(tmp);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Commit distance to the last release: number of commits on the first-parent chain from a commit down to the nearest
+ * commit carrying a release tag (0 for a tagged commit; length of the whole chain if there is no such commit). Grows
+ * by one with every commit on a branch, so it serves as an ordered and reproducible build counter.
+ * <p/>
+ * History is walked on the {@link CommitGraph} if the repository has one, and by reading commit objects otherwise (and
+ * for commits newer than the graph); the latter walk is bounded. Distances of walked commits (start, and every
+ * {@value #CHECKPOINT}th one) are cached in memory and in a small file in the cache directory, so the next build only
+ * walks commits created since. Cache is dropped when the set of release tags changes.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class CommitDistance {
+
+	static private final String FORMAT = "MavenExtension.CommitDistance.1";
+
+	static private final int MAX_ENTRIES = 1024;
+
+	static private final int CHECKPOINT = 4096;
+
+	static private final Map<File, CommitDistance> cache = new HashMap<File, CommitDistance>();
+
+	/**
+	 * Returns cache backed by given file, loading it only once per JVM.
+	 */
+	static public CommitDistance forFile(File file) {
+		synchronized (cache) {
+			CommitDistance c = cache.get(file);
+			if (c == null) {
+				c = new CommitDistance(file);
+				c.load();
+				cache.put(file, c);
+			}
+			return c;
+		}
+	}
+
+	final File file; // null: memory only
+	final Map<String, Integer> distances = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+	String tagsKey;
+
+	CommitDistance(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param tagged commits carrying a release tag
+	 * @param limit  maximum number of commit objects read when the commit-graph does not cover the history
+	 * @return distance of given commit, or -1 if the walk exceeded the limit
+	 */
+	public synchronized int get(GitRepository git, String commitId, Set<String> tagged, int limit)
+			throws IOException {
+		List<String> sorted = new ArrayList<String>(tagged);
+		Collections.sort(sorted);
+		String key = BuildInfoCache.key(FORMAT, sorted.toArray(new String[sorted.size()]));
+		if (!key.equals(tagsKey)) {
+			distances.clear();
+			tagsKey = key;
+		}
+
+		Integer cached = distances.get(commitId);
+		if (cached != null) {
+			return cached;
+		}
+
+		// commits walked (by step) that will be cached
+		Map<Integer, String> checkpoints = new LinkedHashMap<Integer, String>();
+		int steps = 0;
+		int base = 0;
+
+		// objects first: commits newer than the graph, or the whole history if there is no graph
+		CommitGraph graph = CommitGraph.open(git);
+		String id = commitId;
+		int position = -1;
+		while (id != null) {
+			if (tagged.contains(id)) {
+				break;
+			}
+			cached = distances.get(id);
+			if (cached != null) {
+				base = cached;
+				break;
+			}
+			position = (graph != null) ? graph.find(id) : -1;
+			if (position >= 0) {
+				break;
+			}
+			if (steps >= limit) {
+				MavenExtension.debug("Commit distance of %s: no release tag within %d commits", commitId, limit);
+				return -1;
+			}
+			if (steps % CHECKPOINT == 0) {
+				checkpoints.put(steps, id);
+			}
+			steps++;
+			id = git.readObject(id).header("parent");
+		}
+
+		// then graph positions: no objects read, no ids formatted
+		if (position >= 0) {
+			Map<Integer, Integer> stops = new HashMap<Integer, Integer>();
+			for (String t : tagged) {
+				int p = graph.find(t);
+				if (p >= 0) {
+					stops.put(p, 0);
+				}
+			}
+			for (Map.Entry<String, Integer> e : distances.entrySet()) {
+				int p = graph.find(e.getKey());
+				if (p >= 0) {
+					stops.put(p, e.getValue());
+				}
+			}
+			while (position >= 0) {
+				Integer stop = stops.get(position);
+				if (stop != null) {
+					base = stop;
+					break;
+				}
+				if (steps % CHECKPOINT == 0) {
+					checkpoints.put(steps, graph.getId(position));
+				}
+				steps++;
+				position = graph.getFirstParent(position);
+			}
+		}
+
+		for (Map.Entry<Integer, String> e : checkpoints.entrySet()) {
+			distances.put(e.getValue(), steps - e.getKey() + base);
+		}
+		while (distances.size() > MAX_ENTRIES) {
+			distances.remove(distances.keySet().iterator().next());
+		}
+		save();
+		return steps + base;
+	}
+
+	/**
+	 * Commits carrying a release tag (see {@link MavenExtension#isReleaseTag(String)}).
+	 */
+	static public Set<String> getReleaseCommits(TagIndex tags) {
+		Set<String> commits = new HashSet<String>();
+		for (String commit : tags.getCommits()) {
+			for (String name : tags.lookup(commit)) {
+				if (MavenExtension.isReleaseTag(name)) {
+					commits.add(commit);
+					break;
+				}
+			}
+		}
+		return commits;
+	}
+
+	///
+
+	private void load() {
+		if (file == null || !file.isFile()) {
+			return;
+		}
+		try {
+			List<String> lines = FileUtils.readLines(file, "UTF-8");
+			if (lines.isEmpty() || !lines.get(0).startsWith(FORMAT + "\t")) {
+				MavenExtension.debug("Commit distance cache %s is outdated, ignoring", file);
+				return;
+			}
+			tagsKey = lines.get(0).substring(FORMAT.length() + 1);
+			for (String line : lines.subList(1, lines.size())) {
+				String[] t = line.split("\t");
+				distances.put(t[0], Integer.valueOf(t[1]));
+			}
+		} catch (Exception e) {
+			MavenExtension.debug("Cannot read commit distance cache %s: %s", file, e);
+			distances.clear();
+			tagsKey = null;
+		}
+	}
+
+	private void save() {
+		if (file == null) {
+			return;
+		}
+		List<String> lines = new ArrayList<String>(distances.size() + 1);
+		lines.add(FORMAT + "\t" + tagsKey);
+		for (Map.Entry<String, Integer> e : distances.entrySet()) {
+			lines.add(e.getKey() + "\t" + e.getValue());
+		}
+		File tmp = null;
+		try {
+			// concurrent builds of the same workspace must not clash on the temp file
+			tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			FileUtils.writeLines(tmp, "UTF-8", lines, "\n");
+			RewriteJournal.move(tmp, file);
+		} catch (IOException e) {
+			MavenExtension.debug("Cannot write commit distance cache %s: %s", file, e);
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reader of Git's commit-graph file ({@code objects/info/commit-graph}, written by {@code git gc} or
+ * {@code git commit-graph write}): sorted commit ids and their parents as positions in the same file, so that history
+ * can be walked without inflating commit objects. Only a single SHA-1 graph file is supported, split graph chains
+ * ({@code objects/info/commit-graphs/}) are not.
+ * <p/>
+ * The graph is a snapshot: commits created after it was written are not in it.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class CommitGraph {
+
+	static private final int SIGNATURE = 0x43475048; // "CGPH"
+	static private final int CHUNK_OIDF = 0x4f494446;
+	static private final int CHUNK_OIDL = 0x4f49444c;
+	static private final int CHUNK_CDAT = 0x43444154;
+	static private final int HASH_LEN = 20;
+	static private final int CDAT_LEN = HASH_LEN + 16;
+	static private final int NO_PARENT = 0x70000000;
+
+	/**
+	 * Opens commit-graph of given repository.
+	 *
+	 * @return graph, or {@code null} if there is none or its format is not supported
+	 */
+	static public CommitGraph open(GitRepository git) throws IOException {
+		File file = new File(git.getCommonDir(), "objects/info/commit-graph");
+		if (!file.isFile() || new File(git.getCommonDir(), "shallow").isFile()) {
+			return null; // shallow clone: boundary commits are recorded without their parents
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			// mapping stays valid after the channel is closed
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.limit() < 8 || buf.getInt(0) != SIGNATURE || buf.get(4) != 1 || buf.get(5) != 1
+					|| buf.get(7) != 0) {
+				MavenExtension.debug("Unsupported commit-graph: %s", file);
+				return null;
+			}
+			int chunks = buf.get(6) & 0xff;
+			int oidf = -1, oidl = -1, cdat = -1;
+			for (int i = 0; i < chunks; i++) {
+				int id = buf.getInt(8 + i * 12);
+				long offset = buf.getLong(8 + i * 12 + 4);
+				if (offset < 0 || offset > buf.limit()) {
+					throw new IOException("Corrupted commit-graph: " + file);
+				}
+				if (id == CHUNK_OIDF) oidf = (int) offset;
+				if (id == CHUNK_OIDL) oidl = (int) offset;
+				if (id == CHUNK_CDAT) cdat = (int) offset;
+			}
+			if (oidf < 0 || oidl < 0 || cdat < 0) {
+				throw new IOException("Corrupted commit-graph: " + file);
+			}
+			int count = buf.getInt(oidf + 255 * 4);
+			if ((long) oidl + (long) count * HASH_LEN > buf.limit() || (long) cdat + (long) count * CDAT_LEN > buf.limit()) {
+				throw new IOException("Corrupted commit-graph: " + file);
+			}
+			return new CommitGraph(buf, oidf, oidl, cdat, count);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	final ByteBuffer buf;
+	final int oidf;
+	final int oidl;
+	final int cdat;
+	final int count;
+
+	CommitGraph(ByteBuffer buf, int oidf, int oidl, int cdat, int count) {
+		this.buf = buf;
+		this.oidf = oidf;
+		this.oidl = oidl;
+		this.cdat = cdat;
+		this.count = count;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return position of given commit, or -1 if it is not in the graph
+	 */
+	public int find(String id) {
+		byte[] key = GitRepository.toBytes(id);
+		int first = key[0] & 0xff;
+		int lo = (first == 0) ? 0 : buf.getInt(oidf + (first - 1) * 4);
+		int hi = buf.getInt(oidf + first * 4);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compare(mid, key);
+			if (cmp == 0) {
+				return mid;
+			}
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return position of the first parent of the commit at given position, or -1 for a root commit
+	 */
+	public int getFirstParent(int position) {
+		int parent = buf.getInt(cdat + position * CDAT_LEN + HASH_LEN);
+		return (parent == NO_PARENT) ? -1 : parent;
+	}
+
+	public String getId(int position) {
+		byte[] id = new byte[HASH_LEN];
+		for (int i = 0; i < HASH_LEN; i++) {
+			id[i] = buf.get(oidl + position * HASH_LEN + i);
+		}
+		return GitRepository.toHex(id);
+	}
+
+	private int compare(int position, byte[] key) {
+		int base = oidl + position * HASH_LEN;
+		for (int i = 0; i < HASH_LEN; i++) {
+			int a = buf.get(base + i) & 0xff;
+			int b = key[i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+}
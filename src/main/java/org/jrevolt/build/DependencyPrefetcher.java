@@ -0,0 +1,455 @@
+package org.jrevolt.build;
+
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Parent;
+import org.apache.maven.model.Plugin;
+import org.codehaus.mojo.versions.api.PomHelper;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactTypeRegistry;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactDescriptorRequest;
+import org.eclipse.aether.resolution.ArtifactDescriptorResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.resolution.DependencyResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves external dependencies and plugins declared in the workspace POMs into the local repository on a bounded
+ * pool, in the background, while Maven reads the projects and starts building them. Cold builds (empty local
+ * repository) otherwise download everything one project at a time, as each project gets to dependency resolution.
+ * <p/>
+ * POMs are read raw: properties are interpolated from the POM, its parents in the workspace, and system and user
+ * properties; missing versions are taken from dependency and plugin management of the same chain, of the first parent
+ * outside of the workspace and of imported BOMs. Whatever cannot be determined this way (or belongs to the reactor) is
+ * left to the build. Prefetch failures are only logged in debug mode; the build reports them itself if they matter.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class DependencyPrefetcher {
+
+	static private final Pattern EXPRESSION = Pattern.compile("\\$\\{([^}]+)\\}");
+
+	final RepositorySystem system;
+	final RepositorySystemSession session;
+	final List<RemoteRepository> repositories;
+	final List<RemoteRepository> pluginRepositories;
+	final Properties properties;
+	final ExecutorService executor;
+
+	final Map<File, Model> models = new LinkedHashMap<File, Model>();
+	final Set<String> reactor = new HashSet<String>();
+	final Map<String, List<Dependency>> descriptors = new ConcurrentHashMap<String, List<Dependency>>();
+
+	final AtomicInteger requests = new AtomicInteger();
+	final AtomicInteger pending = new AtomicInteger();
+	final AtomicInteger resolved = new AtomicInteger();
+	final AtomicInteger failed = new AtomicInteger();
+	volatile long started;
+	volatile long finished;
+
+	/**
+	 * @param session    repository session of the build; a copy without workspace reader is used, reactor projects
+	 *                   are not resolvable yet
+	 * @param properties system and user properties, the latter overriding the former
+	 */
+	public DependencyPrefetcher(RepositorySystem system, RepositorySystemSession session,
+										 List<RemoteRepository> repositories, List<RemoteRepository> pluginRepositories,
+										 Properties properties, int threads) {
+		DefaultRepositorySystemSession copy = new DefaultRepositorySystemSession(session);
+		copy.setWorkspaceReader(null);
+		this.system = system;
+		this.session = copy;
+		this.repositories = repositories;
+		this.pluginRepositories = pluginRepositories;
+		this.properties = properties;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MavenExtension-prefetch-" + counter.incrementAndGet());
+				t.setDaemon(true); // never holds up JVM exit
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts prefetch of given POMs' dependencies and plugins and returns immediately.
+	 */
+	public void start(final List<File> poms) {
+		started = System.currentTimeMillis();
+		pending.incrementAndGet();
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					plan(poms);
+				} catch (RuntimeException e) {
+					MavenExtension.debug("Prefetch planning failed: %s", e);
+				} finally {
+					done();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cancels prefetch still in progress and reports what has been done.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+		long elapsed = ((finished != 0) ? finished : System.currentTimeMillis()) - started;
+		MavenExtension.log("Prefetch: %d request(s), %d artifact(s) resolved, %d failed, %s in %d ms",
+								 requests.get(), resolved.get(), failed.get(),
+								 (finished != 0) ? "completed" : "cancelled", elapsed);
+	}
+
+	///
+
+	private void done() {
+		if (pending.decrementAndGet() == 0) {
+			finished = System.currentTimeMillis();
+		}
+	}
+
+	private void submit(final String name, final Callable<CollectRequest> task) {
+		requests.incrementAndGet();
+		pending.incrementAndGet();
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					CollectRequest request = task.call();
+					if (request != null) {
+						DependencyResult result = system.resolveDependencies(session, new DependencyRequest(request, null));
+						resolved.addAndGet(result.getArtifactResults().size());
+					}
+				} catch (DependencyResolutionException e) {
+					failed.incrementAndGet();
+					MavenExtension.debug("Prefetch of %s failed: %s", name, e.getMessage());
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					MavenExtension.debug("Prefetch of %s failed: %s", name, e);
+				} finally {
+					done();
+				}
+			}
+		});
+	}
+
+	void plan(List<File> poms) {
+		for (File pom : poms) {
+			try {
+				Model model = PomHelper.getRawModel(pom);
+				models.put(WorkspaceRepositories.key(pom), model);
+				String groupId = (model.getGroupId() != null) ? model.getGroupId()
+						: (model.getParent() != null) ? model.getParent().getGroupId() : null;
+				reactor.add(groupId + ":" + model.getArtifactId());
+			} catch (IOException e) {
+				MavenExtension.debug("Prefetch: cannot read %s: %s", pom, e);
+			}
+		}
+
+		final ArtifactTypeRegistry types = session.getArtifactTypeRegistry();
+		List<Chain> chains = new ArrayList<Chain>(models.size());
+		for (Map.Entry<File, Model> e : models.entrySet()) {
+			chains.add(new Chain(e.getKey(), e.getValue()));
+		}
+
+		// plugins first: every project starts with them
+		Set<String> planned = new HashSet<String>();
+		for (final Chain chain : chains) {
+			if (chain.model.getBuild() == null) {
+				continue;
+			}
+			for (final Plugin p : chain.model.getBuild().getPlugins()) {
+				final String groupId = chain.interpolate(p.getGroupId());
+				final String artifactId = chain.interpolate(p.getArtifactId());
+				String v = chain.interpolate(p.getVersion());
+				final String version = (v != null) ? v : chain.pluginVersions.get(groupId + ":" + artifactId);
+				if (!isResolvable(groupId, artifactId, version)
+						|| !planned.add(groupId + ":" + artifactId + ":" + version)) {
+					continue;
+				}
+				submit(groupId + ":" + artifactId + ":" + version, new Callable<CollectRequest>() {
+					@Override
+					public CollectRequest call() {
+						CollectRequest request = new CollectRequest(
+								new Dependency(new DefaultArtifact(groupId, artifactId, "jar", version), "runtime"),
+								pluginRepositories);
+						// plugin dependencies are not subject to the project's dependency management
+						for (org.apache.maven.model.Dependency d : p.getDependencies()) {
+							Dependency dependency = chain.toDependency(d, null, types);
+							if (dependency != null) {
+								request.addDependency(dependency);
+							}
+						}
+						return request;
+					}
+				});
+			}
+		}
+
+		// management of external parents and BOMs is read here as well, hence a task per POM
+		for (final Chain chain : chains) {
+			if (chain.model.getDependencies().isEmpty()) {
+				continue;
+			}
+			submit(chain.model.getArtifactId(), new Callable<CollectRequest>() {
+				@Override
+				public CollectRequest call() {
+					chain.readExternalManagement();
+					List<Dependency> dependencies = new ArrayList<Dependency>();
+					for (org.apache.maven.model.Dependency d : chain.model.getDependencies()) {
+						Dependency dependency = chain.toDependency(d, types);
+						if (dependency != null) {
+							dependencies.add(dependency);
+						}
+					}
+					return dependencies.isEmpty() ? null
+							: new CollectRequest(dependencies, chain.getManagedDependencies(), repositories);
+				}
+			});
+		}
+	}
+
+	boolean isResolvable(String groupId, String artifactId, String version) {
+		return groupId != null && artifactId != null && version != null && !version.contains("${")
+				&& !reactor.contains(groupId + ":" + artifactId);
+	}
+
+	/**
+	 * Managed dependencies of an external POM (parent or imported BOM), read once.
+	 */
+	List<Dependency> readManagedDependencies(String groupId, String artifactId, String version) {
+		String key = groupId + ":" + artifactId + ":" + version;
+		List<Dependency> managed = descriptors.get(key);
+		if (managed == null) {
+			try {
+				ArtifactDescriptorResult result = system.readArtifactDescriptor(session, new ArtifactDescriptorRequest(
+						new DefaultArtifact(groupId, artifactId, "pom", version), repositories, null));
+				managed = result.getManagedDependencies();
+			} catch (Exception e) {
+				MavenExtension.debug("Prefetch: cannot read %s: %s", key, e.getMessage());
+				managed = Collections.emptyList();
+			}
+			descriptors.put(key, managed);
+		}
+		return managed;
+	}
+
+	///
+
+	/**
+	 * POM and its parents in the workspace: properties, management, and the first parent outside of the workspace.
+	 */
+	class Chain {
+
+		final Model model;
+		final Properties props = new Properties();
+		final List<org.apache.maven.model.Dependency> imports = new ArrayList<org.apache.maven.model.Dependency>();
+		Parent external;
+		final Map<String, Dependency> managed = new LinkedHashMap<String, Dependency>();
+		final Map<String, String> pluginVersions = new HashMap<String, String>();
+
+		Chain(File pom, Model model) {
+			this.model = model;
+			LinkedList<Model> chain = new LinkedList<Model>();
+			for (File f = pom; model != null; ) {
+				chain.addFirst(model);
+				Parent parent = model.getParent();
+				if (parent == null) {
+					break;
+				}
+				String relativePath = (parent.getRelativePath() != null) ? parent.getRelativePath().trim() : "../pom.xml";
+				File p = relativePath.isEmpty() ? null : new File(f.getParentFile(), relativePath);
+				if (p != null && p.isDirectory()) {
+					p = new File(p, "pom.xml");
+				}
+				Model m = (p != null) ? models.get(WorkspaceRepositories.key(p)) : null;
+				if (m == null || !parent.getArtifactId().equals(m.getArtifactId())) {
+					external = parent;
+					break;
+				}
+				f = WorkspaceRepositories.key(p);
+				model = m;
+			}
+
+			// the POM's own properties override those of its parents; system and user properties override all
+			for (Model m : chain) {
+				props.putAll(m.getProperties());
+			}
+			Model self = chain.getLast();
+			String groupId = (self.getGroupId() != null) ? self.getGroupId()
+					: (self.getParent() != null) ? self.getParent().getGroupId() : null;
+			String version = (self.getVersion() != null) ? self.getVersion()
+					: (self.getParent() != null) ? self.getParent().getVersion() : null;
+			for (String prefix : new String[]{"project.", "pom.", ""}) {
+				if (groupId != null) props.setProperty(prefix + "groupId", groupId);
+				if (version != null) props.setProperty(prefix + "version", version);
+				props.setProperty(prefix + "artifactId", self.getArtifactId());
+			}
+			props.putAll(properties);
+
+			// explicit management, nearest first; the external parent's and imported BOMs are read later
+			for (Model m : reverse(chain)) {
+				if (m.getDependencyManagement() != null) {
+					for (org.apache.maven.model.Dependency d : m.getDependencyManagement().getDependencies()) {
+						if ("import".equals(d.getScope())) {
+							imports.add(d);
+						} else {
+							Dependency dependency = toDependency(d, null, session.getArtifactTypeRegistry());
+							if (dependency != null) {
+								manage(dependency);
+							}
+						}
+					}
+				}
+				if (m.getBuild() != null && m.getBuild().getPluginManagement() != null) {
+					for (Plugin p : m.getBuild().getPluginManagement().getPlugins()) {
+						String key = interpolate(p.getGroupId()) + ":" + interpolate(p.getArtifactId());
+						String v = interpolate(p.getVersion());
+						if (v != null && !pluginVersions.containsKey(key)) {
+							pluginVersions.put(key, v);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Adds management of the external parent and then of imported BOMs (reads them from repositories).
+		 */
+		void readExternalManagement() {
+			if (external != null && external.getVersion() != null) {
+				for (Dependency d : readManagedDependencies(interpolate(external.getGroupId()),
+																		 interpolate(external.getArtifactId()),
+																		 interpolate(external.getVersion()))) {
+					manage(d);
+				}
+			}
+			for (org.apache.maven.model.Dependency d : imports) {
+				String g = interpolate(d.getGroupId());
+				String a = interpolate(d.getArtifactId());
+				String v = interpolate(d.getVersion());
+				if (isResolvable(g, a, v)) {
+					for (Dependency m : readManagedDependencies(g, a, v)) {
+						manage(m);
+					}
+				}
+			}
+		}
+
+		void manage(Dependency d) {
+			String key = getKey(d.getArtifact());
+			if (!managed.containsKey(key)) {
+				managed.put(key, d);
+			}
+		}
+
+		List<Dependency> getManagedDependencies() {
+			return new ArrayList<Dependency>(managed.values());
+		}
+
+		/**
+		 * @return interpolated dependency, or {@code null} if it is a reactor one or cannot be determined
+		 */
+		Dependency toDependency(org.apache.maven.model.Dependency d, ArtifactTypeRegistry types) {
+			if ("import".equals(d.getScope())) {
+				return null;
+			}
+			return toDependency(d, managed, types);
+		}
+
+		Dependency toDependency(org.apache.maven.model.Dependency d, Map<String, Dependency> managed,
+										ArtifactTypeRegistry types) {
+			org.apache.maven.model.Dependency i = d.clone();
+			i.setGroupId(interpolate(d.getGroupId()));
+			i.setArtifactId(interpolate(d.getArtifactId()));
+			i.setVersion(interpolate(d.getVersion()));
+			i.setType(interpolate(d.getType()));
+			i.setClassifier(interpolate(d.getClassifier()));
+			i.setScope(interpolate(d.getScope()));
+			if ("system".equals(i.getScope())) {
+				return null;
+			}
+			if (i.getVersion() == null && managed != null) {
+				Dependency m = managed.get(getKey(RepositoryUtils.toDependency(i, types).getArtifact()));
+				if (m != null) {
+					i.setVersion(m.getArtifact().getVersion());
+				}
+			}
+			if (!isResolvable(i.getGroupId(), i.getArtifactId(), i.getVersion())) {
+				return null;
+			}
+			return RepositoryUtils.toDependency(i, types);
+		}
+
+		String interpolate(String value) {
+			if (value == null) {
+				return null;
+			}
+			for (int depth = 0; depth < 10 && value.contains("${"); depth++) {
+				Matcher m = EXPRESSION.matcher(value);
+				StringBuffer sb = new StringBuffer();
+				boolean changed = false;
+				while (m.find()) {
+					String replacement = props.getProperty(m.group(1));
+					if (replacement == null && m.group(1).startsWith("env.")) {
+						replacement = System.getenv(m.group(1).substring(4));
+					}
+					changed |= (replacement != null);
+					m.appendReplacement(sb, Matcher.quoteReplacement((replacement != null) ? replacement : m.group()));
+				}
+				m.appendTail(sb);
+				value = sb.toString();
+				if (!changed) {
+					break;
+				}
+			}
+			return value.trim();
+		}
+	}
+
+	static String getKey(Artifact a) {
+		// version-less
+		return a.getGroupId() + ":" + a.getArtifactId() + ":" + a.getProperty("type", a.getExtension()) + ":"
+				+ a.getClassifier();
+	}
+
+	static <T> List<T> reverse(List<T> list) {
+		List<T> reversed = new ArrayList<T>(list);
+		Collections.reverse(reversed);
+		return reversed;
+	}
+}
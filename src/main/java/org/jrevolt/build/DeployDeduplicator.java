@@ -0,0 +1,227 @@
+package org.jrevolt.build;
+
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.artifact.ArtifactUtils;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.execution.AbstractExecutionListener;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Skips re-publishing of release artifacts that are already in the deployment repository, built from the same commit
+ * with the same content (e.g. a retried release build with reproducible versions, see
+ * {@link MavenExtension#P_BUILD_ID_MODE}).
+ * <p/>
+ * Every deployed project gets a deployment manifest attached ({@code <artifactId>-<version>-deploy-manifest.properties}):
+ * {@code build.commit} and SHA-1 of each deployed file. Right before {@code maven-deploy-plugin:deploy} runs, the
+ * manifest of the same coordinates is fetched from the deployment repository (bypassing the local repository); attached
+ * artifacts it lists with the same commit and hash are detached, and if the POM and main artifact match as well, the
+ * project is not deployed at all ({@code maven.deploy.skip}).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class DeployDeduplicator extends AbstractExecutionListener {
+
+	static public final String TYPE = "properties";
+	static public final String CLASSIFIER = "deploy-manifest";
+
+	static private final String COMMIT = "build.commit";
+
+	final RepositorySystem repositorySystem;
+	final MavenProjectHelper projectHelper;
+	final String commit;
+
+	final AtomicInteger skippedProjects = new AtomicInteger();
+	final AtomicInteger skippedFiles = new AtomicInteger();
+	final AtomicLong skippedBytes = new AtomicLong();
+
+	public DeployDeduplicator(RepositorySystem repositorySystem, MavenProjectHelper projectHelper, String commit) {
+		this.repositorySystem = repositorySystem;
+		this.projectHelper = projectHelper;
+		this.commit = commit;
+	}
+
+	@Override
+	public void mojoStarted(ExecutionEvent event) {
+		MojoExecution mojo = event.getMojoExecution();
+		MavenProject project = event.getProject();
+		if (!"maven-deploy-plugin".equals(mojo.getArtifactId()) || !"deploy".equals(mojo.getGoal())
+				|| ArtifactUtils.isSnapshot(project.getVersion())) {
+			return;
+		}
+		try {
+			deduplicate(event.getSession(), project);
+		} catch (Exception e) {
+			MavenExtension.log("%s: deploy deduplication failed, deploying everything: %s", project.getId(), e);
+		}
+	}
+
+	@Override
+	public void sessionEnded(ExecutionEvent event) {
+		if (skippedFiles.get() > 0) {
+			MavenExtension.log("Deploy: skipped %d already deployed file(s), %d KB (%d project(s) entirely)",
+									 skippedFiles.get(), skippedBytes.get() / 1024, skippedProjects.get());
+		}
+	}
+
+	///
+
+	void deduplicate(MavenSession session, MavenProject project) throws IOException {
+		Map<String, File> files = getDeployedFiles(project);
+		Map<String, String> hashes = new TreeMap<String, String>();
+		for (Map.Entry<String, File> e : files.entrySet()) {
+			hashes.put(e.getKey(), RewriteJournal.sha1(e.getValue()));
+		}
+
+		Map<String, String> deployed = fetchManifest(session, project);
+		Map<String, File> same = new LinkedHashMap<String, File>();
+		if (deployed != null && commit.equals(deployed.get(COMMIT))) {
+			for (Map.Entry<String, String> e : hashes.entrySet()) {
+				if (e.getValue().equals(deployed.get(e.getKey()))) {
+					same.put(e.getKey(), files.get(e.getKey()));
+				}
+			}
+		}
+
+		if (same.size() == files.size()) {
+			project.getProperties().setProperty("maven.deploy.skip", "true");
+			MavenExtension.log("%s: already deployed from commit %s, not deploying", project.getId(), commit);
+			skipped(same);
+			skippedProjects.incrementAndGet();
+			return;
+		}
+
+		// main artifact and POM cannot be left out; attached artifacts can
+		Iterator<org.apache.maven.artifact.Artifact> it = project.getAttachedArtifacts().iterator();
+		Map<String, File> detached = new LinkedHashMap<String, File>();
+		while (it.hasNext()) {
+			String key = getKey(it.next());
+			if (same.containsKey(key)) {
+				it.remove();
+				detached.put(key, same.get(key));
+			}
+		}
+		if (!detached.isEmpty()) {
+			MavenExtension.log("%s: not deploying %d already deployed artifact(s): %s",
+									 project.getId(), detached.size(), detached.keySet());
+			skipped(detached);
+		}
+
+		File manifest = new File(project.getBuild().getDirectory(), "MavenExtension/deploy-manifest.properties");
+		StringBuilder sb = new StringBuilder("# generated by MavenExtension\n");
+		sb.append(COMMIT).append('=').append(BuildInfo.escape(commit, false)).append('\n');
+		for (Map.Entry<String, String> e : hashes.entrySet()) {
+			sb.append(BuildInfo.escape(e.getKey(), true)).append('=').append(e.getValue()).append('\n');
+		}
+		FileUtils.writeStringToFile(manifest, sb.toString(), "UTF-8");
+		projectHelper.attachArtifact(project, TYPE, CLASSIFIER, manifest);
+	}
+
+	private void skipped(Map<String, File> files) {
+		for (File f : files.values()) {
+			skippedFiles.incrementAndGet();
+			skippedBytes.addAndGet(f.length());
+		}
+	}
+
+	/**
+	 * Files {@code maven-deploy-plugin} publishes, by {@code [classifier:]extension} ({@code pom} for the POM).
+	 */
+	static Map<String, File> getDeployedFiles(MavenProject project) {
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		files.put("pom", project.getFile());
+		org.apache.maven.artifact.Artifact main = project.getArtifact();
+		if (!"pom".equals(project.getPackaging()) && main.getFile() != null && main.getFile().isFile()) {
+			files.put(getKey(main), main.getFile());
+		}
+		for (org.apache.maven.artifact.Artifact a : project.getAttachedArtifacts()) {
+			if (a.getFile() != null && a.getFile().isFile() && !CLASSIFIER.equals(a.getClassifier())) {
+				files.put(getKey(a), a.getFile());
+			}
+		}
+		return files;
+	}
+
+	static String getKey(org.apache.maven.artifact.Artifact a) {
+		String extension = a.getArtifactHandler().getExtension();
+		return (a.getClassifier() != null && !a.getClassifier().isEmpty())
+				? a.getClassifier() + ":" + extension
+				: extension;
+	}
+
+	/**
+	 * Downloads deployment manifest of the project's coordinates from its deployment repository into a temporary
+	 * local repository, so that neither a stale local copy is used nor the real local repository is polluted.
+	 *
+	 * @return manifest entries, or {@code null} if none has been deployed
+	 */
+	Map<String, String> fetchManifest(MavenSession session, MavenProject project) throws IOException {
+		ArtifactRepository repository = project.getDistributionManagementArtifactRepository();
+		if (repository == null) {
+			return null;
+		}
+		File tmp = File.createTempFile("MavenExtension-deploy", "");
+		FileUtils.deleteQuietly(tmp);
+		try {
+			DefaultRepositorySystemSession rs = new DefaultRepositorySystemSession(session.getRepositorySession());
+			rs.setLocalRepositoryManager(repositorySystem.newLocalRepositoryManager(rs, new LocalRepository(tmp)));
+			rs.setWorkspaceReader(null);
+			RemoteRepository remote = RepositoryUtils.toRepo(repository);
+			remote = new RemoteRepository.Builder(remote)
+					.setAuthentication(rs.getAuthenticationSelector().getAuthentication(remote))
+					.setProxy(rs.getProxySelector().getProxy(remote))
+					.build();
+			ArtifactRequest request = new ArtifactRequest(
+					new DefaultArtifact(project.getGroupId(), project.getArtifactId(), CLASSIFIER, TYPE,
+											  project.getVersion()),
+					Collections.singletonList(remote), null);
+			ArtifactResult result;
+			try {
+				result = repositorySystem.resolveArtifact(rs, request);
+			} catch (ArtifactResolutionException e) {
+				MavenExtension.debug("%s: no deployment manifest in %s", project.getId(), remote.getUrl());
+				return null;
+			}
+			Properties props = new Properties();
+			InputStream in = new FileInputStream(result.getArtifact().getFile());
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			Map<String, String> manifest = new TreeMap<String, String>();
+			for (String name : props.stringPropertyNames()) {
+				manifest.put(name, props.getProperty(name));
+			}
+			return manifest;
+		} finally {
+			FileUtils.deleteQuietly(tmp);
+		}
+	}
+}
@@ -0,0 +1,548 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+import org.codehaus.plexus.util.IOUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads Git repository metadata (HEAD, refs, tags) directly from the repository directory, without forking the
+ * {@code git} executable. Supports {@code .git} files ({@code gitdir:} indirection, submodules) and linked worktrees
+ * ({@code commondir}). Object lookup covers loose objects and version 2 pack indexes including deltified entries.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class GitRepository {
+
+	static public final String R_HEADS = "refs/heads/";
+	static public final String R_TAGS = "refs/tags/";
+
+	static final int OBJ_COMMIT = 1;
+	static final int OBJ_TREE = 2;
+	static final int OBJ_BLOB = 3;
+	static final int OBJ_TAG = 4;
+	static final int OBJ_OFS_DELTA = 6;
+	static final int OBJ_REF_DELTA = 7;
+
+	/**
+	 * Locates repository owning given directory, walking up the directory tree.
+	 *
+	 * @return repository, or {@code null} if the directory is not inside a Git working tree
+	 */
+	static public GitRepository find(File dir) throws IOException {
+		for (File d = dir.getAbsoluteFile(); d != null; d = d.getParentFile()) {
+			File dotgit = new File(d, ".git");
+			if (dotgit.isDirectory()) {
+				return new GitRepository(d, dotgit);
+			}
+			if (dotgit.isFile()) {
+				// submodule or linked worktree: "gitdir: <path>"
+				String content = readFirstLine(dotgit);
+				if (content == null || !content.startsWith("gitdir:")) {
+					throw new IOException("Invalid .git file: " + dotgit);
+				}
+				return new GitRepository(d, resolve(d, content.substring("gitdir:".length()).trim()));
+			}
+		}
+		return null;
+	}
+
+	final File workTree;
+	final File gitDir;
+	final File commonDir;
+
+	private List<PackIndex> packs;
+
+	GitRepository(File workTree, File gitDir) throws IOException {
+		this.workTree = workTree;
+		this.gitDir = gitDir.getCanonicalFile();
+		String common = readFirstLine(new File(this.gitDir, "commondir"));
+		this.commonDir = (common != null) ? resolve(this.gitDir, common).getCanonicalFile() : this.gitDir;
+	}
+
+	public File getWorkTree() {
+		return workTree;
+	}
+
+	public File getGitDir() {
+		return gitDir;
+	}
+
+	public File getCommonDir() {
+		return commonDir;
+	}
+
+	///
+
+	/**
+	 * Equivalent of {@code git rev-parse HEAD}.
+	 */
+	public String getHeadCommit() throws IOException {
+		return resolve("HEAD");
+	}
+
+	/**
+	 * Equivalent of {@code git rev-parse --abbrev-ref HEAD}, except that detached HEAD yields {@code null}.
+	 */
+	public String getBranch() throws IOException {
+		String head = readFirstLine(new File(gitDir, "HEAD"));
+		if (head == null) {
+			throw new IOException("Missing HEAD in " + gitDir);
+		}
+		if (!head.startsWith("ref:")) {
+			return null; // detached
+		}
+		String ref = head.substring("ref:".length()).trim();
+		return ref.startsWith(R_HEADS) ? ref.substring(R_HEADS.length()) : ref;
+	}
+
+	/**
+	 * Resolves (symbolic) reference to commit id. Tags are not peeled.
+	 *
+	 * @return object id, or {@code null} if no such reference exists (e.g. unborn branch)
+	 */
+	public String resolve(String ref) throws IOException {
+		for (int depth = 0; depth < 5; depth++) {
+			String value = readRef(ref);
+			if (value == null) {
+				return null;
+			}
+			if (!value.startsWith("ref:")) {
+				return value;
+			}
+			ref = value.substring("ref:".length()).trim();
+		}
+		throw new IOException("Symbolic reference nesting too deep: " + ref);
+	}
+
+	/**
+	 * Fingerprint of the repository state build metadata is derived from: content of {@code HEAD}, resolved commit id,
+	 * and {@code packed-refs}/{@code refs/tags} stamp. Changes on checkout, commit, or when any tag is created, moved or
+	 * deleted.
+	 */
+	public String getStateStamp() throws IOException {
+		return String.format("%s;%s;%s", readFirstLine(new File(gitDir, "HEAD")), getHeadCommit(),
+									new TagIndex.Stamp(commonDir));
+	}
+
+	/**
+	 * Lists tag names pointing (directly, or after peeling annotated tags) to given commit, sorted by name like
+	 * {@code git show-ref} does.
+	 *
+	 * @see TagIndex
+	 */
+	public List<String> getTags(String commitId) throws IOException {
+		return TagIndex.forRepository(this).lookup(commitId);
+	}
+
+	private String readRef(String ref) throws IOException {
+		// per-worktree refs (HEAD) live in gitDir, shared refs in commonDir
+		String value = readFirstLine(new File(gitDir, ref));
+		if (value == null && commonDir != gitDir) {
+			value = readFirstLine(new File(commonDir, ref));
+		}
+		if (value != null) {
+			return value;
+		}
+		File packed = new File(commonDir, "packed-refs");
+		if (!packed.isFile()) {
+			return null;
+		}
+		LineIterator it = FileUtils.lineIterator(packed, "UTF-8");
+		try {
+			while (it.hasNext()) {
+				String line = it.nextLine();
+				if (line.length() > 41 && line.charAt(40) == ' ' && line.substring(41).equals(ref)) {
+					return line.substring(0, 40);
+				}
+			}
+		} finally {
+			LineIterator.closeQuietly(it);
+		}
+		return null;
+	}
+
+	///
+
+	/**
+	 * Peels annotated tag(s) down to the tagged object.
+	 */
+	public String peel(String id) throws IOException {
+		for (int depth = 0; depth < 10; depth++) {
+			GitObject o = readObject(id);
+			if (o.type != OBJ_TAG) {
+				return id;
+			}
+			id = o.header("object");
+		}
+		throw new IOException("Tag nesting too deep: " + id);
+	}
+
+	/**
+	 * Reads and inflates object by id, looking up loose objects first and then all pack files.
+	 */
+	public GitObject readObject(String id) throws IOException {
+		File loose = new File(commonDir, "objects/" + id.substring(0, 2) + "/" + id.substring(2));
+		if (loose.isFile()) {
+			return readLooseObject(loose);
+		}
+		for (PackIndex pack : getPacks()) {
+			long offset = pack.find(id);
+			if (offset >= 0) {
+				return pack.read(offset);
+			}
+		}
+		throw new IOException("Object not found: " + id);
+	}
+
+	private GitObject readLooseObject(File f) throws IOException {
+		InputStream in = new InflaterInputStream(new FileInputStream(f));
+		try {
+			byte[] data = IOUtils.toByteArray(in);
+			int sp = indexOf(data, (byte) ' ', 0);
+			int nul = indexOf(data, (byte) 0, sp);
+			String type = new String(data, 0, sp, "US-ASCII");
+			byte[] content = new byte[data.length - nul - 1];
+			System.arraycopy(data, nul + 1, content, 0, content.length);
+			return new GitObject(typeOf(type), content);
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+
+	synchronized List<PackIndex> getPacks() throws IOException {
+		if (packs == null) {
+			packs = new ArrayList<PackIndex>();
+			File[] idx = new File(commonDir, "objects/pack").listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".idx");
+				}
+			});
+			if (idx != null) {
+				for (File f : idx) {
+					packs.add(new PackIndex(f));
+				}
+			}
+		}
+		return packs;
+	}
+
+	static int typeOf(String type) throws IOException {
+		if (type.equals("commit")) return OBJ_COMMIT;
+		if (type.equals("tree")) return OBJ_TREE;
+		if (type.equals("blob")) return OBJ_BLOB;
+		if (type.equals("tag")) return OBJ_TAG;
+		throw new IOException("Unknown object type: " + type);
+	}
+
+	///
+
+	/**
+	 * Inflated Git object: type and raw content (without header).
+	 */
+	static public class GitObject {
+		final int type;
+		final byte[] content;
+
+		GitObject(int type, byte[] content) {
+			this.type = type;
+			this.content = content;
+		}
+
+		public int getType() {
+			return type;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * Returns value of the first header line with given key (commit and tag objects).
+		 */
+		public String header(String key) throws IOException {
+			List<String> values = headers(key);
+			return values.isEmpty() ? null : values.get(0);
+		}
+
+		/**
+		 * Returns values of all header lines with given key, e.g. {@code parent}.
+		 */
+		public List<String> headers(String key) throws IOException {
+			List<String> values = new ArrayList<String>();
+			int pos = 0;
+			while (pos < content.length && content[pos] != '\n') {
+				int eol = indexOf(content, (byte) '\n', pos);
+				if (eol < 0) eol = content.length;
+				String line = new String(content, pos, eol - pos, "UTF-8");
+				if (line.startsWith(key + " ")) {
+					values.add(line.substring(key.length() + 1));
+				}
+				pos = eol + 1;
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Version 2 pack index ({@code .idx}) with the corresponding pack file.
+	 */
+	class PackIndex {
+
+		final File idxFile;
+		final File packFile;
+		final int[] fanout = new int[256];
+		final byte[] ids;
+		final long[] offsets;
+
+		PackIndex(File idxFile) throws IOException {
+			this.idxFile = idxFile;
+			this.packFile = new File(idxFile.getPath().replaceFirst("\\.idx$", ".pack"));
+			byte[] data = FileUtils.readFileToByteArray(idxFile);
+			if (data.length < 8 || (data[0] & 0xff) != 0xff || data[1] != 't' || data[2] != 'O' || data[3] != 'c'
+					|| readInt(data, 4) != 2) {
+				throw new IOException("Unsupported pack index version: " + idxFile);
+			}
+			for (int i = 0; i < 256; i++) {
+				fanout[i] = readInt(data, 8 + i * 4);
+			}
+			int count = fanout[255];
+			int base = 8 + 256 * 4;
+			ids = new byte[count * 20];
+			System.arraycopy(data, base, ids, 0, ids.length);
+			int ofs32 = base + count * 20 + count * 4;
+			int ofs64 = ofs32 + count * 4;
+			offsets = new long[count];
+			for (int i = 0; i < count; i++) {
+				int o = readInt(data, ofs32 + i * 4);
+				offsets[i] = (o < 0)
+						? ((long) readInt(data, ofs64 + (o & 0x7fffffff) * 8) << 32)
+						  | (readInt(data, ofs64 + (o & 0x7fffffff) * 8 + 4) & 0xffffffffL)
+						: o;
+			}
+		}
+
+		/**
+		 * @return pack offset of given object, or -1 if not present in this pack
+		 */
+		long find(String id) {
+			byte[] key = toBytes(id);
+			int first = key[0] & 0xff;
+			int lo = (first == 0) ? 0 : fanout[first - 1];
+			int hi = fanout[first];
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				int cmp = compare(ids, mid * 20, key);
+				if (cmp == 0) {
+					return offsets[mid];
+				}
+				if (cmp < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return -1;
+		}
+
+		GitObject read(long offset) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(packFile, "r");
+			try {
+				return read(raf, offset);
+			} finally {
+				IOUtils.closeQuietly(raf);
+			}
+		}
+
+		private GitObject read(RandomAccessFile raf, long offset) throws IOException {
+			raf.seek(offset);
+			int c = raf.read();
+			int type = (c >> 4) & 7;
+			long size = c & 0x0f;
+			int shift = 4;
+			while ((c & 0x80) != 0) {
+				c = raf.read();
+				size |= (long) (c & 0x7f) << shift;
+				shift += 7;
+			}
+			switch (type) {
+				case OBJ_COMMIT:
+				case OBJ_TREE:
+				case OBJ_BLOB:
+				case OBJ_TAG:
+					return new GitObject(type, inflate(raf, (int) size));
+				case OBJ_OFS_DELTA: {
+					c = raf.read();
+					long rel = c & 0x7f;
+					while ((c & 0x80) != 0) {
+						c = raf.read();
+						rel = ((rel + 1) << 7) | (c & 0x7f);
+					}
+					byte[] delta = inflate(raf, (int) size);
+					GitObject base = read(raf, offset - rel);
+					return new GitObject(base.type, applyDelta(base.content, delta));
+				}
+				case OBJ_REF_DELTA: {
+					byte[] baseId = new byte[20];
+					raf.readFully(baseId);
+					byte[] delta = inflate(raf, (int) size);
+					GitObject base = readObject(toHex(baseId));
+					return new GitObject(base.type, applyDelta(base.content, delta));
+				}
+				default:
+					throw new IOException(String.format("Invalid object type %d at %s:%d", type, packFile, offset));
+			}
+		}
+
+		private byte[] inflate(RandomAccessFile raf, int size) throws IOException {
+			if (size == 0) {
+				return new byte[0];
+			}
+			Inflater inflater = new Inflater();
+			try {
+				byte[] out = new byte[size];
+				byte[] buf = new byte[Math.max(64, Math.min(size + 64, 8192))];
+				int done = 0;
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						int n = raf.read(buf);
+						if (n < 0) {
+							throw new IOException("Unexpected end of pack: " + packFile);
+						}
+						inflater.setInput(buf, 0, n);
+					}
+					done += inflater.inflate(out, done, out.length - done);
+				}
+				return out;
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupted pack: " + packFile, e);
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+		int[] pos = {0};
+		readVarint(delta, pos); // base size
+		int size = (int) readVarint(delta, pos);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+		int p = pos[0];
+		while (p < delta.length) {
+			int cmd = delta[p++] & 0xff;
+			if ((cmd & 0x80) != 0) {
+				int off = 0, len = 0;
+				if ((cmd & 0x01) != 0) off = delta[p++] & 0xff;
+				if ((cmd & 0x02) != 0) off |= (delta[p++] & 0xff) << 8;
+				if ((cmd & 0x04) != 0) off |= (delta[p++] & 0xff) << 16;
+				if ((cmd & 0x08) != 0) off |= (delta[p++] & 0xff) << 24;
+				if ((cmd & 0x10) != 0) len = delta[p++] & 0xff;
+				if ((cmd & 0x20) != 0) len |= (delta[p++] & 0xff) << 8;
+				if ((cmd & 0x40) != 0) len |= (delta[p++] & 0xff) << 16;
+				if (len == 0) len = 0x10000;
+				out.write(base, off, len);
+			} else if (cmd != 0) {
+				out.write(delta, p, cmd);
+				p += cmd;
+			} else {
+				throw new IOException("Invalid delta opcode");
+			}
+		}
+		if (out.size() != size) {
+			throw new IOException("Delta size mismatch");
+		}
+		return out.toByteArray();
+	}
+
+	static private long readVarint(byte[] data, int[] pos) {
+		long value = 0;
+		int shift = 0;
+		int c;
+		do {
+			c = data[pos[0]++] & 0xff;
+			value |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return value;
+	}
+
+	///
+
+	static File resolve(File base, String path) {
+		File f = new File(path);
+		return f.isAbsolute() ? f : new File(base, path);
+	}
+
+	static String readFirstLine(File f) throws IOException {
+		if (!f.isFile()) {
+			return null;
+		}
+		LineIterator it = FileUtils.lineIterator(f, "UTF-8");
+		try {
+			return it.hasNext() ? it.nextLine().trim() : null;
+		} finally {
+			LineIterator.closeQuietly(it);
+		}
+	}
+
+	static int readInt(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	static int indexOf(byte[] data, byte b, int from) {
+		for (int i = from; i < data.length; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static int compare(byte[] data, int pos, byte[] key) {
+		for (int i = 0; i < key.length; i++) {
+			int a = data[pos + i] & 0xff;
+			int b = key[i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	static byte[] toBytes(String hex) {
+		byte[] b = new byte[hex.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return b;
+	}
+
+	static String toHex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for (byte x : b) {
+			sb.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return gitDir.toString();
+	}
+}
@@ -0,0 +1,201 @@
+package org.jrevolt.build;
+
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.model.Extension;
+import org.apache.maven.model.Parent;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Selects reactor projects affected by files changed since a base commit: projects owning a changed file (the project
+ * with the deepest base directory containing it), and all projects depending on them, directly or transitively. With
+ * {@code alsoMake}, upstream projects of the selected ones are kept as well, like {@code mvn -am} does.
+ * <p/>
+ * Dependencies between projects come from the reactor dependency graph if Maven has already built it (Maven 3.2+),
+ * otherwise from project models (parent, dependencies, build plugins and extensions referring to a reactor project).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class IncrementalReactor {
+
+	/**
+	 * Changes that never affect build output: documentation and Git configuration.
+	 */
+	static public final String DEFAULT_IGNORE = "(.*/)?([^/]*\\.md|\\.gitignore|\\.gitattributes)";
+
+	final File workTree;
+	final String base;
+	final List<String> changes;
+
+	/**
+	 * @param workTree root of the working tree changed paths are relative to
+	 * @param base     commit the changes are relative to (for information only)
+	 * @param changes  changed paths, using {@code /} as separator
+	 */
+	public IncrementalReactor(File workTree, String base, List<String> changes) {
+		this.workTree = canonical(workTree);
+		this.base = base;
+		this.changes = changes;
+	}
+
+	public String getBase() {
+		return base;
+	}
+
+	public List<String> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * @param projects reactor projects, in build order
+	 * @param graph    reactor dependency graph, or {@code null} if not available yet
+	 * @param ignore   changed paths which do not affect any project
+	 * @param alsoMake whether to keep upstream projects of the affected ones
+	 * @return affected projects, in build order
+	 */
+	public List<MavenProject> select(List<MavenProject> projects, ProjectDependencyGraph graph, Pattern ignore,
+												boolean alsoMake) {
+		Map<MavenProject, List<MavenProject>> upstream = getUpstreamProjects(projects, graph);
+		Map<MavenProject, List<MavenProject>> downstream = new IdentityHashMap<MavenProject, List<MavenProject>>();
+		for (MavenProject p : projects) {
+			downstream.put(p, new ArrayList<MavenProject>());
+		}
+		for (MavenProject p : projects) {
+			for (MavenProject u : upstream.get(p)) {
+				downstream.get(u).add(p);
+			}
+		}
+
+		Map<MavenProject, Boolean> selected = new IdentityHashMap<MavenProject, Boolean>();
+		LinkedList<MavenProject> queue = new LinkedList<MavenProject>(getOwners(projects, ignore));
+		while (!queue.isEmpty()) {
+			MavenProject p = queue.removeFirst();
+			if (selected.put(p, Boolean.TRUE) == null) {
+				queue.addAll(downstream.get(p));
+			}
+		}
+		if (alsoMake) {
+			queue.addAll(selected.keySet());
+			while (!queue.isEmpty()) {
+				for (MavenProject u : upstream.get(queue.removeFirst())) {
+					if (selected.put(u, Boolean.TRUE) == null) {
+						queue.add(u);
+					}
+				}
+			}
+		}
+
+		List<MavenProject> result = new ArrayList<MavenProject>(selected.size());
+		for (MavenProject p : projects) {
+			if (selected.containsKey(p)) {
+				result.add(p);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Maps changed files to projects owning them. Files outside of all projects are ignored.
+	 */
+	Collection<MavenProject> getOwners(List<MavenProject> projects, Pattern ignore) {
+		Map<File, MavenProject> byBasedir = new HashMap<File, MavenProject>();
+		for (MavenProject p : projects) {
+			byBasedir.put(canonical(p.getBasedir()), p);
+		}
+		Map<MavenProject, Boolean> owners = new IdentityHashMap<MavenProject, Boolean>();
+		for (String path : changes) {
+			if (ignore != null && ignore.matcher(path).matches()) {
+				continue;
+			}
+			for (File dir = new File(workTree, path).getParentFile(); dir != null; dir = dir.getParentFile()) {
+				MavenProject owner = byBasedir.get(dir);
+				if (owner != null) {
+					owners.put(owner, Boolean.TRUE);
+					break;
+				}
+			}
+		}
+		return owners.keySet();
+	}
+
+	/**
+	 * Direct upstream projects of each of given projects, restricted to given projects.
+	 *
+	 * @param graph reactor dependency graph, or {@code null} to derive dependencies from project models
+	 */
+	static Map<MavenProject, List<MavenProject>> getUpstreamProjects(List<MavenProject> projects,
+																						  ProjectDependencyGraph graph) {
+		Map<String, MavenProject> reactor = new HashMap<String, MavenProject>();
+		for (MavenProject p : projects) {
+			reactor.put(p.getGroupId() + ":" + p.getArtifactId(), p);
+		}
+		Map<MavenProject, List<MavenProject>> upstream = new IdentityHashMap<MavenProject, List<MavenProject>>();
+		for (MavenProject p : projects) {
+			upstream.put(p, new ArrayList<MavenProject>());
+		}
+		for (MavenProject p : projects) {
+			for (MavenProject u : (graph != null) ? graph.getUpstreamProjects(p, false) : getUpstreamProjects(p, reactor)) {
+				if (upstream.containsKey(u) && u != p && !upstream.get(p).contains(u)) {
+					upstream.get(p).add(u);
+				}
+			}
+		}
+		return upstream;
+	}
+
+	/**
+	 * Reactor projects given project refers to by its model (versions are not compared).
+	 *
+	 * @param reactor reactor projects by {@code groupId:artifactId}
+	 */
+	static List<MavenProject> getUpstreamProjects(MavenProject project, Map<String, MavenProject> reactor) {
+		List<String> refs = new ArrayList<String>();
+		Parent parent = project.getModel().getParent();
+		if (parent != null) {
+			refs.add(parent.getGroupId() + ":" + parent.getArtifactId());
+		}
+		for (Dependency d : project.getDependencies()) {
+			refs.add(d.getGroupId() + ":" + d.getArtifactId());
+		}
+		for (Plugin p : project.getBuildPlugins()) {
+			refs.add(p.getGroupId() + ":" + p.getArtifactId());
+		}
+		for (Extension e : project.getBuildExtensions()) {
+			refs.add(e.getGroupId() + ":" + e.getArtifactId());
+		}
+		List<MavenProject> result = new ArrayList<MavenProject>();
+		for (String ref : refs) {
+			MavenProject p = reactor.get(ref);
+			if (p != null) {
+				result.add(p);
+			}
+		}
+		return result;
+	}
+
+	static File canonical(File f) {
+		try {
+			return f.getCanonicalFile();
+		} catch (IOException e) {
+			return f.getAbsoluteFile();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d change(s) since %s", changes.size(), base);
+	}
+}
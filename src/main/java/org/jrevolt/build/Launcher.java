@@ -0,0 +1,300 @@
+package org.jrevolt.build;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+/**
+ * Runs {@code main()} of a class in the current JVM, the way {@code exec:java} does: in an isolated class loader (on
+ * top of the system class loader, so that Maven's own classes do not leak in) and in its own thread group. Waits for
+ * the main thread and all non-daemon threads it started.
+ * <p/>
+ * Alternatively, {@link #fork} runs the class in a child JVM.
+ * <p/>
+ * Applications running concurrently in one JVM share {@code System.out} and {@code System.err}; with
+ * {@link #installRedirection()}, output of threads set up by {@link #redirect} (and of all threads they start) goes to
+ * their own targets.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class Launcher {
+
+	static public ClassLoader newClassLoader(List<File> classpath) {
+		return newClassLoader(classpath, ClassLoader.getSystemClassLoader());
+	}
+
+	static public ClassLoader newClassLoader(List<File> classpath, ClassLoader parent) {
+		URL[] urls = new URL[classpath.size()];
+		try {
+			for (int i = 0; i < urls.length; i++) {
+				urls[i] = classpath.get(i).toURI().toURL();
+			}
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException(e);
+		}
+		return new URLClassLoader(urls, parent);
+	}
+
+	/**
+	 * Runs {@code mainClass.main(args)} and waits for all non-daemon threads of the application.
+	 *
+	 * @throws Throwable the first exception thrown by any of application threads
+	 */
+	static public void run(ClassLoader loader, String mainClass, String[] args) throws Throwable {
+		Method main;
+		try {
+			main = Class.forName(mainClass, true, loader).getMethod("main", String[].class);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Main class not found: " + mainClass, e);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("No main(String[]) method in " + mainClass, e);
+		}
+		if (!Modifier.isStatic(main.getModifiers())) {
+			throw new IllegalArgumentException("main(String[]) method is not static in " + mainClass);
+		}
+
+		Group group = new Group(mainClass);
+		Thread thread = new Thread(group, new Main(main, args), mainClass + ".main()");
+		thread.setContextClassLoader(loader);
+		thread.start();
+		thread.join();
+		joinNonDaemonThreads(group);
+
+		if (group.failure != null) {
+			throw group.failure;
+		}
+	}
+
+	/**
+	 * Runs main class in a child JVM, forwarding its standard streams to given ones ({@code stdin} may be {@code null}).
+	 *
+	 * @return exit code of the child JVM
+	 */
+	static public int fork(File java, List<String> jvmArgs, List<File> classpath, String mainClass, String[] args,
+								  OutputStream stdout, OutputStream stderr, InputStream stdin) throws IOException {
+		CommandLine cl = new CommandLine(java);
+		for (String arg : jvmArgs) {
+			cl.addArgument(arg, false);
+		}
+		cl.addArgument("-cp", false);
+		cl.addArgument(StringUtils.join(classpath, File.pathSeparator), false);
+		cl.addArgument(mainClass, false);
+		for (String arg : args) {
+			cl.addArgument(arg, false);
+		}
+		DefaultExecutor exec = new DefaultExecutor();
+		exec.setStreamHandler(new PumpStreamHandler(stdout, stderr, stdin));
+		exec.setExitValues(null);
+		return exec.execute(cl);
+	}
+
+	///
+
+	static private final InheritableThreadLocal<OutputStream[]> redirection = new InheritableThreadLocal<OutputStream[]>();
+	static private PrintStream[] original;
+
+	/**
+	 * Replaces {@code System.out} and {@code System.err} with streams honoring {@link #redirect}; output of other threads
+	 * goes to the original streams.
+	 */
+	static public synchronized void installRedirection() {
+		if (original != null) {
+			return;
+		}
+		original = new PrintStream[]{System.out, System.err};
+		System.setOut(new PrintStream(new Redirected(original[0], 0), true));
+		System.setErr(new PrintStream(new Redirected(original[1], 1), true));
+	}
+
+	/**
+	 * Restores original {@code System.out} and {@code System.err}.
+	 */
+	static public synchronized void uninstallRedirection() {
+		if (original == null) {
+			return;
+		}
+		System.out.flush();
+		System.err.flush();
+		System.setOut(original[0]);
+		System.setErr(original[1]);
+		original = null;
+	}
+
+	/**
+	 * Redirects output of the current thread, and threads started by it from now on. {@code null}s reset it.
+	 */
+	static public void redirect(OutputStream stdout, OutputStream stderr) {
+		if (stdout == null) {
+			redirection.remove();
+		} else {
+			redirection.set(new OutputStream[]{stdout, stderr});
+		}
+	}
+
+	static public boolean isRedirected() {
+		return redirection.get() != null;
+	}
+
+	static class Redirected extends OutputStream {
+
+		final OutputStream fallback;
+		final int index;
+
+		Redirected(OutputStream fallback, int index) {
+			this.fallback = fallback;
+			this.index = index;
+		}
+
+		OutputStream target() {
+			OutputStream[] targets = redirection.get();
+			return (targets != null) ? targets[index] : fallback;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+
+	/**
+	 * Writes complete lines, each with given prefix, to the target (shared by concurrent writers, so that their lines do
+	 * not interleave).
+	 */
+	static public class Prefixed extends OutputStream {
+
+		final OutputStream target;
+		final byte[] prefix;
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		public Prefixed(OutputStream target, String prefix) {
+			this.target = target;
+			this.prefix = prefix.getBytes();
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			line.write(b);
+			if (b == '\n') {
+				emit();
+			}
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				write(b[i]);
+			}
+		}
+
+		/**
+		 * Writes pending incomplete line, if any.
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			if (line.size() > 0) {
+				line.write('\n');
+				emit();
+			}
+		}
+
+		private void emit() throws IOException {
+			synchronized (target) {
+				target.write(prefix);
+				line.writeTo(target);
+				target.flush();
+			}
+			line.reset();
+		}
+	}
+
+	///
+
+	static void joinNonDaemonThreads(ThreadGroup group) throws InterruptedException {
+		boolean found = true;
+		while (found) {
+			found = false;
+			Thread[] threads = new Thread[group.activeCount() + 1];
+			int count = group.enumerate(threads);
+			for (int i = 0; i < count; i++) {
+				if (!threads[i].isDaemon()) {
+					found = true;
+					threads[i].join();
+				}
+			}
+		}
+	}
+
+	///
+
+	static class Main implements Runnable {
+
+		final Method main;
+		final String[] args;
+
+		Main(Method main, String[] args) {
+			this.main = main;
+			this.args = args;
+		}
+
+		@Override
+		public void run() {
+			try {
+				main.invoke(null, new Object[]{args});
+			} catch (InvocationTargetException e) {
+				Thread.currentThread().getThreadGroup().uncaughtException(Thread.currentThread(), e.getCause());
+			} catch (IllegalAccessException e) {
+				Thread.currentThread().getThreadGroup().uncaughtException(Thread.currentThread(), e);
+			}
+		}
+	}
+
+	/**
+	 * Collects the first uncaught exception of the application threads.
+	 */
+	static class Group extends ThreadGroup {
+
+		volatile Throwable failure;
+
+		Group(String name) {
+			super(name);
+		}
+
+		@Override
+		public synchronized void uncaughtException(Thread t, Throwable e) {
+			if (e instanceof ThreadDeath) {
+				return;
+			}
+			if (failure == null) {
+				failure = e;
+			} else {
+				super.uncaughtException(t, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,476 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileLock;
+import java.security.Permission;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived local JVM running main classes on behalf of {@link RunMojo} (daemon mode). Class loaders are cached per
+ * main artifact, so repeated runs of the same tool skip JVM startup, class loading and (mostly) JIT warm-up.
+ * <p/>
+ * Daemon listens on a loopback port; the port and a random token (required from clients) are published in a state
+ * file only readable by the owner. Each request carries the classpath and main class; daemon streams back standard
+ * output and error of the application (every thread it starts included) and the exit code.
+ * {@code System.exit()} of the application is trapped by a security manager, so the daemon only runs where one can be
+ * installed (Java 23 and older, with {@code -Djava.security.manager=allow} on 18+); elsewhere it refuses to start, and
+ * {@link RunMojo} falls back to fork mode (see {@link #canTrapExit}).
+ * <p/>
+ * Class loaders (at most {@code maxLoaders}, least recently used are dropped) unused for {@code idleMinutes} are
+ * closed, and the daemon exits once it has none left. Note that the application shares JVM-wide state (system
+ * properties, working directory, static state of its classes between runs) with other runs.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class LauncherDaemon {
+
+	static private final int OUT = 1;
+	static private final int ERR = 2;
+	static private final int EXIT = 3;
+
+	/**
+	 * Usage: {@code LauncherDaemon stateFile maxLoaders idleMinutes}
+	 */
+	public static void main(String[] args) throws Exception {
+		File state = new File(args[0]);
+		LauncherDaemon daemon = new LauncherDaemon(Integer.parseInt(args[1]), Integer.parseInt(args[2]) * 60 * 1000L);
+		daemon.serve(state);
+	}
+
+	final int maxLoaders;
+	final long idleMillis;
+	final Map<String, Loader> loaders = new LinkedHashMap<String, Loader>(16, 0.75f, true);
+	final AtomicInteger requests = new AtomicInteger();
+	volatile long lastRequest = System.currentTimeMillis();
+	String token;
+
+	LauncherDaemon(int maxLoaders, long idleMillis) {
+		this.maxLoaders = maxLoaders;
+		this.idleMillis = idleMillis;
+	}
+
+	void serve(final File state) throws IOException {
+		// only one daemon per state file; the loser of a startup race simply exits
+		FileLock lock = new RandomAccessFile(new File(state.getPath() + ".lock"), "rw").getChannel().tryLock();
+		if (lock == null) {
+			System.out.printf("Another daemon owns %s, exiting%n", state);
+			return;
+		}
+
+		Launcher.installRedirection();
+		try {
+			installExitTrap();
+		} catch (Exception e) {
+			// System.exit() of any request would kill the daemon and every other request running in it
+			System.out.printf("Cannot trap System.exit() (%s); daemon mode needs a JVM that can install a security "
+										+ "manager, exiting%n", e);
+			return;
+		}
+
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		token = new BigInteger(160, new SecureRandom()).toString(16);
+		publish(state, server.getLocalPort(), token);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				state.delete();
+			}
+		});
+		System.out.printf("Listening on %s, state: %s%n", server.getLocalSocketAddress(), state);
+
+		Thread housekeeper = new Thread("MavenExtension-daemon-housekeeper") {
+			@Override
+			public void run() {
+				housekeeping();
+			}
+		};
+		housekeeper.setDaemon(true);
+		housekeeper.start();
+
+		while (true) {
+			final Socket socket = server.accept();
+			lastRequest = System.currentTimeMillis();
+			Thread t = new Thread("MavenExtension-daemon-request-" + requests.incrementAndGet()) {
+				@Override
+				public void run() {
+					handle(socket);
+				}
+			};
+			t.start();
+		}
+	}
+
+	static void publish(File state, int port, String token) throws IOException {
+		File tmp = File.createTempFile(state.getName(), ".tmp", state.getParentFile());
+		tmp.setReadable(false, false);
+		tmp.setReadable(true, true);
+		FileUtils.writeStringToFile(tmp, String.format("%d %s%n", port, token), "UTF-8");
+		RewriteJournal.move(tmp, state);
+	}
+
+	void housekeeping() {
+		while (true) {
+			try {
+				Thread.sleep(Math.min(idleMillis, 60 * 1000L));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			synchronized (loaders) {
+				for (Iterator<Loader> it = loaders.values().iterator(); it.hasNext(); ) {
+					Loader l = it.next();
+					if (l.users == 0 && now - l.lastUsed > idleMillis) {
+						System.out.printf("Closing idle class loader of %s%n", l.key);
+						it.remove();
+						l.close();
+					}
+				}
+				if (loaders.isEmpty() && now - lastRequest > idleMillis) {
+					System.out.printf("Idle for %d min, exiting%n", idleMillis / 60000);
+					System.exit(0);
+				}
+			}
+		}
+	}
+
+	///
+
+	void handle(Socket socket) {
+		DataOutputStream out = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (!in.readUTF().equals(token)) {
+				return;
+			}
+			String key = in.readUTF();
+			List<File> classpath = new ArrayList<File>();
+			for (int i = in.readInt(); i > 0; i--) {
+				classpath.add(new File(in.readUTF()));
+			}
+			String mainClass = in.readUTF();
+			String[] args = new String[in.readInt()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = in.readUTF();
+			}
+
+			Channel ch = new Channel(out);
+			Loader loader = acquire(key, classpath);
+			int status;
+			Launcher.redirect(new Frames(ch, OUT), new Frames(ch, ERR));
+			try {
+				Launcher.run(loader.loader, mainClass, args);
+				status = 0;
+			} catch (ExitException e) {
+				status = e.status;
+			} catch (Throwable e) {
+				e.printStackTrace();
+				status = 1;
+			} finally {
+				Launcher.redirect(null, null);
+				release(loader);
+			}
+			ch.exit(status);
+		} catch (IOException e) {
+			System.out.printf("Request failed: %s%n", e);
+		} finally {
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(socket);
+		}
+	}
+
+	Loader acquire(String key, List<File> classpath) {
+		synchronized (loaders) {
+			Loader l = loaders.get(key);
+			if (l == null) {
+				// daemon's own classpath must not leak into applications
+				l = new Loader(key, Launcher.newClassLoader(classpath, ClassLoader.getSystemClassLoader().getParent()));
+				loaders.put(key, l);
+				while (loaders.size() > maxLoaders) {
+					Iterator<Loader> it = loaders.values().iterator();
+					Loader eldest = it.next();
+					it.remove();
+					eldest.evicted = true;
+					if (eldest.users == 0) {
+						eldest.close();
+					}
+				}
+			}
+			l.users++;
+			l.lastUsed = System.currentTimeMillis();
+			return l;
+		}
+	}
+
+	void release(Loader l) {
+		synchronized (loaders) {
+			l.users--;
+			l.lastUsed = System.currentTimeMillis();
+			if (l.evicted && l.users == 0) {
+				l.close();
+			}
+		}
+	}
+
+	static class Loader {
+
+		final String key;
+		final ClassLoader loader;
+		int users;
+		long lastUsed;
+		boolean evicted;
+
+		Loader(String key, ClassLoader loader) {
+			this.key = key;
+			this.loader = loader;
+		}
+
+		void close() {
+			if (loader instanceof Closeable) {
+				IOUtils.closeQuietly((Closeable) loader);
+			}
+		}
+	}
+
+	///
+
+	/**
+	 * Framed output of a single request: type (byte), length (int), data.
+	 */
+	static class Channel {
+
+		final DataOutputStream out;
+		boolean broken;
+
+		Channel(DataOutputStream out) {
+			this.out = out;
+		}
+
+		synchronized void write(int type, byte[] b, int off, int len) {
+			if (broken) {
+				return;
+			}
+			try {
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+			} catch (IOException e) {
+				broken = true; // client is gone, application runs on
+			}
+		}
+
+		synchronized void flush() {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				broken = true;
+			}
+		}
+
+		synchronized void exit(int status) throws IOException {
+			out.writeByte(EXIT);
+			out.writeInt(status);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Standard output or error of a request, sent to the client.
+	 */
+	static class Frames extends OutputStream {
+
+		final Channel channel;
+		final int type;
+
+		Frames(Channel channel, int type) {
+			this.channel = channel;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			channel.write(type, b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			channel.flush();
+		}
+	}
+
+	static class ExitException extends SecurityException {
+
+		final int status;
+
+		ExitException(int status) {
+			super("System.exit(" + status + ")");
+			this.status = status;
+		}
+	}
+
+	/**
+	 * Whether a daemon on given Java feature version can trap {@code System.exit()}: security manager can be installed
+	 * up to Java 23 (18 and newer need {@code -Djava.security.manager=allow}). Unknown version (0) is given a try.
+	 */
+	static public boolean canTrapExit(int javaVersion) {
+		return javaVersion < 24;
+	}
+
+	@SuppressWarnings("removal")
+	static void installExitTrap() {
+		System.setSecurityManager(new ExitTrap());
+	}
+
+	/**
+	 * Turns {@code System.exit()} called by a request into {@link ExitException}; permits everything else.
+	 */
+	@SuppressWarnings("removal")
+	static class ExitTrap extends SecurityManager {
+
+		@Override
+		public void checkExit(int status) {
+			if (Launcher.isRedirected()) {
+				throw new ExitException(status);
+			}
+		}
+
+		@Override
+		public void checkPermission(Permission perm) {
+		}
+
+		@Override
+		public void checkPermission(Permission perm, Object context) {
+		}
+	}
+
+	///
+
+	/**
+	 * Runs main class in the daemon identified by the state file, starting the daemon (using given command) if it is
+	 * not running. Blocks until the application finishes.
+	 *
+	 * @return exit code of the application
+	 */
+	static public int run(File state, List<String> command, String key, List<File> classpath, String mainClass,
+								 String[] args, OutputStream stdout, OutputStream stderr) throws IOException {
+		Socket socket = connect(state);
+		if (socket == null) {
+			start(state, command);
+			long deadline = System.currentTimeMillis() + 30 * 1000L;
+			while (socket == null && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				socket = connect(state);
+			}
+			if (socket == null) {
+				throw new IOException("Launcher daemon did not start, see " + getLogFile(state));
+			}
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(key);
+			out.writeInt(classpath.size());
+			for (File f : classpath) {
+				out.writeUTF(f.getAbsolutePath());
+			}
+			out.writeUTF(mainClass);
+			out.writeInt(args.length);
+			for (String arg : args) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] buf = new byte[8192];
+			while (true) {
+				int type = in.readByte();
+				int len = in.readInt();
+				if (type == EXIT) {
+					return len;
+				}
+				OutputStream target = (type == ERR) ? stderr : stdout;
+				while (len > 0) {
+					int n = in.read(buf, 0, Math.min(buf.length, len));
+					if (n < 0) {
+						throw new EOFException();
+					}
+					target.write(buf, 0, n);
+					len -= n;
+				}
+				target.flush();
+			}
+		} catch (EOFException e) {
+			throw new IOException("Launcher daemon terminated unexpectedly, see " + getLogFile(state));
+		} finally {
+			IOUtils.closeQuietly(socket);
+		}
+	}
+
+	static File getLogFile(File state) {
+		return new File(state.getPath() + ".log");
+	}
+
+	/**
+	 * @return connection to the running daemon (with the token sent), or {@code null} if there is none
+	 */
+	static Socket connect(File state) {
+		if (!state.isFile()) {
+			return null;
+		}
+		Socket socket = new Socket();
+		try {
+			String[] t = FileUtils.readFileToString(state, "UTF-8").trim().split(" ");
+			socket.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), Integer.parseInt(t[0])), 1000);
+			new DataOutputStream(socket.getOutputStream()).writeUTF(t[1]);
+			return socket;
+		} catch (Exception e) {
+			IOUtils.closeQuietly(socket);
+			return null;
+		}
+	}
+
+	/**
+	 * Starts daemon detached from this process (output goes to the log file next to the state file).
+	 */
+	static void start(File state, List<String> command) throws IOException {
+		FileUtils.forceMkdir(state.getParentFile());
+		// stale state file stays: it is replaced by whichever daemon wins the lock
+		ProcessBuilder pb = new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.appendTo(getLogFile(state)));
+		Process p = pb.start();
+		IOUtils.closeQuietly(p.getOutputStream());
+	}
+}
@@ -1,55 +1,86 @@
 package org.jrevolt.build;
 
-import static java.util.Collections.synchronizedList;
-
 import org.apache.maven.execution.AbstractExecutionListener;
 import org.apache.maven.execution.ExecutionEvent;
 import org.apache.maven.execution.ExecutionListener;
+import org.apache.maven.execution.MavenExecutionRequest;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.MavenProject;
 
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Fans out Maven execution events to registered listeners. Installed into the session's execution request (which
+ * also makes it session-scoped: there is no global registry to leak from), wrapping the original listener.
+ * <p/>
+ * Listeners come in two kinds:
+ * <ul>
+ * <li>listeners ({@link #addListener}) are called synchronously, on the thread that fired the event, in registration
+ * order; their exceptions propagate to Maven</li>
+ * <li>observers ({@link #addObserver}) are non-critical; they get an immutable {@link Event} snapshot, and if async
+ * dispatch is started ({@link #startAsync}), they get it on a dedicated thread through a bounded queue. When the
+ * queue is full, events are dropped rather than blocking the build. {@code SessionEnded} is never dropped, and the
+ * session does not end until observers have processed it (or until a timeout elapses).</li>
+ * </ul>
+ * Both lists are copy-on-write, so firing an event takes no lock.
+ *
  * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
  * @version $Id$
  */
 public class MavenExecutionListener extends AbstractExecutionListener {
 
-	static Map<MavenSession, MavenExecutionListener> listenerBySession = new HashMap<MavenSession, MavenExecutionListener>();
-
-	static public synchronized MavenExecutionListener forSession(MavenSession session) {
-		MavenExecutionListener listener = listenerBySession.get(session);
-		if (listener == null) {
-			listener = new MavenExecutionListener(session);
+	static private final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Returns listener installed in given session, installing new one if needed.
+	 */
+	static public MavenExecutionListener forSession(MavenSession session) {
+		MavenExecutionRequest request = session.getRequest();
+		synchronized (request) {
+			ExecutionListener current = request.getExecutionListener();
+			if (current instanceof MavenExecutionListener) {
+				return (MavenExecutionListener) current;
+			}
+			MavenExecutionListener listener = new MavenExecutionListener(request);
 			listener.install();
-			listenerBySession.put(session, listener);
+			return listener;
 		}
-		return listener;
 	}
 
-	MavenSession session;
+	final MavenExecutionRequest request;
 	ExecutionListener original;
-	List<ExecutionListener> listeners;
+	final List<ExecutionListener> listeners = new CopyOnWriteArrayList<ExecutionListener>();
+	final List<ExecutionListener> observers = new CopyOnWriteArrayList<ExecutionListener>();
+	volatile Dispatcher dispatcher;
 
-	private MavenExecutionListener(MavenSession session) {
-		this.session = session;
-		this.listeners = synchronizedList(new LinkedList<ExecutionListener>());
+	private MavenExecutionListener(MavenExecutionRequest request) {
+		this.request = request;
 	}
 
 	///
 
-	private synchronized void install() {
-		original = session.getRequest().getExecutionListener();
-		addListener(original);
-		session.getRequest().setExecutionListener(this);
+	private void install() {
+		original = request.getExecutionListener();
+		if (original != null) {
+			addListener(original);
+		}
+		request.setExecutionListener(this);
 	}
 
-	private synchronized void uninstall() {
-		removeListener(original);
-		session.getRequest().setExecutionListener(original);
+	private void uninstall() {
+		synchronized (request) {
+			if (original != null) {
+				removeListener(original);
+			}
+			if (request.getExecutionListener() == this) {
+				request.setExecutionListener(original);
+			}
+		}
 	}
 
 	public void addListener(ExecutionListener listener) {
@@ -60,127 +91,349 @@ public class MavenExecutionListener extends AbstractExecutionListener {
 		listeners.remove(listener);
 	}
 
+	public void addObserver(ExecutionListener observer) {
+		observers.add(observer);
+	}
+
+	public void removeObserver(ExecutionListener observer) {
+		observers.remove(observer);
+	}
+
+	/**
+	 * Starts delivering events to observers asynchronously, through a queue of given capacity. No-op if already
+	 * started.
+	 */
+	public synchronized void startAsync(int capacity) {
+		if (dispatcher == null) {
+			dispatcher = new Dispatcher(Math.max(1, capacity));
+			dispatcher.start();
+		}
+	}
+
 	///
 
+	private void fire(ExecutionEvent event) {
+		for (ExecutionListener listener : listeners) {
+			dispatch(listener, event);
+		}
+		Dispatcher d = dispatcher;
+		if (observers.isEmpty() && (d == null || event.getType() != ExecutionEvent.Type.SessionEnded)) {
+			return; // (dispatcher must always get SessionEnded to stop)
+		}
+		Event snapshot = new Event(event, (d != null) ? d.dropped.get() : 0);
+		if (d != null) {
+			d.enqueue(snapshot);
+		} else {
+			notifyObservers(snapshot);
+		}
+	}
+
+	private void notifyObservers(Event event) {
+		for (ExecutionListener observer : observers) {
+			try {
+				dispatch(observer, event);
+			} catch (RuntimeException e) {
+				MavenExtension.debug("%s failed on %s: %s", observer, event.getType(), e);
+			}
+		}
+	}
+
+	static void dispatch(ExecutionListener listener, ExecutionEvent event) {
+		switch (event.getType()) {
+			case ProjectDiscoveryStarted:
+				listener.projectDiscoveryStarted(event);
+				break;
+			case SessionStarted:
+				listener.sessionStarted(event);
+				break;
+			case SessionEnded:
+				listener.sessionEnded(event);
+				break;
+			case ProjectSkipped:
+				listener.projectSkipped(event);
+				break;
+			case ProjectStarted:
+				listener.projectStarted(event);
+				break;
+			case ProjectSucceeded:
+				listener.projectSucceeded(event);
+				break;
+			case ProjectFailed:
+				listener.projectFailed(event);
+				break;
+			case MojoSkipped:
+				listener.mojoSkipped(event);
+				break;
+			case MojoStarted:
+				listener.mojoStarted(event);
+				break;
+			case MojoSucceeded:
+				listener.mojoSucceeded(event);
+				break;
+			case MojoFailed:
+				listener.mojoFailed(event);
+				break;
+			case ForkStarted:
+				listener.forkStarted(event);
+				break;
+			case ForkSucceeded:
+				listener.forkSucceeded(event);
+				break;
+			case ForkFailed:
+				listener.forkFailed(event);
+				break;
+			case ForkedProjectStarted:
+				listener.forkedProjectStarted(event);
+				break;
+			case ForkedProjectSucceeded:
+				listener.forkedProjectSucceeded(event);
+				break;
+			case ForkedProjectFailed:
+				listener.forkedProjectFailed(event);
+				break;
+		}
+	}
+
+	///
 
 	@Override
 	public void forkedProjectFailed(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.forkedProjectFailed(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void forkedProjectSucceeded(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.forkedProjectSucceeded(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void forkedProjectStarted(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.forkedProjectStarted(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void mojoFailed(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.mojoFailed(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void mojoSucceeded(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.mojoSucceeded(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void mojoStarted(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.mojoStarted(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void mojoSkipped(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.mojoSkipped(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void forkFailed(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.forkFailed(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void forkSucceeded(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.forkSucceeded(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void forkStarted(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.forkStarted(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void projectFailed(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.projectFailed(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void projectSucceeded(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.projectSucceeded(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void projectStarted(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.projectStarted(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void projectSkipped(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.projectSkipped(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void sessionEnded(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.sessionEnded(event);
+		try {
+			fire(event);
+			Dispatcher d = dispatcher;
+			if (d != null) {
+				d.finish();
+			}
+		} finally {
+			uninstall();
 		}
-		listenerBySession.remove(event.getSession());
-		uninstall();
 	}
 
 	@Override
 	public void sessionStarted(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.sessionStarted(event);
-		}
+		fire(event);
 	}
 
 	@Override
 	public void projectDiscoveryStarted(ExecutionEvent event) {
-		for (ExecutionListener listener : listeners) {
-			listener.projectDiscoveryStarted(event);
+		fire(event);
+	}
+
+	///
+
+	/**
+	 * Immutable copy of an execution event, taken on the thread that fired it. (Maven's own events resolve the project
+	 * lazily from the session, which is meaningless once the build thread has moved on.)
+	 */
+	static public class Event implements ExecutionEvent {
+
+		final Type type;
+		final MavenSession session;
+		final MavenProject project;
+		final MojoExecution mojoExecution;
+		final Exception exception;
+		final long nanoTime = System.nanoTime();
+		final long timeMillis = System.currentTimeMillis();
+		final String thread = Thread.currentThread().getName();
+		final long threadId = Thread.currentThread().getId();
+		final long droppedEvents;
+
+		Event(ExecutionEvent event, long droppedEvents) {
+			this.droppedEvents = droppedEvents;
+			this.type = event.getType();
+			this.session = event.getSession();
+			this.project = event.getProject();
+			this.mojoExecution = event.getMojoExecution();
+			this.exception = event.getException();
+		}
+
+		@Override
+		public Type getType() {
+			return type;
+		}
+
+		@Override
+		public MavenSession getSession() {
+			return session;
+		}
+
+		@Override
+		public MavenProject getProject() {
+			return project;
+		}
+
+		@Override
+		public MojoExecution getMojoExecution() {
+			return mojoExecution;
+		}
+
+		@Override
+		public Exception getException() {
+			return exception;
+		}
+
+		/**
+		 * {@link System#nanoTime()} at the moment the event was fired.
+		 */
+		public long getNanoTime() {
+			return nanoTime;
+		}
+
+		/**
+		 * Wall clock time at the moment the event was fired.
+		 */
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		/**
+		 * Name of the thread that fired the event.
+		 */
+		public String getThread() {
+			return thread;
+		}
+
+		/**
+		 * Id of the thread that fired the event. (Unlike thread name, this is stable: Maven's parallel builder renames
+		 * its threads after the project being built.)
+		 */
+		public long getThreadId() {
+			return threadId;
+		}
+
+		/**
+		 * Number of events dropped so far on async queue overflow (see {@link #startAsync}). Final in
+		 * {@code SessionEnded}: observers that pair events up should not trust their results if it is non-zero.
+		 */
+		public long getDroppedEvents() {
+			return droppedEvents;
+		}
+	}
+
+	/**
+	 * Delivers observer events on a dedicated daemon thread.
+	 */
+	class Dispatcher extends Thread {
+
+		final BlockingQueue<Event> queue;
+		final AtomicLong dropped = new AtomicLong();
+
+		Dispatcher(int capacity) {
+			super("MavenExtension-events");
+			setDaemon(true);
+			this.queue = new ArrayBlockingQueue<Event>(capacity);
+		}
+
+		void enqueue(Event event) {
+			if (event.getType() == ExecutionEvent.Type.SessionEnded) {
+				try {
+					queue.put(event);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			} else if (!queue.offer(event)) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Waits for the dispatcher to deliver {@code SessionEnded} and stop.
+		 */
+		void finish() {
+			try {
+				join(SHUTDOWN_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (isAlive()) {
+				MavenExtension.log("Event observers did not finish in %d ms, abandoning", SHUTDOWN_TIMEOUT_MILLIS);
+			}
+			if (dropped.get() > 0) {
+				MavenExtension.log("Event queue overflow: %d event(s) dropped", dropped.get());
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				Event event;
+				do {
+					event = queue.take();
+					notifyObservers(event);
+				} while (event.getType() != ExecutionEvent.Type.SessionEnded);
+			} catch (InterruptedException e) {
+				// abandoned
+			}
 		}
 	}
 }
@@ -12,30 +12,44 @@ import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.AbstractMavenLifecycleParticipant;
 import org.apache.maven.MavenExecutionException;
+import org.apache.maven.RepositoryUtils;
 import org.apache.maven.execution.AbstractExecutionListener;
 import org.apache.maven.execution.ExecutionEvent;
 import org.apache.maven.execution.MavenSession;
-import org.apache.maven.model.Model;
+import org.apache.maven.model.Resource;
+import org.apache.maven.model.building.ModelProcessor;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
 import org.codehaus.mojo.versions.api.PomHelper;
 import org.codehaus.mojo.versions.rewriting.ModifiedPomXMLEventReader;
 import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
 import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.WriterFactory;
 import org.codehaus.stax2.XMLInputFactory2;
+import org.eclipse.aether.RepositorySystem;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -55,6 +69,35 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 
 	static public final String P_ENABLE = "MavenExtension";
 	static public final String P_DEBUG = "MavenExtension.debug";
+	static public final String P_GIT = "MavenExtension.git";         // git metadata reader: java (default) or exec
+	static public final String P_SCAN = "MavenExtension.scan";       // POM discovery: disk (default) or modules
+	static public final String P_SCAN_IGNORE = "MavenExtension.scan.ignore";
+	static public final String P_SCAN_GITIGNORE = "MavenExtension.scan.gitignore";
+	static public final String P_SCAN_THREADS = "MavenExtension.scan.threads";
+	static public final String P_STRATEGY = "MavenExtension.strategy"; // version stamping: rewrite (default) or memory
+	static public final String P_REWRITE_THREADS = "MavenExtension.rewrite.threads";
+	static public final String P_CACHE = "MavenExtension.cache";     // persistent caches (POM index, build info): true (default)
+	static public final String P_CACHE_DIR = "MavenExtension.cache.dir";
+	static public final String P_EVENTS_ASYNC = "MavenExtension.events.async"; // async delivery to event observers
+	static public final String P_EVENTS_QUEUE = "MavenExtension.events.queue";
+	static public final String P_PROFILE = "MavenExtension.profile"; // mojo/project timing report: false (default)
+	static public final String P_PROFILE_TRACE = "MavenExtension.profile.trace";
+	static public final String P_PROFILE_TOP = "MavenExtension.profile.top";
+	static public final String P_PROFILE_REACTOR = "MavenExtension.profile.reactor";
+	static public final String P_INCREMENTAL = "MavenExtension.incremental"; // base ref of incremental build, or "last"
+	static public final String P_INCREMENTAL_IGNORE = "MavenExtension.incremental.ignore";
+	static public final String P_INCREMENTAL_ALSO_MAKE = "MavenExtension.incremental.alsoMake";
+	static public final String P_BUILD_CACHE = "MavenExtension.buildCache"; // build output cache: false (default)
+	static public final String P_BUILD_CACHE_DIR = "MavenExtension.buildCache.dir";
+	static public final String P_BUILD_CACHE_SIZE = "MavenExtension.buildCache.size";
+	static public final String P_BUILD_ID_MODE = "MavenExtension.buildId"; // default build.id: random (default) or commit
+	static public final String P_BUILD_INFO = "MavenExtension.buildInfo"; // build-info.properties resources: false (default)
+	static public final String P_BUILD_COUNTER_MODE = "MavenExtension.buildCounter"; // default build.counter: distance (default) or id
+	static public final String P_BUILD_COUNTER_LIMIT = "MavenExtension.buildCounter.limit";
+	static public final String P_REPOSITORIES = "MavenExtension.repositories"; // versions per nested Git repository: false (default)
+	static public final String P_DEPLOY_DEDUP = "MavenExtension.deployDedup"; // skip already deployed release artifacts: false (default)
+	static public final String P_PREFETCH = "MavenExtension.prefetch"; // background dependency/plugin download: false (default)
+	static public final String P_PREFETCH_THREADS = "MavenExtension.prefetch.threads";
 	static public final String P_COMMIT = "build.commit";
 	static public final String P_COMMIT_SIMPLE = "build.commit.simple";
 	static public final String P_BRANCH = "build.branch";
@@ -66,32 +109,121 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 	static public final String P_VERSION = "build.version";
 	static public final String P_TYPE = "build.type";
 
-	static public final String POM_BACKUP_FNAME = ".pom.xml";
-
 	static enum BuildType {SNAPSHOT, RELEASE}
 
+	static enum GitMode {java, exec}
+
+	static enum Strategy {rewrite, memory}
+
+	static enum BuildIdMode {random, commit}
+
+	static enum BuildCounterMode {distance, id}
+
+	static private final Pattern BUILD_TAG = Pattern.compile("^build-.*");
+	static private final Pattern RELEASE_TAG = Pattern.compile("^[0-9].*");
+	// install/deploy phase, or their goal invoked directly (by prefix or plugin coordinates)
+	static private final Pattern PUBLISHING_GOAL = Pattern.compile(
+			"(install|deploy)|(.*:)?(install|deploy|maven-install-plugin|maven-deploy-plugin)(:[^:]+)?:(install|deploy)");
+
 	static public boolean DEBUG = false;
 
-	List<Runnable> cleanup = new LinkedList<Runnable>();
+	/**
+	 * Journals of sessions with rewritten POMs, to be restored.
+	 */
+	final List<RewriteJournal> journals = Collections.synchronizedList(new LinkedList<RewriteJournal>());
+
+	/**
+	 * Changes the reactor of the current session is restricted to, if built incrementally.
+	 */
+	IncrementalReactor incremental;
+
+	/**
+	 * Build output cache of the current session, if enabled.
+	 */
+	BuildOutputCache buildCache;
+
+	/**
+	 * Build metadata of the current session.
+	 */
+	BuildInfo buildInfo;
+
+	@Requirement
+	MavenProjectHelper projectHelper;
+
+	@Requirement
+	BuildInfoRegistry buildInfoRegistry;
+
+	@Requirement
+	RepositorySystem repositorySystem;
+
+	@Requirement
+	ModelProcessor modelProcessor;
 
 	@Override
 	public void afterSessionStart(MavenSession session) throws MavenExecutionException {
+		incremental = null;
+		buildCache = null;
+		buildInfo = null;
+
 		if (isEnabled(session)) return;
 
 		DEBUG = Boolean.valueOf(getProperty(session, P_DEBUG, "false"));
 
-		String buildId = getProperty(session, P_BUILD_ID, UUID.randomUUID().toString().replace("-", ""));
-		String buildCounter = getProperty(session, P_BUILD_COUNTER, buildId);
+		Strategy strategy = Strategy.valueOf(getProperty(session, P_STRATEGY, Strategy.rewrite.name()));
+		if (strategy == Strategy.memory) {
+			checkMemoryStrategy(session);
+		}
 
-		String detectedCommitId = detectGitCommit();
-		String detectedBranch = detectGitBranch();
-		String detectedTag = detectReleaseTag(detectedCommitId);
+		if (Boolean.valueOf(getProperty(session, P_EVENTS_ASYNC, "false"))) {
+			MavenExecutionListener.forSession(session).startAsync(
+					Integer.parseInt(getProperty(session, P_EVENTS_QUEUE, "4096")));
+		}
+
+		if (Boolean.valueOf(getProperty(session, P_PROFILE, "false"))) {
+			MavenExecutionListener.forSession(session).addObserver(newBuildTimer(session));
+			if (Boolean.valueOf(getProperty(session, P_PROFILE_REACTOR, "true"))) {
+				MavenExecutionListener.forSession(session).addObserver(
+						new ReactorAnalyzer(Integer.parseInt(getProperty(session, P_PROFILE_TOP, "10"))));
+			}
+		}
+
+		GitRepository git = openGitRepository(session);
+		BuildInfoCache infoCache = openBuildInfoCache(session, git);
+		String infoKey = (infoCache != null) ? getBuildInfoKey(session, git) : null;
+		Map<String, String> cached = (infoKey != null) ? infoCache.get(infoKey) : null;
+
+		String detectedCommitId, detectedBranch, detectedTag;
+		if (cached != null) {
+			debug("Using cached build metadata: %s", cached);
+			detectedCommitId = cached.get(P_COMMIT);
+			detectedBranch = cached.get(P_BRANCH);
+			detectedTag = cached.get(P_TAG);
+		} else {
+			detectedCommitId = detectGitCommit(git);
+			detectedBranch = detectGitBranch(git);
+			detectedTag = detectReleaseTag(git, detectedCommitId);
+		}
 
 		String commitId = getProperty(session, P_COMMIT, detectedCommitId);
 		String shortCommitId = getProperty(session, P_COMMIT_SIMPLE, StringUtils.left(commitId, 10));
 		String branch = getProperty(session, P_BRANCH, detectedBranch);
 		String tag = getProperty(session, P_TAG, detectedTag);
 
+		// deterministic build id keeps rebuilds of the same commit identical (versions, build-info.properties)
+		BuildIdMode buildIdMode = BuildIdMode.valueOf(getProperty(session, P_BUILD_ID_MODE, BuildIdMode.random.name()));
+		String buildId = getProperty(session, P_BUILD_ID,
+											  (buildIdMode == BuildIdMode.commit && shortCommitId != null)
+													  ? shortCommitId
+													  : UUID.randomUUID().toString().replace("-", ""));
+		String buildCounter = getProperty(session, P_BUILD_COUNTER);
+		if (buildCounter == null) {
+			BuildCounterMode counterMode = BuildCounterMode.valueOf(
+					getProperty(session, P_BUILD_COUNTER_MODE, BuildCounterMode.distance.name()));
+			String distance = (counterMode == BuildCounterMode.distance && commitId != null
+					&& commitId.equals(detectedCommitId)) ? getCommitDistance(session, git, commitId) : null;
+			buildCounter = (distance != null) ? distance : buildId;
+		}
+
 		// simple branch name is here to support GitFlow's feature/*, hotfix/* and release/* branches
 		// we cannot use full branch name in artifact's version
 		String simpleBranchName = getProperty(session, P_BRANCH_SIMPLE,
@@ -99,16 +231,27 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 
 		String type = getProperty(session, P_TYPE);
 		BuildType buildType = (type != null) ? BuildType.valueOf(type) : null;
+		BuildType requestedType = buildType;
 
 		if (buildType == null) {
 			// warning: hardcoded assumption: release branch name == 'master'
-			buildType = ("master".equals(simpleBranchName) && StringUtils.trimToNull(tag) != null)
+			buildType = (cached != null) ? BuildType.valueOf(cached.get(P_TYPE))
+					: ("master".equals(simpleBranchName) && StringUtils.trimToNull(tag) != null)
 					? BuildType.RELEASE
 					: BuildType.SNAPSHOT;
-			type = getProperty(session, P_TYPE, buildType.name());
+			type = buildType.name();
 			log("Build type not specified. Autodetecting: %s", buildType);
 		}
 
+		if (infoKey != null && cached == null) {
+			Map<String, String> info = new LinkedHashMap<String, String>();
+			info.put(P_COMMIT, detectedCommitId);
+			info.put(P_BRANCH, detectedBranch);
+			info.put(P_TAG, detectedTag);
+			info.put(P_TYPE, buildType.name());
+			infoCache.put(infoKey, info);
+		}
+
 		boolean isDevelopment = branch.matches("^(develop|feature/.*)$");
 		boolean isBugfix = branch.matches("^(release|hotfix)/.*$");
 		boolean isRelease = buildType.equals(BuildType.RELEASE);
@@ -130,44 +273,96 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 				: (isRelease) ? projectVersion
 				: buildId;
 
-		log("%s: %s", P_BUILD_ID, buildId);
-		log("%s: %s", P_BUILD_COUNTER, buildCounter);
-		log("%s: %s", P_COMMIT, commitId);
-		log("%s: %s", P_COMMIT_SIMPLE, shortCommitId);
-		log("%s: %s", P_BRANCH, branch);
-		log("%s: %s", P_BRANCH_SIMPLE, simpleBranchName);
-		log("%s: %s", P_TAG, tag);
-		log("%s: %s", P_TC_BUILDNUM, buildNumber);
-		log("%s: %s", P_TYPE, type);
-		log("%s: %s", P_VERSION, version);
+		Map<String, String> properties = new LinkedHashMap<String, String>();
+		properties.put(P_BUILD_ID, buildId);
+		properties.put(P_BUILD_COUNTER, buildCounter);
+		properties.put(P_COMMIT, commitId);
+		properties.put(P_COMMIT_SIMPLE, shortCommitId);
+		properties.put(P_BRANCH, branch);
+		properties.put(P_BRANCH_SIMPLE, simpleBranchName);
+		properties.put(P_TAG, tag);
+		properties.put(P_TC_BUILDNUM, buildNumber);
+		properties.put(P_TYPE, type);
+		properties.put(P_VERSION, version);
+		for (Map.Entry<String, String> e : properties.entrySet()) {
+			log("%s: %s", e.getKey(), e.getValue());
+		}
+		buildInfo = new BuildInfo(properties, projectVersion);
+		publish(session, buildInfo);
 
 		log("project.version: %s", projectVersion);
 
 		// this is for teamcity; it will parse this line and extract the build number
 		log("##teamcity[buildNumber '%s']", buildNumber);
 
-		Model model;
+		String incrementalBase = getProperty(session, P_INCREMENTAL);
+		if (incrementalBase != null) {
+			incremental = openIncrementalReactor(session, git, incrementalBase, commitId);
+		}
+
+		if (Boolean.valueOf(getProperty(session, P_BUILD_CACHE, "false"))) {
+			if (isRelease) {
+				log("Build cache is disabled in RELEASE build (restored projects would not be deployed)");
+			} else {
+				buildCache = openBuildOutputCache(session);
+			}
+		}
+
+		if (Boolean.valueOf(getProperty(session, P_DEPLOY_DEDUP, "false"))) {
+			if (commitId == null) {
+				log("Deploy deduplication is disabled: commit is unknown");
+			} else {
+				MavenExecutionListener.forSession(session).addListener(
+						new DeployDeduplicator(repositorySystem, projectHelper, commitId));
+			}
+		}
+
+		recoverPoms();
+
+		final PomScanner scanner = newPomScanner(session, new File(session.getExecutionRootDirectory()));
+		final PomIndex index = openPomIndex(session, scanner);
+
+		List<File> poms = findPoms(scanner, index);
+
+		String rootVersion;
 		try {
-			File fpom = new File(session.getExecutionRootDirectory(), "pom.xml");
-			ModifiedPomXMLEventReader pom = newModifiedPomXER(PomHelper.readXmlFile(fpom));
-			model = PomHelper.getRawModel(pom);
-		} catch (MojoExecutionException e) {
-			throw new UnsupportedOperationException(e);
+			rootVersion = index.get(scanner.getRootPom()).getVersion();
 		} catch (IOException e) {
 			throw new UnsupportedOperationException(e);
 		}
 
-		List<File> poms = new LinkedList<File>();
-		findPoms(new File(session.getExecutionRootDirectory()), poms);
+		Map<File, String> versions = WorkspaceRepositories.assign(poms, projectVersion);
+		if (Boolean.valueOf(getProperty(session, P_REPOSITORIES, "false"))) {
+			assignRepositoryVersions(session, poms, versions, requestedType, buildId);
+		}
 
-		for (File pom : poms) {
-			rewritePOM(session, pom, model, projectVersion);
+		if (strategy == Strategy.memory) {
+			// nothing is written: reactor models get the version as they are read
+			final VersionModelProcessor processor = (VersionModelProcessor) modelProcessor;
+			processor.install(session, new VersionModelProcessor.Injection(versions, rootVersion));
+			debug("POMs: %d, parsed: %d, strategy: %s", poms.size(), index.getParsedCount(), strategy);
+			startPrefetch(session, poms);
+			MavenExecutionListener.forSession(session).addListener(new AbstractExecutionListener() {
+				@Override
+				public void sessionEnded(ExecutionEvent event) {
+					processor.uninstall(event.getSession());
+					index.save(scanner);
+				}
+			});
+			return;
 		}
 
+		final RewriteJournal journal = rewritePoms(session, poms, index, scanner.getRootPom(), rootVersion, versions);
+
+		debug("POMs: %d, parsed: %d, strategy: %s", poms.size(), index.getParsedCount(), strategy);
+
+		startPrefetch(session, poms);
+
 		MavenExecutionListener.forSession(session).addListener(new AbstractExecutionListener() {
 			@Override
 			public void sessionEnded(ExecutionEvent event) {
-				restorePoms();
+				restorePoms(journal);
+				index.save(scanner);
 			}
 		});
 
@@ -179,51 +374,521 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 		});
 	}
 
+	/**
+	 * In incremental build, restricts the reactor to projects affected by changes since the base commit. Then removes
+	 * projects restored from the build output cache.
+	 */
+	@Override
+	public void afterProjectsRead(MavenSession session) throws MavenExecutionException {
+		if (buildInfo == null || isEnabled(session)) {
+			return;
+		}
+		List<MavenProject> projects = session.getProjects();
+		List<MavenProject> selected = projects;
+
+		boolean buildInfoResources = Boolean.valueOf(getProperty(session, P_BUILD_INFO, "false"));
+		if (buildInfoResources) {
+			for (MavenProject p : projects) {
+				addBuildInfoResource(p);
+			}
+		}
+
+		if (incremental != null) {
+			selected = incremental.select(
+					projects, session.getProjectDependencyGraph(),
+					Pattern.compile(getProperty(session, P_INCREMENTAL_IGNORE, IncrementalReactor.DEFAULT_IGNORE)),
+					Boolean.valueOf(getProperty(session, P_INCREMENTAL_ALSO_MAKE, "false")));
+			log("Incremental build: %d of %d project(s) affected by %s", selected.size(), projects.size(), incremental);
+			for (MavenProject p : selected) {
+				debug("Affected: %s", p.getId());
+			}
+		}
+
+		if (buildCache != null) {
+			long started = System.currentTimeMillis();
+			Properties environment = new Properties();
+			environment.putAll(session.getUserProperties());
+			if (buildInfoResources) {
+				// generated build-info.properties is an input, even if build.* properties are not
+				environment.setProperty("build-info.properties", buildInfo.getProperties().toString());
+			}
+			buildCache.computeKeys(selected, IncrementalReactor.getUpstreamProjects(selected, session.getProjectDependencyGraph()),
+										  environment, Runtime.getRuntime().availableProcessors());
+			List<MavenProject> remaining = new ArrayList<MavenProject>(selected.size());
+			for (MavenProject p : selected) {
+				if (buildCache.restore(p, projectHelper)) {
+					log("Restored from build cache: %s", p.getId());
+				} else {
+					remaining.add(p);
+				}
+			}
+			debug("Build cache lookup of %d project(s) took %d msec", selected.size(), System.currentTimeMillis() - started);
+			selected = remaining;
+		}
+
+		if (selected.isEmpty()) {
+			// Maven insists on a non-empty reactor; the top level project is the cheapest one to keep
+			selected = projects.subList(0, Math.min(1, projects.size()));
+		}
+		session.setProjects(selected);
+	}
+
 	///
 
+	/**
+	 * Makes build metadata available to other components (see {@link BuildInfoRegistry}) and, as {@code build.*} user
+	 * properties, to POM interpolation. Nothing is written to JVM-wide system properties, which would leak into later
+	 * sessions of a long-lived Maven process.
+	 */
+	void publish(MavenSession session, BuildInfo info) {
+		buildInfoRegistry.register(session, info);
+		for (Map.Entry<String, String> e : info.getProperties().entrySet()) {
+			session.getUserProperties().setProperty(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Generates {@code META-INF/maven/<groupId>/<artifactId>/build-info.properties} into
+	 * {@code target/generated-resources/MavenExtension} and registers the directory as a resource of the project. The
+	 * file is only rewritten when its content changes, so that unchanged projects are not repackaged.
+	 */
+	void addBuildInfoResource(MavenProject project) throws MavenExecutionException {
+		File dir = new File(project.getBuild().getDirectory(), "generated-resources/MavenExtension");
+		File file = new File(dir, String.format("META-INF/maven/%s/%s/build-info.properties",
+															 project.getGroupId(), project.getArtifactId()));
+		try {
+			byte[] content = buildInfo.toPropertiesFile(project.getGroupId(), project.getArtifactId(), project.getVersion())
+					.getBytes("ISO-8859-1");
+			if (!file.isFile() || !Arrays.equals(content, FileUtils.readFileToByteArray(file))) {
+				FileUtils.forceMkdir(file.getParentFile());
+				File tmp = File.createTempFile(file.getName(), RewriteJournal.TEMP_SUFFIX, file.getParentFile());
+				try {
+					FileUtils.writeByteArrayToFile(tmp, content);
+					RewriteJournal.move(tmp, file);
+				} finally {
+					FileUtils.deleteQuietly(tmp);
+				}
+				debug("Updated %s", file);
+			}
+		} catch (IOException e) {
+			throw new MavenExecutionException("Cannot write " + file + ": " + e.getMessage(), e);
+		}
+		Resource resource = new Resource();
+		resource.setDirectory(dir.getPath());
+		project.addResource(resource);
+	}
+
+	/**
+	 * Fails unless {@link VersionModelProcessor} is the model processor in effect (i.e. the extension is loaded as a core
+	 * extension), and if the build would install or deploy: those publish {@code pom.xml} as it is on disk, with the
+	 * original version.
+	 */
+	void checkMemoryStrategy(MavenSession session) throws MavenExecutionException {
+		if (!(modelProcessor instanceof VersionModelProcessor)) {
+			throw new MavenExecutionException(String.format(
+					"%s=%s requires MavenExtension loaded as a core extension (lib/ext or maven.ext.class.path), model processor in effect is %s",
+					P_STRATEGY, Strategy.memory, modelProcessor.getClass().getName()), (Throwable) null);
+		}
+		for (String goal : session.getGoals()) {
+			if (PUBLISHING_GOAL.matcher(goal).matches()) {
+				throw new MavenExecutionException(String.format(
+						"%s=%s cannot be used with '%s': the published pom.xml would keep the original version (use %s)",
+						P_STRATEGY, Strategy.memory, goal, Strategy.rewrite), (Throwable) null);
+			}
+		}
+	}
+
 	private boolean isEnabled(MavenSession session) {
 		return !getProperty(session, P_ENABLE, Boolean.toString(false)).equals(Boolean.toString(true));
 	}
 
-	void findPoms(final File dir, final List<File> poms) {
-		final Set<String> ignores = new HashSet<String>(Arrays.asList("src", "target"));
-		dir.listFiles(new FileFilter() {
+	PomScanner newPomScanner(MavenSession session, File dir) {
+		return new PomScanner(dir)
+				.mode(PomScanner.Mode.valueOf(getProperty(session, P_SCAN, PomScanner.Mode.disk.name())))
+				.ignore(getProperty(session, P_SCAN_IGNORE, PomScanner.DEFAULT_IGNORES))
+				.gitignore(Boolean.valueOf(getProperty(session, P_SCAN_GITIGNORE, "false")))
+				.threads(Integer.parseInt(getProperty(session, P_SCAN_THREADS,
+																  Integer.toString(Runtime.getRuntime().availableProcessors()))));
+	}
+
+	/**
+	 * Loads persistent POM index from the cache directory. If caching is disabled, the index lives only in memory and
+	 * is never saved.
+	 */
+	PomIndex openPomIndex(MavenSession session, PomScanner scanner) {
+		File root = scanner.getRootPom().getParentFile();
+		if (!Boolean.valueOf(getProperty(session, P_CACHE, "true"))) {
+			return new PomIndex(new File(root, "pom-index"), root, scanner.getKey()) {
+				@Override
+				public synchronized void save(PomScanner scanner) {
+				}
+			};
+		}
+		return PomIndex.load(new File(getCacheDir(session), "pom-index"), root, scanner.getKey());
+	}
+
+	/**
+	 * Per-workspace directory for persistent caches. Kept outside of {@code target/} by default, so that it survives
+	 * {@code mvn clean}.
+	 */
+	File getCacheDir(MavenSession session) {
+		File root = new File(session.getExecutionRootDirectory()).getAbsoluteFile();
+		String dflt = new File(System.getProperty("user.home"), String.format(
+				".m2/MavenExtension/%s-%08x", root.getName(), root.getPath().hashCode())).getPath();
+		File dir = new File(getProperty(session, P_CACHE_DIR, dflt));
+		dir.mkdirs();
+		return dir;
+	}
+
+	BuildTimer newBuildTimer(MavenSession session) {
+		String trace = getProperty(session, P_PROFILE_TRACE, "target/MavenExtension-trace.json");
+		File traceFile = trace.isEmpty() ? null : new File(trace);
+		if (traceFile != null && !traceFile.isAbsolute()) {
+			traceFile = new File(session.getExecutionRootDirectory(), trace);
+		}
+		int top = Integer.parseInt(getProperty(session, P_PROFILE_TOP, "10"));
+		// reactor is not known yet; two events per project and mojo, enough for ~100 projects with ~20 mojos each
+		return new BuildTimer(traceFile, top, 4096);
+	}
+
+	/**
+	 * Opens build metadata cache, unless caching is disabled or Git metadata is not read in-process (there is no cheap
+	 * way to tell whether the repository has changed then).
+	 */
+	BuildInfoCache openBuildInfoCache(MavenSession session, GitRepository git) {
+		if (git == null || !Boolean.valueOf(getProperty(session, P_CACHE, "true"))) {
+			return null;
+		}
+		return BuildInfoCache.forFile(new File(getCacheDir(session), "build-info"));
+	}
+
+	/**
+	 * Derived build counter: commit distance from given commit to the last release tag ({@link CommitDistance}).
+	 *
+	 * @return distance, or {@code null} if it cannot be determined in-process
+	 */
+	String getCommitDistance(MavenSession session, GitRepository git, String commitId) {
+		if (git == null) {
+			return null;
+		}
+		CommitDistance distances = Boolean.valueOf(getProperty(session, P_CACHE, "true"))
+				? CommitDistance.forFile(new File(getCacheDir(session), "commit-distance"))
+				: new CommitDistance(null);
+		int limit = Integer.parseInt(getProperty(session, P_BUILD_COUNTER_LIMIT, "100000"));
+		try {
+			long started = System.nanoTime();
+			int distance = distances.get(
+					git, commitId, CommitDistance.getReleaseCommits(TagIndex.forRepository(git)), limit);
+			debug("Commit distance: %d (%d ms)", distance, (System.nanoTime() - started) / 1000000);
+			return (distance >= 0) ? Integer.toString(distance) : null;
+		} catch (IOException e) {
+			debug("%s: %s. Commit distance is not available", git, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Build metadata cache key: repository state and user overrides of properties the cached build type is derived
+	 * from.
+	 *
+	 * @return key, or {@code null} if repository state cannot be determined
+	 */
+	String getBuildInfoKey(MavenSession session, GitRepository git) {
+		try {
+			return BuildInfoCache.key(git.getStateStamp(),
+											  getProperty(session, P_BRANCH), getProperty(session, P_BRANCH_SIMPLE),
+											  getProperty(session, P_TAG), getProperty(session, P_TYPE));
+		} catch (IOException e) {
+			debug("%s: %s. Build metadata will not be cached", git, e);
+			return null;
+		}
+	}
+
+	BuildOutputCache openBuildOutputCache(MavenSession session) {
+		String dflt = new File(System.getProperty("user.home"), ".m2/MavenExtension/build-cache").getPath();
+		final BuildOutputCache cache = new BuildOutputCache(
+				new File(getProperty(session, P_BUILD_CACHE_DIR, dflt)),
+				Long.parseLong(getProperty(session, P_BUILD_CACHE_SIZE, "4096")) * 1024 * 1024);
+		cache.dir.mkdirs();
+		MavenExecutionListener.forSession(session).addListener(new AbstractExecutionListener() {
+			@Override
+			public void projectSucceeded(ExecutionEvent event) {
+				cache.store(event.getProject());
+			}
+
+			@Override
+			public void sessionEnded(ExecutionEvent event) {
+				cache.evict();
+				log("Build cache: %s", cache.getStatistics());
+			}
+		});
+		return cache;
+	}
+
+	/**
+	 * Starts background download of dependencies and plugins declared in given POMs ({@link #P_PREFETCH}) and stops it
+	 * (whatever is left) when the session ends.
+	 */
+	void startPrefetch(MavenSession session, List<File> poms) {
+		if (!Boolean.valueOf(getProperty(session, P_PREFETCH, "false"))) {
+			return;
+		}
+		if (session.isOffline()) {
+			debug("Prefetch is disabled in offline mode");
+			return;
+		}
+		Properties properties = new Properties();
+		properties.putAll(session.getSystemProperties());
+		properties.putAll(session.getUserProperties());
+		final DependencyPrefetcher prefetcher = new DependencyPrefetcher(
+				repositorySystem, session.getRepositorySession(),
+				RepositoryUtils.toRepos(session.getRequest().getRemoteRepositories()),
+				RepositoryUtils.toRepos(session.getRequest().getPluginArtifactRepositories()),
+				properties, Integer.parseInt(getProperty(session, P_PREFETCH_THREADS, "8")));
+		MavenExecutionListener.forSession(session).addListener(new AbstractExecutionListener() {
 			@Override
-			public boolean accept(File pathname) {
-				// do not scan out directories; warning: QDH: assuming name 'target'
-				if (pathname.isDirectory() && !ignores.contains(pathname.getName())) {
-					findPoms(pathname, poms);
-				} else if (pathname.isFile() && pathname.getName().equals("pom.xml")) {
-					poms.add(pathname);
+			public void sessionEnded(ExecutionEvent event) {
+				prefetcher.stop();
+			}
+		});
+		prefetcher.start(poms);
+	}
+
+	/**
+	 * Prepares incremental build relative to the merge base of {@code HEAD} and given ref ({@code last} stands for the
+	 * commit of the last successful build of this workspace, which is recorded when the session ends).
+	 *
+	 * @return changes, or {@code null} if the whole reactor has to be built
+	 */
+	IncrementalReactor openIncrementalReactor(MavenSession session, GitRepository git, String ref, final String commitId) {
+		final File last = new File(getCacheDir(session), "last-build");
+		MavenExecutionListener.forSession(session).addListener(new AbstractExecutionListener() {
+			@Override
+			public void sessionEnded(ExecutionEvent event) {
+				if (commitId == null || event.getSession().getResult().hasExceptions()) {
+					return;
+				}
+				try {
+					FileUtils.writeStringToFile(last, commitId, "UTF-8");
+				} catch (IOException e) {
+					log("Cannot record last successful build: %s", e);
 				}
-				return false;
 			}
 		});
+		if (ref.equals("last")) {
+			try {
+				ref = last.isFile() ? trimToNull(FileUtils.readFileToString(last, "UTF-8")) : null;
+			} catch (IOException e) {
+				ref = null;
+			}
+			if (ref == null) {
+				log("Incremental build: no successful build recorded yet. Building all projects");
+				return null;
+			}
+		}
+		IncrementalReactor changes = detectChanges(git, ref);
+		if (changes == null) {
+			log("Incremental build: cannot compare with %s. Building all projects", ref);
+		}
+		return changes;
+	}
+
+	/**
+	 * Lists files changed since the merge base of {@code HEAD} and given ref: committed, uncommitted and untracked (not
+	 * ignored) ones. Uses {@code git} executable, as the in-process reader does not read the index.
+	 *
+	 * @return changes, or {@code null} if they cannot be determined
+	 */
+	IncrementalReactor detectChanges(GitRepository git, String ref) {
+		String base = trimToNull(execute("git merge-base HEAD " + ref));
+		String workTree = (git != null) ? git.getWorkTree().getPath() : trimToNull(execute("git rev-parse --show-toplevel"));
+		if (base == null || workTree == null) {
+			return null;
+		}
+		String diff = execute("git diff --name-only -z --no-renames " + base);
+		String untracked = execute("git ls-files -z --others --exclude-standard --full-name");
+		if (diff == null || untracked == null) {
+			return null;
+		}
+		List<String> changes = new ArrayList<String>();
+		for (String path : (diff + '\0' + untracked).split("\0")) {
+			if (!path.isEmpty()) {
+				changes.add(path);
+			}
+		}
+		debug("Changes since %s (%s): %s", base, ref, changes);
+		return new IncrementalReactor(new File(workTree), base, changes);
 	}
 
-	synchronized void restorePoms() {
-		for (Runnable r : cleanup) {
-			r.run();
+	List<File> findPoms(PomScanner scanner, PomIndex index) {
+		try {
+			List<File> poms = index.findPoms(scanner);
+			debug("Found %d POM(s) in %s (%s)", poms.size(), scanner.getRootPom().getParent(), scanner.getMode());
+			return poms;
+		} catch (IOException e) {
+			throw new RuntimeException("Error scanning for POMs in " + scanner.getRootPom().getParent(), e);
+		}
+	}
+
+	/**
+	 * Restores POMs of all sessions of this JVM (shutdown).
+	 */
+	void restorePoms() {
+		for (RewriteJournal journal : new ArrayList<RewriteJournal>(journals)) {
+			restorePoms(journal);
 		}
-		cleanup.clear();
 	}
 
-	String detectGitBranch() {
+	/**
+	 * Restores POMs of one session; other sessions running in this JVM (e.g. in a Maven daemon) keep theirs.
+	 */
+	void restorePoms(RewriteJournal journal) {
+		if (!journals.remove(journal)) {
+			return; // already restored
+		}
+		try {
+			journal.restore();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens in-process Git reader unless disabled by {@link #P_GIT}. Returns {@code null} if the forked {@code git}
+	 * executable should be used instead.
+	 */
+	GitRepository openGitRepository(MavenSession session) {
+		GitMode mode = GitMode.valueOf(getProperty(session, P_GIT, GitMode.java.name()));
+		if (mode == GitMode.exec) {
+			return null;
+		}
+		try {
+			GitRepository git = GitRepository.find(new File(session.getExecutionRootDirectory()));
+			if (git == null) {
+				debug("No Git repository found in %s. Falling back to git executable", session.getExecutionRootDirectory());
+			}
+			return git;
+		} catch (IOException e) {
+			debug("Error opening Git repository: %s. Falling back to git executable", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Gives POMs of nested repositories (Git submodules, independent checkouts inside the workspace) versions of their
+	 * own ({@link #P_REPOSITORIES}). Commit, branch and tag are detected once per repository, concurrently, and the
+	 * version is computed by the same rules as for the root repository; {@code build.*} overrides other than
+	 * {@code build.type} and {@code build.id} apply to the root repository only. Repositories whose version cannot be
+	 * determined (detached HEAD, release without a tag) keep the root version.
+	 */
+	void assignRepositoryVersions(MavenSession session, List<File> poms, Map<File, String> versions,
+											final BuildType type, final String buildId) {
+		WorkspaceRepositories repositories = new WorkspaceRepositories();
+		File root = repositories.getWorkTree(new File(session.getExecutionRootDirectory()));
+		Map<File, List<File>> groups = repositories.group(poms);
+		groups.remove(root);
+		groups.remove(null);
+		if (groups.isEmpty()) {
+			return;
+		}
+
+		final Map<File, String> detected = new ConcurrentHashMap<File, String>();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(groups.size(), Runtime.getRuntime().availableProcessors()));
+		try {
+			List<Runnable> tasks = new ArrayList<Runnable>(groups.size());
+			for (final File workTree : groups.keySet()) {
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						String version = detectRepositoryVersion(workTree, type, buildId);
+						if (version != null) {
+							detected.put(workTree, version);
+						}
+					}
+				});
+			}
+			runAll(executor, tasks);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (Map.Entry<File, List<File>> e : groups.entrySet()) {
+			String version = detected.get(e.getKey());
+			if (version == null) {
+				continue;
+			}
+			for (File pom : e.getValue()) {
+				versions.put(WorkspaceRepositories.key(pom), version);
+			}
+		}
+		debug("Repositories: %d, with own version: %d", groups.size(), detected.size());
+	}
+
+	/**
+	 * @return project version of given nested repository, or {@code null} if it should keep the root version
+	 */
+	String detectRepositoryVersion(File workTree, BuildType type, String buildId) {
+		try {
+			GitRepository git = GitRepository.find(workTree);
+			String commit = git.getHeadCommit();
+			String branch = git.getBranch();
+			String tag = (commit != null) ? selectReleaseTag(git.getTags(commit)) : null;
+			String simpleBranchName = (branch != null) ? branch.replaceFirst(".*/", "") : null;
+
+			// warning: hardcoded assumption: release branch name == 'master'
+			BuildType buildType = (type != null) ? type
+					: ("master".equals(simpleBranchName) && tag != null) ? BuildType.RELEASE
+					: BuildType.SNAPSHOT;
+
+			String version
+					= (buildType == BuildType.RELEASE) ? ((tag != null) ? String.format("%s-%s", tag, buildId) : null)
+					: (simpleBranchName != null) ? String.format("%s-SNAPSHOT", simpleBranchName)
+					: null;
+
+			log("Repository %s: commit: %s, branch: %s, tag: %s, type: %s, project.version: %s",
+				 workTree, StringUtils.left(commit, 10), branch, tag, buildType,
+				 (version != null) ? version : "(root version)");
+			return version;
+
+		} catch (IOException e) {
+			log("Repository %s: %s. Using root version", workTree, e);
+			return null;
+		}
+	}
+
+	String detectGitBranch(GitRepository git) {
+		if (git != null) {
+			try {
+				return git.getBranch();
+			} catch (IOException e) {
+				debug("%s: %s. Falling back to git executable", git, e);
+			}
+		}
 		String name = trimToNull(execute("git rev-parse --abbrev-ref HEAD"));
 		return (name == null || name.equals("HEAD")) ? null : name;
 	}
 
-	String detectReleaseTag(String commitId) {
+	String detectReleaseTag(GitRepository git, String commitId) {
+		if (commitId == null) {
+			return null;
+		}
+		if (git != null) {
+			try {
+				return selectReleaseTag(git.getTags(commitId));
+			} catch (IOException e) {
+				debug("%s: %s. Falling back to git executable", git, e);
+			}
+		}
+
 		String out = trimToNull(execute("git show-ref --tags -d"));
 		if (out == null) {
 			return null;
 		}
 
-		List<String> matching = new LinkedList<String>();
+		List<String> tags = new LinkedList<String>();
 
 		Pattern ptag = Pattern.compile(".* refs/tags/(.*)");
-		Pattern pbuild = Pattern.compile("^build-.*");
-		Pattern prelease = Pattern.compile("^[0-9].*");
 
 		LineIterator it = IOUtils.lineIterator(new StringReader(out));
 		while (it.hasNext()) {
@@ -234,15 +899,21 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 					continue;
 				}
 
-				String tag = m.group(1).replace("^{}", "");
+				tags.add(m.group(1).replace("^{}", ""));
+			}
+		}
 
-				if (pbuild.matcher(tag).matches()) {
-					continue;
-				}
-				if (!prelease.matcher(tag).matches()) {
-					continue;
-				}
+		return selectReleaseTag(tags);
+	}
 
+	/**
+	 * Filters out build tags and non-release tags, and selects the last remaining one.
+	 */
+	String selectReleaseTag(List<String> tags) {
+		List<String> matching = new LinkedList<String>();
+
+		for (String tag : tags) {
+			if (isReleaseTag(tag)) {
 				matching.add(tag);
 			}
 		}
@@ -258,7 +929,21 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 		return matching.get(matching.size() - 1);
 	}
 
-	String detectGitCommit() {
+	/**
+	 * Release tags are those starting with a digit, except for build tags ({@code build-*}).
+	 */
+	static boolean isReleaseTag(String tag) {
+		return !BUILD_TAG.matcher(tag).matches() && RELEASE_TAG.matcher(tag).matches();
+	}
+
+	String detectGitCommit(GitRepository git) {
+		if (git != null) {
+			try {
+				return git.getHeadCommit();
+			} catch (IOException e) {
+				debug("%s: %s. Falling back to git executable", git, e);
+			}
+		}
 		return trimToNull(execute("git rev-parse HEAD"));
 	}
 
@@ -292,74 +977,239 @@ public class MavenExtension extends AbstractMavenLifecycleParticipant {
 																																		 System.getProperty(
 																																				 name,
 																																				 dflt)));
-		if (value != null && value.equals(dflt)) {
-			session.getUserProperties().setProperty(name, value);
-			session.getSystemProperties().setProperty(name, value);
-			System.setProperty(name, value);
-		}
 		return value;
 	}
 
-	void rewritePOM(final MavenSession session, final File file, Model root, String projectVersion) {
+	/**
+	 * Writes rewritten POM into a temp file and records it in the journal. The original is replaced later, by
+	 * {@link RewriteJournal#apply}. POM currently rewritten by another running build is shared if it has the content
+	 * this build needs; otherwise this waits for the other build to end.
+	 */
+	void rewritePOM(final MavenSession session, final File file, PomIndex index, RewriteJournal journal,
+						 String rootVersion, Map<File, String> versions) {
 		try {
-			// get current pom.xml and read it
-			ModifiedPomXMLEventReader pom = newModifiedPomXER(PomHelper.readXmlFile(file));
+			String projectVersion = versions.get(WorkspaceRepositories.key(file));
+			String parentVersion = WorkspaceRepositories.getParentVersion(versions, file, null);
+
+			while (true) {
+				RewriteJournal.Record holder;
+				// other builds replace POMs under the same lock: the POM cannot change between check and read
+				RewriteJournal.Stripe stripe = RewriteJournal.Stripe.lock(file);
+				try {
+					holder = journal.findHolder(file);
+					if (holder == null) {
+						rewritePOM(file, index, journal, rootVersion, projectVersion, parentVersion);
+						return;
+					}
+					if (sharePOM(file, journal, holder, rootVersion, projectVersion, parentVersion)) {
+						return;
+					}
+				} finally {
+					stripe.unlock();
+				}
+				log("Waiting for concurrent build to release %s (%s)", file, holder.getJournal());
+				journal.await(holder);
+			}
 
-			Model model = PomHelper.getRawModel(pom);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-			boolean modified = false;
+	private void rewritePOM(File file, PomIndex index, RewriteJournal journal, String rootVersion,
+									String projectVersion, String parentVersion) throws Exception {
+		// cached versions; POM is parsed only if it has changed since last build
+		PomIndex.Entry entry = index.get(file);
+		boolean updateVersion = entry.getVersion() != null && entry.getVersion().equals(rootVersion);
+		boolean updateParent = entry.getParentVersion() != null && entry.getParentVersion().equals(rootVersion);
 
-			// update project version if specified and matches main project
-			if (model.getVersion() != null && model.getVersion().equals(root.getVersion())) {
-				PomHelper.setProjectVersion(pom, projectVersion);
-				modified = true;
-			}
+		if (!updateVersion && !updateParent) {
+			return;
+		}
 
-			// update parent version if specified and matches main project
-			if (model.getParent() != null && model.getParent().getVersion().equals(root.getVersion())) {
-				PomHelper.setProjectParentVersion(pom, projectVersion);
-				modified = true;
-			}
+		File tmp = journal.newTempFile(file, "");
 
-			if (!modified) {
-				return;
+		// write updated POM into temp file in a single streaming pass; StAX rewrite for unusual encodings
+		try {
+			List<PomRewriter.Replacement> replacements = PomRewriter.patch(
+					file, tmp, entry.getScan(file), updateVersion ? projectVersion : null,
+					updateParent ? parentVersion : null);
+			journal.add(file, tmp, replacements);
+		} catch (UnsupportedEncodingException e) {
+			debug("%s: %s. Using StAX rewriter", file, e.getMessage());
+			ModifiedPomXMLEventReader pom = newModifiedPomXER(PomHelper.readXmlFile(file));
+			if (updateVersion) {
+				PomHelper.setProjectVersion(pom, projectVersion);
+			}
+			if (updateParent) {
+				PomHelper.setProjectParentVersion(pom, parentVersion);
 			}
+			writeFile(tmp, pom.asStringBuilder());
+			journal.addFull(file, tmp);
+		}
 
-			// create backup
-			File bak = new File(file.getParentFile(), POM_BACKUP_FNAME);
-			FileUtils.copyFile(file, bak);
-			bak.setLastModified(file.lastModified());
+		debug("Updated POM: %s. Versions: root: %s, project: %s, project.parent: %s, new version: %s, new parent: %s",
+				file, rootVersion, entry.getVersion(), entry.getParentVersion(), projectVersion, parentVersion);
+	}
 
-			debug("Updated POM: %s. Versions: root: %s, project: %s, project.parent: %s, new version: %s",
-					file, root.getVersion(),
-					model.getVersion(),
-					model.getParent() != null ? model.getParent().getVersion() : null,
-					projectVersion);
+	/**
+	 * Rewrites the original of a POM held by another build, and shares the other build's rewrite if the result is the
+	 * same.
+	 *
+	 * @return {@code false} if this build needs different content
+	 */
+	private boolean sharePOM(File file, RewriteJournal journal, RewriteJournal.Record holder, String rootVersion,
+									 String projectVersion, String parentVersion) throws IOException {
+		File original = journal.newTempFile(file, "-original");
+		File tmp = journal.newTempFile(file, "");
+		try {
+			if (!RewriteJournal.writeOriginal(holder, file, original)) {
+				return false;
+			}
+			PomRewriter.Scan scan = PomRewriter.scan(original);
+			boolean updateVersion = scan.getVersion() != null && scan.getVersion().equals(rootVersion);
+			boolean updateParent = scan.getParentVersion() != null && scan.getParentVersion().equals(rootVersion);
+			PomRewriter.patch(original, tmp, scan, updateVersion ? projectVersion : null,
+									updateParent ? parentVersion : null);
+			if (!RewriteJournal.sha1(tmp).equals(holder.rewrittenHash)) {
+				FileUtils.deleteQuietly(tmp);
+				return false;
+			}
+			journal.share(file, tmp, holder);
+			debug("Sharing POM rewritten by concurrent build: %s (%s)", file, holder.getJournal());
+			return true;
+		} catch (UnsupportedEncodingException e) {
+			FileUtils.deleteQuietly(tmp);
+			return false;
+		} finally {
+			FileUtils.deleteQuietly(original);
+		}
+	}
 
-			writeFile(file, pom.asStringBuilder());
+	/**
+	 * Version of given POM before another running build rewrote it.
+	 */
+	String getOriginalVersion(RewriteJournal journal, File pom, String version) throws IOException {
+		RewriteJournal.Record holder = journal.findHolder(pom);
+		if (holder == null) {
+			return version;
+		}
+		File original = journal.newTempFile(pom, "-original");
+		try {
+			return RewriteJournal.writeOriginal(holder, pom, original)
+					? PomRewriter.scan(original).getVersion()
+					: PomRewriter.scan(pom).getVersion(); // restored meanwhile
+		} finally {
+			FileUtils.deleteQuietly(original);
+		}
+	}
 
-			cleanup.add(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						debug("Restoring original POM: %s", file);
-						File bak = new File(file.getParentFile(), POM_BACKUP_FNAME);
-						if (!bak.exists()) {
-							return;
-						}
+	/**
+	 * Rewrites POMs on a bounded worker pool ({@link #P_REWRITE_THREADS}): all rewritten POMs are prepared in temp
+	 * files, journal is committed, and only then the originals are replaced.
+	 */
+	RewriteJournal rewritePoms(final MavenSession session, List<File> poms, final PomIndex index, File rootPom,
+										String rootVersion, final Map<File, String> versions) {
+		int threads = Integer.parseInt(getProperty(session, P_REWRITE_THREADS,
+																 Integer.toString(Runtime.getRuntime().availableProcessors())));
+		final RewriteJournal journal;
+		try {
+			journal = RewriteJournal.open(new File(session.getExecutionRootDirectory()));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		journals.add(journal);
 
-						FileUtils.copyFile(bak, file);
-						FileUtils.deleteQuietly(bak);
-					} catch (IOException e) {
-						e.printStackTrace();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			// another build in this workspace may have the POMs rewritten already
+			final String originalRootVersion = getOriginalVersion(journal, rootPom, rootVersion);
+
+			List<Runnable> tasks = new ArrayList<Runnable>(poms.size());
+			for (final File pom : poms) {
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						rewritePOM(session, pom, index, journal, originalRootVersion, versions);
 					}
+				});
+			}
+			runAll(executor, tasks);
+
+			journal.commit();
+
+			while (true) {
+				final List<RewriteJournal.Record> conflicts
+						= Collections.synchronizedList(new ArrayList<RewriteJournal.Record>());
+				tasks.clear();
+				for (final RewriteJournal.Record r : journal.getRecords()) {
+					tasks.add(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								RewriteJournal.Record holder = journal.apply(r);
+								if (holder != null) {
+									conflicts.add(holder);
+								}
+							} catch (IOException e) {
+								throw new RuntimeException(e);
+							}
+						}
+					});
 				}
-			});
+				runAll(executor, tasks);
+				if (conflicts.isEmpty()) {
+					return journal;
+				}
+				// concurrent build prepared the same POMs with different versions and got there first
+				RewriteJournal.Record holder = conflicts.get(0);
+				journal.rollback();
+				log("Waiting for concurrent build to release %s (%s)", holder.getPath(), holder.getJournal());
+				journal.await(holder);
+			}
 
-		} catch (Exception e) {
+		} catch (IOException e) {
+			restorePoms(journal);
 			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			restorePoms(journal);
+			throw e;
+		} finally {
+			executor.shutdownNow();
 		}
+	}
 
+	static void runAll(ExecutorService executor, List<Runnable> tasks) {
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+			for (Runnable task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof RuntimeException)
+					? (RuntimeException) e.getCause()
+					: new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Restores POMs left rewritten by a previous session that was killed before it could restore them.
+	 */
+	void recoverPoms() {
+		try {
+			int restored = RewriteJournal.recover();
+			if (restored > 0) {
+				log("Recovered %d POM(s)", restored);
+			}
+		} catch (IOException e) {
+			log("Cannot recover POMs rewritten by previous build: %s", e);
+		}
 	}
 
 	protected final ModifiedPomXMLEventReader newModifiedPomXER(StringBuilder input) throws
@@ -0,0 +1,283 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.model.Model;
+import org.codehaus.mojo.versions.api.PomHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Persistent index of discovered POMs. Records each POM's size, mtime, raw version and parent version, and (for disk
+ * scans) stamps of every scanned directory. On the next build, unchanged directories skip discovery and unchanged POMs
+ * skip parsing (see {@link PomRewriter}). Any added or removed module changes a directory digest, which triggers a full rescan.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class PomIndex {
+
+	static private final String FORMAT = "MavenExtension.PomIndex.1";
+
+	static public PomIndex load(File file, File root, String key) {
+		PomIndex index = new PomIndex(file, root, key);
+		if (!file.isFile()) {
+			return index;
+		}
+		try {
+			List<String> lines = FileUtils.readLines(file, "UTF-8");
+			if (lines.size() < 2 || !lines.get(0).equals(FORMAT) || !lines.get(1).equals(key)) {
+				MavenExtension.debug("POM index %s is outdated, ignoring", file);
+				return index;
+			}
+			for (String line : lines.subList(2, lines.size())) {
+				String value = line.substring(2);
+				if (line.startsWith("D\t")) {
+					index.dirs.add(PomScanner.DirStamp.parse(value));
+				} else if (line.startsWith("P\t")) {
+					Entry e = Entry.parse(value);
+					index.poms.put(new File(root, e.path), e);
+				}
+			}
+			index.loaded = true;
+		} catch (Exception e) {
+			MavenExtension.debug("Cannot read POM index %s: %s", file, e);
+			index.dirs.clear();
+			index.poms.clear();
+		}
+		return index;
+	}
+
+	final File file;
+	final File root;
+	final String key;
+	List<PomScanner.DirStamp> dirs = new ArrayList<PomScanner.DirStamp>();
+	Map<File, Entry> poms = new LinkedHashMap<File, Entry>();
+	boolean loaded;
+	boolean dirty;
+	int parsed;
+
+	PomIndex(File file, File root, String key) {
+		this.file = file;
+		this.root = root;
+		this.key = key;
+	}
+
+	/**
+	 * Returns indexed POMs if the indexed module tree is unchanged, otherwise rescans using given scanner and resets
+	 * the index accordingly.
+	 */
+	public synchronized List<File> findPoms(PomScanner scanner) throws IOException {
+		if (loaded && isUnchanged(scanner)) {
+			MavenExtension.debug("POM index %s is up to date, skipping discovery", file);
+			return new ArrayList<File>(poms.keySet());
+		}
+
+		List<File> found;
+		List<PomScanner.DirStamp> stamps = new ArrayList<PomScanner.DirStamp>();
+		if (scanner.getMode() == PomScanner.Mode.disk) {
+			ConcurrentLinkedQueue<PomScanner.DirStamp> queue = new ConcurrentLinkedQueue<PomScanner.DirStamp>();
+			found = scanner.scanDisk(queue);
+			stamps.addAll(queue);
+		} else {
+			found = scanner.scanModules();
+		}
+
+		Map<File, Entry> entries = new LinkedHashMap<File, Entry>();
+		for (File pom : found) {
+			Entry e = poms.get(pom);
+			entries.put(pom, e != null ? e : new Entry(relativize(pom)));
+		}
+		this.poms = entries;
+		this.dirs = stamps;
+		this.dirty = true;
+		return found;
+	}
+
+	private boolean isUnchanged(PomScanner scanner) throws IOException {
+		if (scanner.getMode() == PomScanner.Mode.modules) {
+			// module list is derived from POM content only
+			for (Map.Entry<File, Entry> e : poms.entrySet()) {
+				if (!e.getValue().isFresh(e.getKey())) {
+					return false;
+				}
+			}
+			return !poms.isEmpty();
+		}
+		if (dirs.isEmpty()) {
+			return false;
+		}
+		return revalidate(scanner);
+	}
+
+	/**
+	 * Replaces directory stamps with their revalidated versions (see {@link PomScanner#revalidate}).
+	 *
+	 * @return {@code false} if any directory has changed (stamps are left as they are)
+	 */
+	private boolean revalidate(PomScanner scanner) {
+		List<PomScanner.DirStamp> updated = scanner.revalidate(dirs);
+		if (updated == null) {
+			return false;
+		}
+		for (int i = 0; i < dirs.size(); i++) {
+			dirty |= (updated.get(i) != dirs.get(i));
+		}
+		dirs = new ArrayList<PomScanner.DirStamp>(updated);
+		return true;
+	}
+
+	/**
+	 * Returns version information of given POM, parsing it only if it has changed since it was indexed.
+	 */
+	public Entry get(File pom) throws IOException {
+		Entry e;
+		synchronized (this) {
+			e = poms.get(pom);
+			if (e == null) {
+				e = new Entry(relativize(pom));
+				poms.put(pom, e);
+			}
+		}
+		synchronized (e) {
+			if (!e.isFresh(pom)) {
+				e.update(pom);
+				synchronized (this) {
+					dirty = true;
+					parsed++;
+				}
+			}
+		}
+		return e;
+	}
+
+	public int getParsedCount() {
+		return parsed;
+	}
+
+	/**
+	 * Refreshes directory stamps (e.g. after restoring rewritten POMs, which touches directory mtimes) and saves the
+	 * index if anything has changed.
+	 */
+	public synchronized void save(PomScanner scanner) {
+		try {
+			if (!revalidate(scanner)) {
+				// tree changed during the build, do not trust it next time
+				FileUtils.deleteQuietly(file);
+				return;
+			}
+			if (!dirty) {
+				return;
+			}
+			List<String> lines = new ArrayList<String>();
+			lines.add(FORMAT);
+			lines.add(key);
+			for (PomScanner.DirStamp stamp : dirs) {
+				lines.add("D\t" + stamp);
+			}
+			for (Entry e : poms.values()) {
+				if (e.modified != 0) {
+					lines.add("P\t" + e);
+				}
+			}
+			File tmp = new File(file.getPath() + ".tmp");
+			FileUtils.writeLines(tmp, "UTF-8", lines, "\n");
+			if (!tmp.renameTo(file)) {
+				FileUtils.copyFile(tmp, file);
+				FileUtils.deleteQuietly(tmp);
+			}
+			dirty = false;
+		} catch (IOException e) {
+			MavenExtension.debug("Cannot write POM index %s: %s", file, e);
+		}
+	}
+
+	private String relativize(File pom) {
+		return root.toPath().relativize(pom.toPath()).toString();
+	}
+
+	///
+
+	/**
+	 * Indexed POM: file fingerprint and raw (uninterpolated) versions.
+	 */
+	static public class Entry {
+
+		final String path;
+		long size;
+		long modified;
+		long created;
+		String version;
+		String parentVersion;
+		transient PomRewriter.Scan scan;  // byte ranges from the last parse in this session, if any
+
+		Entry(String path) {
+			this.path = path;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		public String getParentVersion() {
+			return parentVersion;
+		}
+
+		/**
+		 * Returns version element locations, reusing those found while indexing if the file has not changed since.
+		 */
+		public synchronized PomRewriter.Scan getScan(File pom) throws IOException {
+			if (scan == null || !scan.isValid(pom)) {
+				scan = PomRewriter.scan(pom);
+			}
+			return scan;
+		}
+
+		boolean isFresh(File pom) {
+			return modified != 0 && pom.lastModified() == modified && pom.length() == size
+					&& modified < created - PomScanner.RACY_MILLIS;
+		}
+
+		void update(File pom) throws IOException {
+			long created = System.currentTimeMillis();
+			long modified = pom.lastModified();
+			long size = pom.length();
+			try {
+				this.scan = PomRewriter.scan(pom);
+				this.version = scan.getVersion();
+				this.parentVersion = scan.getParentVersion();
+			} catch (UnsupportedEncodingException e) {
+				Model model = PomHelper.getRawModel(pom);
+				this.scan = null;
+				this.version = model.getVersion();
+				this.parentVersion = (model.getParent() != null) ? model.getParent().getVersion() : null;
+			}
+			this.size = size;
+			this.modified = modified;
+			this.created = created;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d\t%d\t%d\t%s\t%s\t%s", size, modified, created,
+										version != null ? version : "", parentVersion != null ? parentVersion : "", path);
+		}
+
+		static Entry parse(String s) {
+			String[] t = s.split("\t", -1);
+			Entry e = new Entry(t[5]);
+			e.size = Long.parseLong(t[0]);
+			e.modified = Long.parseLong(t[1]);
+			e.created = Long.parseLong(t[2]);
+			e.version = t[3].isEmpty() ? null : t[3];
+			e.parentVersion = t[4].isEmpty() ? null : t[4];
+			return e;
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Single-pass POM version rewriter. Locates byte ranges of {@code project/version} and {@code project/parent/version}
+ * text content in one streaming pass (stopping as soon as both are known), and produces the patched document by
+ * transferring unchanged byte ranges directly between file channels, so no document copy is ever held in memory.
+ * <p/>
+ * Only ASCII compatible encodings are supported; callers are expected to fall back to StAX based rewriting on
+ * {@link UnsupportedEncodingException}.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class PomRewriter {
+
+	static private final Set<String> ASCII_COMPATIBLE = new HashSet<String>(Arrays.asList(
+			"UTF-8", "US-ASCII", "ISO-8859-1", "ISO-8859-2", "ISO-8859-15",
+			"WINDOWS-1250", "WINDOWS-1252", "CP1250", "CP1252"));
+
+	/**
+	 * Result of a scan: raw values and byte ranges ({@code [start, end)}) of the version elements; -1 if not present.
+	 */
+	static public class Scan {
+
+		String encoding = "UTF-8";
+		String version;
+		byte[] versionRaw;
+		long versionStart = -1;
+		long versionEnd = -1;
+		String parentVersion;
+		byte[] parentVersionRaw;
+		long parentVersionStart = -1;
+		long parentVersionEnd = -1;
+		long size;
+		long modified;
+
+		public String getVersion() {
+			return version;
+		}
+
+		public String getParentVersion() {
+			return parentVersion;
+		}
+
+		/**
+		 * True if the scanned file has not changed since, so that recorded ranges are still valid.
+		 */
+		public boolean isValid(File file) {
+			return file.length() == size && file.lastModified() == modified;
+		}
+	}
+
+	/**
+	 * Scans POM for version elements.
+	 *
+	 * @throws UnsupportedEncodingException if the document is not in ASCII compatible encoding or version content is
+	 *                                      too complex (comments, CDATA) for byte-level patching
+	 */
+	static public Scan scan(File file) throws IOException {
+		Scan scan = new Scan();
+		scan.size = file.length();
+		scan.modified = file.lastModified();
+		InputStream in = new FileInputStream(file);
+		try {
+			new Scanner(in, scan).run();
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return scan;
+	}
+
+	/**
+	 * Writes {@code source} into {@code target}, replacing project version with {@code version} and parent version
+	 * with {@code parentVersion}; {@code null} leaves the respective element untouched.
+	 *
+	 * @return applied replacements, in source coordinates
+	 */
+	static public List<Replacement> patch(File source, File target, Scan scan, String version, String parentVersion)
+			throws IOException {
+		Charset charset = Charset.forName(scan.encoding);
+		List<Replacement> replacements = new ArrayList<Replacement>(2);
+		if (version != null && scan.versionStart >= 0) {
+			replacements.add(new Replacement(scan.versionStart, scan.versionEnd, version.getBytes(charset)));
+		}
+		if (parentVersion != null && scan.parentVersionStart >= 0) {
+			replacements.add(new Replacement(scan.parentVersionStart, scan.parentVersionEnd,
+														parentVersion.getBytes(charset)));
+		}
+		Collections.sort(replacements);
+		replace(source, target, replacements);
+		return replacements;
+	}
+
+	/**
+	 * Copies {@code source} into {@code target}, replacing given non-overlapping byte ranges. Unchanged ranges are
+	 * transferred channel to channel.
+	 */
+	static public void replace(File source, File target, List<Replacement> replacements) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			FileChannel src = in.getChannel();
+			FileChannel dst = out.getChannel();
+			long pos = 0;
+			for (Replacement r : replacements) {
+				transfer(src, pos, r.start - pos, dst);
+				dst.write(ByteBuffer.wrap(r.bytes));
+				pos = r.end;
+			}
+			transfer(src, pos, src.size() - pos, dst);
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/**
+	 * Byte range {@code [start, end)} to be replaced with given bytes.
+	 */
+	static public class Replacement implements Comparable<Replacement> {
+
+		final long start;
+		final long end;
+		final byte[] bytes;
+
+		public Replacement(long start, long end, byte[] bytes) {
+			this.start = start;
+			this.end = end;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int compareTo(Replacement o) {
+			return (start < o.start) ? -1 : (start == o.start) ? 0 : 1;
+		}
+	}
+
+	static private void transfer(FileChannel src, long pos, long count, FileChannel dst) throws IOException {
+		while (count > 0) {
+			long n = src.transferTo(pos, count, dst);
+			pos += n;
+			count -= n;
+		}
+	}
+
+	///
+
+	/**
+	 * Minimal XML tokenizer: tracks element path up to depth 3, skips comments, processing instructions, CDATA and
+	 * DOCTYPE, and captures content of the two version elements.
+	 */
+	static class Scanner {
+
+		final InputStream in;
+		final Scan scan;
+		final byte[] buf = new byte[8192];
+		int len;
+		int idx;
+		long pos;     // offset of the next byte to be read
+
+		final String[] path = new String[4];
+		int depth;
+		long contentStart = -1;  // start of the captured element content
+		ByteArrayOutputStream content;
+		boolean versionDone;
+		boolean parentDone;
+
+		Scanner(InputStream in, Scan scan) {
+			this.in = in;
+			this.scan = scan;
+		}
+
+		int next() throws IOException {
+			if (idx == len) {
+				len = in.read(buf);
+				idx = 0;
+				if (len <= 0) {
+					len = 0;
+					return -1;
+				}
+			}
+			pos++;
+			int b = buf[idx++] & 0xff;
+			if (content != null) {
+				content.write(b);
+			}
+			return b;
+		}
+
+		void run() throws IOException {
+			int b = next();
+			if (b == 0xfe || b == 0xff || b == 0) {
+				throw new UnsupportedEncodingException("UTF-16/32 documents are not supported");
+			}
+			while (b >= 0 && !(versionDone && parentDone)) {
+				if (b != '<') {
+					b = next();
+					continue;
+				}
+				long tagStart = pos - 1;
+				b = next();
+				if (b == '?') {
+					String pi = readUntil("?>");
+					if (pi.startsWith("xml ")) {
+						encoding(pi);
+					}
+				} else if (b == '!') {
+					if (content != null) {
+						throw new UnsupportedEncodingException("Markup inside version element is not supported");
+					}
+					skipDeclaration();
+				} else if (b == '/') {
+					endTag(tagStart);
+				} else {
+					startTag(b);
+				}
+				b = next();
+			}
+		}
+
+		private void startTag(int first) throws IOException {
+			if (content != null) {
+				throw new UnsupportedEncodingException("Markup inside version element is not supported");
+			}
+			StringBuilder name = new StringBuilder();
+			int b = first;
+			while (b >= 0 && b != '>' && b != '/' && !Character.isWhitespace(b)) {
+				name.append((char) b);
+				b = next();
+			}
+			int prev = b;
+			// skip attributes, honoring quotes
+			while (b >= 0 && b != '>') {
+				if (b == '"' || b == '\'') {
+					int quote = b;
+					do {
+						b = next();
+					} while (b >= 0 && b != quote);
+				}
+				prev = b;
+				b = next();
+			}
+			if (prev == '/') {
+				return; // empty element
+			}
+			depth++;
+			if (depth < path.length) {
+				path[depth] = localName(name);
+			}
+			if (isVersion() || isParentVersion()) {
+				contentStart = pos;
+				content = new ByteArrayOutputStream(32);
+			}
+		}
+
+		private void endTag(long tagStart) throws IOException {
+			if (content != null) {
+				// captured content includes "</"
+				byte[] raw = Arrays.copyOf(content.toByteArray(), content.size() - 2);
+				String value = new String(raw, scan.encoding).trim();
+				content = null;
+				if (isVersion()) {
+					scan.version = value;
+					scan.versionRaw = raw;
+					scan.versionStart = contentStart;
+					scan.versionEnd = tagStart;
+					versionDone = true;
+				} else {
+					scan.parentVersion = value;
+					scan.parentVersionRaw = raw;
+					scan.parentVersionStart = contentStart;
+					scan.parentVersionEnd = tagStart;
+				}
+			}
+			if (depth == 2 && "parent".equals(path[2]) && "project".equals(path[1])) {
+				parentDone = true;
+			}
+			readUntil(">");
+			depth--;
+		}
+
+		private boolean isVersion() {
+			return depth == 2 && "version".equals(path[2]) && "project".equals(path[1]);
+		}
+
+		private boolean isParentVersion() {
+			return depth == 3 && "version".equals(path[3]) && "parent".equals(path[2]) && "project".equals(path[1]);
+		}
+
+		private void skipDeclaration() throws IOException {
+			int b = next();
+			if (b == '-') {
+				next();
+				readUntil("-->");
+			} else if (b == '[') {
+				readUntil("]]>");
+			} else {
+				// DOCTYPE, possibly with internal subset
+				int nesting = 0;
+				while (b >= 0 && !(b == '>' && nesting == 0)) {
+					if (b == '[') nesting++;
+					if (b == ']') nesting--;
+					b = next();
+				}
+			}
+		}
+
+		private String readUntil(String terminator) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int tlen = terminator.length();
+			int b;
+			while ((b = next()) >= 0) {
+				sb.append((char) b);
+				int slen = sb.length();
+				if (b == terminator.charAt(tlen - 1) && slen >= tlen
+						&& sb.substring(slen - tlen).equals(terminator)) {
+					sb.setLength(slen - tlen);
+					break;
+				}
+			}
+			return sb.toString();
+		}
+
+		private void encoding(String decl) throws UnsupportedEncodingException {
+			int i = decl.indexOf("encoding");
+			if (i < 0) {
+				return;
+			}
+			int q = i + "encoding".length();
+			while (q < decl.length() && decl.charAt(q) != '"' && decl.charAt(q) != '\'') q++;
+			int e = (q < decl.length()) ? decl.indexOf(decl.charAt(q), q + 1) : -1;
+			if (e < 0) {
+				return;
+			}
+			String encoding = decl.substring(q + 1, e).trim().toUpperCase();
+			if (!ASCII_COMPATIBLE.contains(encoding) || !Charset.isSupported(encoding)) {
+				throw new UnsupportedEncodingException(encoding);
+			}
+			scan.encoding = encoding;
+		}
+
+		static private String localName(CharSequence name) {
+			String s = name.toString();
+			int colon = s.indexOf(':');
+			return (colon < 0) ? s : s.substring(colon + 1);
+		}
+	}
+}
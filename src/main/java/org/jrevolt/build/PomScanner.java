@@ -0,0 +1,436 @@
+package org.jrevolt.build;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Profile;
+import org.codehaus.mojo.versions.api.PomHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Discovers {@code pom.xml} files of a module tree. Either scans the disk in parallel (one fork/join task per
+ * directory), skipping directories matching ignore globs and, optionally, {@code .gitignore} rules; or follows
+ * {@code <modules>} declarations (including those in profiles) starting at the root POM.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class PomScanner {
+
+	static public final String POM_FNAME = "pom.xml";
+
+	static public final String DEFAULT_IGNORES = "src,target,node_modules,.*";
+
+	/**
+	 * Filesystem timestamps closer than this to the time they were recorded are not trusted (racy modification).
+	 */
+	static public final long RACY_MILLIS = 2000;
+
+	static enum Mode {disk, modules}
+
+	final Path root;
+	final FileSystem fs = FileSystems.getDefault();
+	final List<PathMatcher> ignores = new ArrayList<PathMatcher>();
+	final List<Boolean> ignoresByPath = new ArrayList<Boolean>();
+	final StringBuilder ignoreGlobs = new StringBuilder();
+	Mode mode = Mode.disk;
+	boolean gitignore;
+	int threads = Runtime.getRuntime().availableProcessors();
+
+	public PomScanner(File root) {
+		this.root = root.toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Adds comma separated glob patterns of directories to skip. Patterns containing {@code /} are matched against
+	 * the path relative to the root, others against the directory name only.
+	 */
+	public PomScanner ignore(String globs) {
+		for (String glob : globs.split(",")) {
+			glob = glob.trim();
+			if (glob.isEmpty()) {
+				continue;
+			}
+			ignores.add(fs.getPathMatcher("glob:" + glob));
+			ignoresByPath.add(glob.contains("/"));
+			ignoreGlobs.append(glob).append(',');
+		}
+		return this;
+	}
+
+	public PomScanner mode(Mode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	public PomScanner gitignore(boolean enabled) {
+		this.gitignore = enabled;
+		return this;
+	}
+
+	public PomScanner threads(int threads) {
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+
+	///
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public File getRootPom() {
+		return root.resolve(POM_FNAME).toFile();
+	}
+
+	public List<File> scan() throws IOException {
+		return (mode == Mode.modules) ? scanModules() : scanDisk();
+	}
+
+	/**
+	 * Configuration fingerprint; scan results are only comparable between scanners with equal keys.
+	 */
+	public String getKey() {
+		return String.format("%s;%s;%s", mode, ignoreGlobs, gitignore);
+	}
+
+	/**
+	 * Walks the directory tree in parallel. Result is sorted for stable ordering.
+	 */
+	public List<File> scanDisk() {
+		return scanDisk(null);
+	}
+
+	/**
+	 * Walks the directory tree in parallel, optionally recording {@link DirStamp} of every scanned directory so that
+	 * the result can later be validated without rescanning (see {@link #isUnchanged(DirStamp)}).
+	 */
+	public List<File> scanDisk(Collection<DirStamp> stamps) {
+		Queue<File> found = new ConcurrentLinkedQueue<File>();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new ScanTask(root, Collections.<IgnoreRule>emptyList(), found, stamps));
+		} finally {
+			pool.shutdown();
+		}
+		List<File> poms = new ArrayList<File>(found);
+		Collections.sort(poms);
+		return poms;
+	}
+
+	/**
+	 * Follows {@code <modules>} recursively from the root POM; nothing else on disk is touched.
+	 */
+	public List<File> scanModules() throws IOException {
+		Set<File> poms = new LinkedHashSet<File>();
+		collectModules(getRootPom(), poms);
+		return new ArrayList<File>(poms);
+	}
+
+	private void collectModules(File pom, Set<File> poms) throws IOException {
+		pom = pom.toPath().toAbsolutePath().normalize().toFile();
+		if (!pom.isFile() || !poms.add(pom)) {
+			return;
+		}
+		Model model = PomHelper.getRawModel(pom);
+		Set<String> modules = new LinkedHashSet<String>(model.getModules());
+		for (Profile profile : model.getProfiles()) {
+			modules.addAll(profile.getModules());
+		}
+		for (String module : modules) {
+			File f = new File(pom.getParentFile(), module);
+			collectModules(f.isDirectory() ? new File(f, POM_FNAME) : f, poms);
+		}
+	}
+
+	///
+
+	/**
+	 * Re-lists given directory and compares it with the recorded stamp. Cheap if the directory mtime is unchanged (and
+	 * older than the stamp itself, to rule out same-tick modifications).
+	 *
+	 * @return updated stamp if the directory content relevant for discovery is unchanged, {@code null} otherwise
+	 */
+	public DirStamp isUnchanged(DirStamp stamp) throws IOException {
+		File dir = root.resolve(stamp.path).toFile();
+		long modified = dir.lastModified();
+		if (modified == 0) {
+			return null;
+		}
+		if (modified == stamp.modified && modified < stamp.created - RACY_MILLIS) {
+			return stamp;
+		}
+		DirStamp current = list(dir.toPath(), null, null, null);
+		return current.digest == stamp.digest ? current : null;
+	}
+
+	/**
+	 * Validates all given stamps (see {@link #isUnchanged(DirStamp)}) in parallel, like {@link #scanDisk} walks the
+	 * tree; stops at the first changed directory. (Restoring POMs touches every module directory, so right after a
+	 * build most stamps are within {@link #RACY_MILLIS} and have to be re-listed.)
+	 *
+	 * @return updated stamps, in the given order, or {@code null} if any directory has changed
+	 */
+	public List<DirStamp> revalidate(List<DirStamp> stamps) {
+		DirStamp[] updated = new DirStamp[stamps.size()];
+		AtomicBoolean changed = new AtomicBoolean();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new RevalidateTask(stamps, updated, 0, stamps.size(), changed));
+		} finally {
+			pool.shutdown();
+		}
+		return changed.get() ? null : Arrays.asList(updated);
+	}
+
+	/**
+	 * Lists directory, collecting subdirectories to scan and POM, and computes its {@link DirStamp}. Digest covers
+	 * only names of non-excluded subdirectories, presence of {@code pom.xml} and {@code .gitignore} size/mtime; other
+	 * changes (sources, build output) do not invalidate the stamp.
+	 */
+	DirStamp list(Path dir, List<IgnoreRule> rules, List<Path> subdirs, Collection<File> found) throws IOException {
+		long created = System.currentTimeMillis();
+		long modified = dir.toFile().lastModified();
+		List<String> names = new ArrayList<String>();
+		boolean pom = false;
+		DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+		try {
+			for (Path p : entries) {
+				if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+					if (isExcluded(p)) {
+						continue;
+					}
+					names.add(p.getFileName().toString());
+					if (subdirs != null && !isIgnored(p, rules)) {
+						subdirs.add(p);
+					}
+				} else if (p.getFileName().toString().equals(POM_FNAME) && Files.isRegularFile(p)) {
+					pom = true;
+					if (found != null) {
+						found.add(p.toFile());
+					}
+				}
+			}
+		} finally {
+			entries.close();
+		}
+		Collections.sort(names);
+		CRC32 crc = new CRC32();
+		for (String name : names) {
+			crc.update(name.getBytes("UTF-8"));
+			crc.update('/');
+		}
+		crc.update(pom ? 1 : 0);
+		if (gitignore) {
+			File f = dir.resolve(".gitignore").toFile();
+			crc.update(String.format("%d:%d", f.length(), f.lastModified()).getBytes("UTF-8"));
+		}
+		return new DirStamp(root.relativize(dir).toString(), modified, crc.getValue(), created);
+	}
+
+	boolean isExcluded(Path dir) {
+		Path name = dir.getFileName();
+		Path relative = root.relativize(dir);
+		for (int i = 0; i < ignores.size(); i++) {
+			if (ignores.get(i).matches(ignoresByPath.get(i) ? relative : name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean isIgnored(Path dir, List<IgnoreRule> rules) {
+		if (isExcluded(dir)) {
+			return true;
+		}
+		// .gitignore semantics: last matching rule wins
+		Boolean ignored = null;
+		for (IgnoreRule rule : rules) {
+			if (rule.matches(dir)) {
+				ignored = !rule.negated;
+			}
+		}
+		return ignored != null && ignored;
+	}
+
+	List<IgnoreRule> readGitIgnore(Path dir, List<IgnoreRule> inherited) throws IOException {
+		Path file = dir.resolve(".gitignore");
+		if (!gitignore || !Files.isRegularFile(file)) {
+			return inherited;
+		}
+		List<IgnoreRule> rules = new ArrayList<IgnoreRule>(inherited);
+		for (String line : Files.readAllLines(file, Charset.forName("UTF-8"))) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			rules.add(new IgnoreRule(dir, line));
+		}
+		return rules;
+	}
+
+	/**
+	 * Single {@code .gitignore} pattern. Only directory matching is needed here, so file-only distinctions are
+	 * irrelevant.
+	 */
+	class IgnoreRule {
+
+		final Path base;
+		final boolean negated;
+		final boolean anchored;
+		final PathMatcher matcher;
+
+		IgnoreRule(Path base, String pattern) {
+			this.base = base;
+			this.negated = pattern.startsWith("!");
+			if (negated) {
+				pattern = pattern.substring(1);
+			}
+			if (pattern.endsWith("/")) {
+				pattern = pattern.substring(0, pattern.length() - 1);
+			}
+			// a slash anywhere but at the end anchors the pattern to the .gitignore location
+			this.anchored = pattern.contains("/");
+			if (pattern.startsWith("/")) {
+				pattern = pattern.substring(1);
+			}
+			this.matcher = fs.getPathMatcher("glob:" + pattern);
+		}
+
+		boolean matches(Path dir) {
+			if (!dir.startsWith(base)) {
+				return false;
+			}
+			return anchored ? matcher.matches(base.relativize(dir)) : matcher.matches(dir.getFileName());
+		}
+	}
+
+	/**
+	 * Snapshot of a scanned directory: mtime and digest of discovery-relevant entries.
+	 */
+	static public class DirStamp {
+
+		final String path;     // relative to scan root
+		final long modified;
+		final long digest;
+		final long created;
+
+		DirStamp(String path, long modified, long digest, long created) {
+			this.path = path;
+			this.modified = modified;
+			this.digest = digest;
+			this.created = created;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s\t%d\t%x\t%d", path, modified, digest, created);
+		}
+
+		static public DirStamp parse(String s) {
+			String[] t = s.split("\t");
+			return new DirStamp(t[0], Long.parseLong(t[1]), Long.parseLong(t[2], 16), Long.parseLong(t[3]));
+		}
+	}
+
+	class RevalidateTask extends RecursiveAction {
+
+		static private final int BATCH = 16;
+
+		final List<DirStamp> stamps;
+		final DirStamp[] updated;
+		final int from;
+		final int to;
+		final AtomicBoolean changed;
+
+		RevalidateTask(List<DirStamp> stamps, DirStamp[] updated, int from, int to, AtomicBoolean changed) {
+			this.stamps = stamps;
+			this.updated = updated;
+			this.from = from;
+			this.to = to;
+			this.changed = changed;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BATCH) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RevalidateTask(stamps, updated, from, mid, changed),
+							 new RevalidateTask(stamps, updated, mid, to, changed));
+				return;
+			}
+			for (int i = from; i < to && !changed.get(); i++) {
+				DirStamp stamp = stamps.get(i);
+				try {
+					updated[i] = isUnchanged(stamp);
+				} catch (IOException e) {
+					MavenExtension.debug("Cannot list %s: %s", stamp.getPath(), e);
+				}
+				if (updated[i] == null) {
+					MavenExtension.debug("Directory changed: %s", stamp.getPath());
+					changed.set(true);
+				}
+			}
+		}
+	}
+
+	class ScanTask extends RecursiveAction {
+
+		final Path dir;
+		final List<IgnoreRule> rules;
+		final Collection<File> found;
+		final Collection<DirStamp> stamps;
+
+		ScanTask(Path dir, List<IgnoreRule> rules, Collection<File> found, Collection<DirStamp> stamps) {
+			this.dir = dir;
+			this.rules = rules;
+			this.found = found;
+			this.stamps = stamps;
+		}
+
+		@Override
+		protected void compute() {
+			List<Path> subdirs = new ArrayList<Path>();
+			List<IgnoreRule> effective = rules;
+			try {
+				effective = readGitIgnore(dir, rules);
+				DirStamp stamp = list(dir, effective, subdirs, found);
+				if (stamps != null) {
+					stamps.add(stamp);
+				}
+			} catch (IOException e) {
+				MavenExtension.debug("Cannot scan %s: %s", dir, e);
+			}
+			List<ScanTask> subtasks = new ArrayList<ScanTask>(subdirs.size());
+			for (Path p : subdirs) {
+				subtasks.add(new ScanTask(p, effective, found, stamps));
+			}
+			invokeAll(subtasks);
+		}
+	}
+}
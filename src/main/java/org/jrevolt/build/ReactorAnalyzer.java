@@ -0,0 +1,304 @@
+package org.jrevolt.build;
+
+import org.apache.maven.execution.AbstractExecutionListener;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.project.MavenProject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Analyzes parallel ({@code -T}) reactor builds. Records when and on which thread each project was built, and when
+ * the session ends, combines it with the reactor dependency graph to report:
+ * <ul>
+ * <li>the critical path: the longest chain of dependent projects, which bounds wall time regardless of thread count</li>
+ * <li>busy and idle time of every build thread</li>
+ * <li>projects whose speedup would shorten the critical path most (if built in no time)</li>
+ * <li>estimated wall time for various thread counts (list scheduling simulation over measured project times)</li>
+ * </ul>
+ * Registered as an observer (see {@link MavenExecutionListener#addObserver}).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class ReactorAnalyzer extends AbstractExecutionListener {
+
+	final int top;
+	final Map<MavenProject, Run> runs = Collections.synchronizedMap(new IdentityHashMap<MavenProject, Run>());
+
+	/**
+	 * @param top number of projects to list as speedup candidates
+	 */
+	public ReactorAnalyzer(int top) {
+		this.top = top;
+	}
+
+	/**
+	 * Measured build of one project.
+	 */
+	static class Run {
+
+		final long start;
+		final long threadId;
+		final String thread;
+		long end = -1;
+
+		Run(long start, long threadId, String thread) {
+			this.start = start;
+			this.threadId = threadId;
+			this.thread = thread;
+		}
+	}
+
+	///
+
+	@Override
+	public void projectStarted(ExecutionEvent event) {
+		Thread current = Thread.currentThread();
+		Run run = (event instanceof MavenExecutionListener.Event)
+				? new Run(time(event), ((MavenExecutionListener.Event) event).getThreadId(),
+							 ((MavenExecutionListener.Event) event).getThread())
+				: new Run(time(event), current.getId(), current.getName());
+		runs.put(event.getProject(), run);
+	}
+
+	@Override
+	public void projectSucceeded(ExecutionEvent event) {
+		finished(event);
+	}
+
+	@Override
+	public void projectFailed(ExecutionEvent event) {
+		finished(event);
+	}
+
+	@Override
+	public void sessionEnded(ExecutionEvent event) {
+		ProjectDependencyGraph graph = event.getSession().getProjectDependencyGraph();
+		if (graph == null || runs.isEmpty()) {
+			return;
+		}
+		long dropped = (event instanceof MavenExecutionListener.Event)
+				? ((MavenExecutionListener.Event) event).getDroppedEvents()
+				: 0;
+		if (dropped > 0) {
+			MavenExtension.log("Reactor analysis skipped: %d event(s) dropped (increase %s)",
+									 dropped, MavenExtension.P_EVENTS_QUEUE);
+			return;
+		}
+		report(graph, time(event));
+	}
+
+	private void finished(ExecutionEvent event) {
+		Run run = runs.get(event.getProject());
+		if (run != null) {
+			run.end = time(event);
+		}
+	}
+
+	private long time(ExecutionEvent event) {
+		return (event instanceof MavenExecutionListener.Event)
+				? ((MavenExecutionListener.Event) event).getNanoTime()
+				: System.nanoTime();
+	}
+
+	///
+
+	void report(ProjectDependencyGraph graph, long sessionEnd) {
+		List<MavenProject> projects = graph.getSortedProjects();
+		int n = projects.size();
+		Map<MavenProject, Integer> indexes = new IdentityHashMap<MavenProject, Integer>();
+		for (int i = 0; i < n; i++) {
+			indexes.put(projects.get(i), i);
+		}
+
+		// durations (projects not built count as zero) and direct upstream projects, in topological order
+		long[] durations = new long[n];
+		int[][] upstream = new int[n][];
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		long work = 0;
+		for (int i = 0; i < n; i++) {
+			Run run = runs.get(projects.get(i));
+			if (run != null) {
+				long end = (run.end >= 0) ? run.end : sessionEnd;
+				durations[i] = end - run.start;
+				first = Math.min(first, run.start);
+				last = Math.max(last, end);
+				work += durations[i];
+			}
+			List<MavenProject> ups = graph.getUpstreamProjects(projects.get(i), false);
+			upstream[i] = new int[ups.size()];
+			for (int j = 0; j < ups.size(); j++) {
+				Integer index = indexes.get(ups.get(j));
+				upstream[i][j] = (index != null) ? index : i; // self-reference is ignored
+			}
+		}
+		long wall = last - first;
+
+		// thread utilization
+		Map<Long, long[]> busy = new LinkedHashMap<Long, long[]>();
+		Map<Long, String> names = new HashMap<Long, String>();
+		synchronized (runs) {
+			for (Run run : runs.values()) {
+				long[] b = busy.get(run.threadId);
+				if (b == null) {
+					busy.put(run.threadId, b = new long[1]);
+					names.put(run.threadId, run.thread);
+				}
+				b[0] += ((run.end >= 0) ? run.end : sessionEnd) - run.start;
+			}
+		}
+
+		int[] previous = new int[n];
+		long[] finish = longestPaths(durations, upstream, -1, previous);
+		int end = 0;
+		for (int i = 1; i < n; i++) {
+			if (finish[i] > finish[end]) {
+				end = i;
+			}
+		}
+		long critical = finish[end];
+		LinkedList<Integer> path = new LinkedList<Integer>();
+		for (int i = end; i >= 0; i = previous[i]) {
+			path.addFirst(i);
+		}
+
+		MavenExtension.log("Reactor: %d projects, wall time %.3f s, total work %.3f s, %d thread(s), effective parallelism %.2f",
+								 n, wall / 1e9, work / 1e9, busy.size(), (wall > 0) ? (double) work / wall : 0);
+
+		MavenExtension.log("Critical path: %.3f s (%d%% of wall time), %d project(s):",
+								 critical / 1e9, (wall > 0) ? critical * 100 / wall : 0, path.size());
+		for (int i : path) {
+			MavenExtension.log("%10.3f s  %s", durations[i] / 1e9, projects.get(i).getArtifactId());
+		}
+
+		MavenExtension.log("Build threads (busy / idle):");
+		for (Map.Entry<Long, long[]> e : busy.entrySet()) {
+			long b = e.getValue()[0];
+			MavenExtension.log("%10.3f s / %.3f s  #%d (%s)", b / 1e9, Math.max(0, wall - b) / 1e9,
+									 e.getKey(), names.get(e.getKey()));
+		}
+
+		// only projects on the critical path can shorten it
+		final Map<Integer, Long> gains = new HashMap<Integer, Long>();
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int i : path) {
+			long[] f = longestPaths(durations, upstream, i, null);
+			long max = 0;
+			for (long v : f) {
+				max = Math.max(max, v);
+			}
+			if (critical - max > 0) {
+				gains.put(i, critical - max);
+				candidates.add(i);
+			}
+		}
+		Collections.sort(candidates, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return gains.get(o2).compareTo(gains.get(o1));
+			}
+		});
+		MavenExtension.log("Projects whose speedup would shorten the build most (max. gain / build time):");
+		for (int i : candidates.subList(0, Math.min(top, candidates.size()))) {
+			MavenExtension.log("%10.3f s / %.3f s  %s", gains.get(i) / 1e9, durations[i] / 1e9,
+									 projects.get(i).getArtifactId());
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int threads = 1; threads <= n; threads *= 2) {
+			long estimate = simulate(durations, upstream, threads);
+			sb.append(String.format("%s%d: %.3f s", sb.length() > 0 ? ", " : "", threads, estimate / 1e9));
+			if (estimate <= critical) {
+				break;
+			}
+		}
+		MavenExtension.log("Estimated wall time by thread count: %s", sb);
+	}
+
+	/**
+	 * Computes, for each project (in topological order), the earliest time it could finish given unlimited threads.
+	 *
+	 * @param skip     project to be treated as taking no time, or -1
+	 * @param previous if not {@code null}, receives the upstream project each finish time depends on (-1 if none)
+	 */
+	static long[] longestPaths(long[] durations, int[][] upstream, int skip, int[] previous) {
+		long[] finish = new long[durations.length];
+		for (int i = 0; i < durations.length; i++) {
+			long start = 0;
+			int prev = -1;
+			for (int u : upstream[i]) {
+				if (u < i && finish[u] > start) {
+					start = finish[u];
+					prev = u;
+				}
+			}
+			finish[i] = start + ((i == skip) ? 0 : durations[i]);
+			if (previous != null) {
+				previous[i] = prev;
+			}
+		}
+		return finish;
+	}
+
+	/**
+	 * Simulates list scheduling of the reactor with given number of threads: whenever a thread is free, it picks the
+	 * first project (in reactor order) whose upstream projects have all finished.
+	 *
+	 * @return estimated wall time
+	 */
+	static long simulate(long[] durations, int[][] upstream, int threads) {
+		int n = durations.length;
+		int[] pending = new int[n];
+		List<List<Integer>> downstream = new ArrayList<List<Integer>>(n);
+		for (int i = 0; i < n; i++) {
+			downstream.add(new ArrayList<Integer>(2));
+		}
+		for (int i = 0; i < n; i++) {
+			for (int u : upstream[i]) {
+				if (u < i) {
+					pending[i]++;
+					downstream.get(u).add(i);
+				}
+			}
+		}
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+		for (int i = 0; i < n; i++) {
+			if (pending[i] == 0) {
+				ready.add(i);
+			}
+		}
+		// running projects: {finish time, project}
+		PriorityQueue<long[]> running = new PriorityQueue<long[]>(threads, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return (o1[0] < o2[0]) ? -1 : (o1[0] == o2[0]) ? 0 : 1;
+			}
+		});
+		long now = 0;
+		while (!ready.isEmpty() || !running.isEmpty()) {
+			while (running.size() < threads && !ready.isEmpty()) {
+				int i = ready.poll();
+				running.add(new long[]{now + durations[i], i});
+			}
+			long[] done = running.poll();
+			now = done[0];
+			for (int d : downstream.get((int) done[1])) {
+				if (--pending[d] == 0) {
+					ready.add(d);
+				}
+			}
+		}
+		return now;
+	}
+}
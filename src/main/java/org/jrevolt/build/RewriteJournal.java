@@ -0,0 +1,816 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-ahead journal of POMs rewritten by one build session. Each record holds the original content hash and mtime,
+ * the hash of the rewritten content, and the original bytes of every patched range, which is enough to restore the
+ * original without keeping a backup copy. (POMs rewritten by the StAX fallback carry their full original content
+ * instead.)
+ * <p/>
+ * Protocol: the journal header (session root) is forced to disk when the session starts, before any temp file is
+ * created; rewritten POMs are first written to temp files; then the journal is written and forced to disk once more;
+ * then temp files atomically replace originals. Restore reverses the patches the same way and removes the journal. If the
+ * JVM dies in between, {@link #recover()} replays the journal at the start of the next session.
+ * <p/>
+ * Concurrent sessions (parallel builds in a shared checkout, several sessions of one Maven daemon) do not clash:
+ * <ul>
+ * <li>every session has its own journal in {@link #SESSIONS_DIR} and its own temp file names, and holds a lock (lease)
+ * on its journal for its whole life, so that journals of running sessions are told from those of crashed ones;</li>
+ * <li>a session that finds a POM rewritten by a running session to the very content it needs shares the rewrite: it
+ * journals the same original, and the POM is restored by the last session using it (reference count being the number
+ * of running sessions that journal it; sessions that have started restoring do not count, so that two sessions ending
+ * at once do not leave the POM to each other);</li>
+ * <li>journals of other sessions are read once per session and re-read only when one of them changes (see
+ * {@link Others});</li>
+ * <li>every check-and-replace of a POM runs under a lock of its directory, striped into {@link #STRIPES} byte ranges
+ * of one lock file (plus a JVM lock per stripe).</li>
+ * </ul>
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class RewriteJournal {
+
+	static public final String TEMP_SUFFIX = ".MavenExtension.tmp";
+
+	/**
+	 * Journals of all running (or crashed) sessions of the current user.
+	 */
+	static public final File SESSIONS_DIR = new File(System.getProperty("user.home"), ".m2/MavenExtension/sessions");
+
+	static private final String FORMAT = "MavenExtension.RewriteJournal.2";
+	static private final String JOURNAL_SUFFIX = ".journal";
+
+	// header state, overwritten in place: running, restoring
+	static private final byte RUNNING = '+';
+	static private final byte ENDING = '-';
+
+	/**
+	 * Grows by one byte whenever a session commits its journal, starts restoring or ends, so that other sessions know
+	 * when to re-read journals (see {@link Others}).
+	 */
+	static private final File CHANGES = new File(SESSIONS_DIR, "changes");
+
+	// one byte far beyond the content: readers are not blocked where locks are mandatory (Windows)
+	static private final long LEASE_POSITION = Long.MAX_VALUE - 1;
+
+	static final int STRIPES = 64;
+
+	/**
+	 * Journals leased by this JVM. Their files are never opened again here: on some platforms, closing any channel of
+	 * a file releases all locks the JVM holds on it.
+	 */
+	static private final Set<File> leased = new HashSet<File>();
+
+	/**
+	 * Restores POMs left rewritten by crashed sessions: journals in {@link #SESSIONS_DIR} whose owner is not running.
+	 *
+	 * @return number of restored files
+	 */
+	static public int recover() throws IOException {
+		int restored = 0;
+		for (File f : listJournals()) {
+			RewriteJournal journal = tryLease(f);
+			if (journal == null) {
+				continue; // running
+			}
+			try {
+				journal.read();
+			} catch (IOException e) {
+				// crashed before the header was written: nothing was created yet
+				MavenExtension.debug("Dropping journal %s: %s", f, e.getMessage());
+			}
+			if (!journal.records.isEmpty()) {
+				MavenExtension.log("Recovering POMs rewritten by interrupted build: %s (%s)", f, journal.root);
+			}
+			if (journal.root != null) {
+				// crashed before commit leaves temp files no record knows about; journal is kept until they are gone
+				deleteTempFiles(journal.root, "." + getSession(f));
+			}
+			restored += journal.restore();
+		}
+		return restored;
+	}
+
+	/**
+	 * Starts journal of a new session rewriting POMs under given execution root.
+	 */
+	static public RewriteJournal open(File root) throws IOException {
+		SESSIONS_DIR.mkdirs();
+		String id = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+		RewriteJournal journal = new RewriteJournal(new File(SESSIONS_DIR, id + JOURNAL_SUFFIX), id);
+		journal.root = root.getAbsoluteFile();
+		synchronized (leased) {
+			if (!journal.lease(true)) {
+				throw new IOException("Cannot lock journal " + journal.file);
+			}
+		}
+		// root must be known to recovery before the first temp file is created
+		journal.write(journal.header());
+		return journal;
+	}
+
+	final File file;
+	final String id;
+	File root;
+	final List<Record> records = Collections.synchronizedList(new ArrayList<Record>());
+
+	private FileChannel channel;
+	private boolean committed;
+	private Others others;
+	boolean ending; // in journals of other sessions: restore in progress
+
+	RewriteJournal(File file, String id) {
+		this.file = file.getAbsoluteFile();
+		this.id = id;
+	}
+
+	///
+
+	/**
+	 * Temp file next to given POM, unique to this session.
+	 */
+	public File newTempFile(File pom, String purpose) {
+		return new File(pom.getPath() + ((id != null) ? "." + id : "") + purpose + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Records POM patched into {@code temp} by given replacements (in original file coordinates).
+	 */
+	public void add(File pom, File temp, List<PomRewriter.Replacement> replacements) throws IOException {
+		Record r = new Record(relativize(pom), pom, temp);
+		long shift = 0;
+		InputStream in = new FileInputStream(pom);
+		try {
+			long pos = 0;
+			for (PomRewriter.Replacement rep : replacements) {
+				IOUtils.skipFully(in, rep.start - pos);
+				byte[] original = new byte[(int) (rep.end - rep.start)];
+				IOUtils.readFully(in, original);
+				pos = rep.end;
+				// reverse patch, in rewritten file coordinates
+				r.ranges.add(new PomRewriter.Replacement(rep.start + shift, rep.start + shift + rep.bytes.length, original));
+				shift += rep.bytes.length - original.length;
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		records.add(r);
+	}
+
+	/**
+	 * Records POM rewritten into {@code temp} by other means; full original content is journaled.
+	 */
+	public void addFull(File pom, File temp) throws IOException {
+		Record r = new Record(relativize(pom), pom, temp);
+		r.original = FileUtils.readFileToByteArray(pom);
+		records.add(r);
+	}
+
+	/**
+	 * Records POM already rewritten by another running session (see {@link #findHolder}) to the same content as
+	 * {@code temp}. The original is taken over from the other session's record, so whichever session ends last
+	 * restores it.
+	 */
+	public void share(File pom, File temp, Record holder) throws IOException {
+		Record r = new Record(relativize(pom), holder.modified, holder.originalHash);
+		r.rewrittenHash = sha1(temp);
+		if (!r.rewrittenHash.equals(holder.rewrittenHash)) {
+			throw new IOException("Cannot share rewritten POM, content differs: " + pom);
+		}
+		r.ranges.addAll(holder.ranges);
+		r.original = holder.original;
+		r.temp = temp;
+		records.add(r);
+	}
+
+	/**
+	 * Writes and forces the journal. Must complete before any original is replaced.
+	 */
+	public synchronized void commit() throws IOException {
+		if (records.isEmpty()) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder(header());
+		synchronized (records) {
+			for (Record r : records) {
+				sb.append(r).append('\n');
+			}
+		}
+		write(sb.toString());
+		committed = true;
+		changed();
+	}
+
+	/**
+	 * Atomically replaces journaled POM with its rewritten temp file, unless it is already rewritten the same way by
+	 * another session.
+	 * <p/>
+	 * A POM rewritten differently by another running session (one that prepared it at the same time as this one) is
+	 * waited for if that session's journal name sorts after this one's; otherwise this session has to yield: it
+	 * {@link #rollback() rolls back}, {@link #await awaits} the returned holder and applies again. The order makes
+	 * sure two sessions never wait for each other.
+	 *
+	 * @return holder this session has to yield to, or {@code null} if the POM is in place
+	 * @throws IOException if the POM has been changed by other means since it was journaled
+	 */
+	public Record apply(Record r) throws IOException {
+		File pom = new File(root, r.path);
+		while (true) {
+			Record holder;
+			Stripe stripe = Stripe.lock(pom);
+			try {
+				String hash = sha1(pom);
+				if (hash.equals(r.rewrittenHash)) {
+					FileUtils.deleteQuietly(r.temp);
+					return null;
+				}
+				if (hash.equals(r.originalHash)) {
+					move(r.temp, pom);
+					return null;
+				}
+				// committed after this session looked: not in the journals read so far
+				synchronized (this) {
+					if (others != null) {
+						others.reload();
+					}
+				}
+				holder = findHolder(pom);
+				if (holder == null) {
+					throw new IOException("POM changed during build: " + pom);
+				}
+				if (file.getName().compareTo(holder.journal.getName()) > 0) {
+					return holder;
+				}
+			} finally {
+				stripe.unlock();
+			}
+			MavenExtension.debug("Waiting for concurrent build to release %s (%s)", pom, holder.journal);
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for " + holder.journal);
+			}
+		}
+	}
+
+	/**
+	 * Restores POMs this session has applied and no other running session uses, keeping their rewritten content in
+	 * temp files for the next {@link #apply}.
+	 */
+	public void rollback() throws IOException {
+		for (Record r : getRecords()) {
+			File pom = new File(root, r.path);
+			Stripe stripe = Stripe.lock(pom);
+			try {
+				if (!pom.isFile() || !sha1(pom).equals(r.rewrittenHash) || findHolder(pom) != null) {
+					continue;
+				}
+				File tmp = newTempFile(pom, "-original");
+				if (writeOriginal(r, pom, tmp)) {
+					FileUtils.copyFile(pom, r.temp);
+					move(tmp, pom);
+				}
+			} finally {
+				stripe.unlock();
+			}
+		}
+	}
+
+	public List<Record> getRecords() {
+		synchronized (records) {
+			return new ArrayList<Record>(records);
+		}
+	}
+
+	/**
+	 * Restores all journaled POMs no other running session uses, deletes the journal and releases the lease. Files
+	 * whose content is neither original nor rewritten (modified by someone else meanwhile) are left untouched.
+	 *
+	 * @return number of restored files
+	 */
+	public synchronized int restore() throws IOException {
+		int restored = 0;
+		try {
+			if (committed) {
+				// sessions ending at the same time must not both leave a shared POM to the other one
+				channel.write(ByteBuffer.wrap(new byte[]{ENDING}), FORMAT.getBytes("UTF-8").length + 1);
+				changed();
+			}
+			for (Record r : getRecords()) {
+				File pom = new File(root, r.path);
+				FileUtils.deleteQuietly(r.temp);
+				Stripe stripe = Stripe.lock(pom);
+				try {
+					if (!pom.isFile()) {
+						continue;
+					}
+					String hash = sha1(pom);
+					if (hash.equals(r.originalHash)) {
+						continue; // never replaced, or already restored
+					}
+					if (!hash.equals(r.rewrittenHash)) {
+						MavenExtension.log("Not restoring %s: modified during build", pom);
+						continue;
+					}
+					Record holder = findHolder(pom);
+					if (holder != null && !holder.ending) {
+						MavenExtension.debug("Not restoring %s: still used by %s", pom, holder.journal);
+						continue;
+					}
+					MavenExtension.debug("Restoring original POM: %s", pom);
+					File tmp = newTempFile(pom, "");
+					if (writeOriginal(r, pom, tmp)) {
+						move(tmp, pom);
+						restored++;
+					}
+				} finally {
+					stripe.unlock();
+				}
+			}
+			records.clear();
+		} finally {
+			close();
+		}
+		return restored;
+	}
+
+	///
+
+	/**
+	 * Finds record of another running session which has given POM rewritten at the moment. Only committed journals are
+	 * considered; journals of crashed sessions are left to {@link #recover}.
+	 *
+	 * @return record, or {@code null} if no other running build uses the POM
+	 */
+	public Record findHolder(File pom) throws IOException {
+		synchronized (this) {
+			if (others == null) {
+				others = new Others();
+			}
+		}
+		return others.findHolder(pom);
+	}
+
+	/**
+	 * Blocks until the session owning given record ends (or dies); next {@link #findHolder} re-reads journals.
+	 */
+	public void await(Record holder) throws IOException {
+		while (holder.journal.isFile() && isRunning(holder.journal)) {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for " + holder.journal);
+			}
+		}
+		synchronized (this) {
+			if (others != null) {
+				others.reload(); // a crashed session does not record a change
+			}
+		}
+	}
+
+	/**
+	 * Writes original content of given POM, rewritten as journaled in given record, into {@code target}.
+	 *
+	 * @return {@code false} if the POM is not in the rewritten state (anymore)
+	 */
+	static public boolean writeOriginal(Record r, File pom, File target) throws IOException {
+		if (r.original != null) {
+			FileUtils.writeByteArrayToFile(target, r.original);
+		} else {
+			PomRewriter.replace(pom, target, r.ranges);
+		}
+		if (!sha1(target).equals(r.originalHash)) {
+			FileUtils.deleteQuietly(target);
+			return false;
+		}
+		target.setLastModified(r.modified);
+		return true;
+	}
+
+	///
+
+	private String header() {
+		return FORMAT + '\n' + (char) RUNNING + '\n' + root.getPath() + '\n';
+	}
+
+	/**
+	 * Replaces journal content and forces it to disk. Written in place: replacing the file would lose the lease.
+	 */
+	private void write(String content) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(content.getBytes("UTF-8"));
+		channel.truncate(0);
+		while (buf.hasRemaining()) {
+			channel.write(buf, buf.position());
+		}
+		channel.force(true);
+	}
+
+	/**
+	 * Deletes temp files of given session ({@code *.<id>*}{@value #TEMP_SUFFIX}) anywhere under given root, hidden
+	 * directories excepted.
+	 */
+	static private void deleteTempFiles(File dir, String session) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			String name = f.getName();
+			if (f.isDirectory()) {
+				if (!name.startsWith(".")) {
+					deleteTempFiles(f, session);
+				}
+			} else if (name.endsWith(TEMP_SUFFIX) && name.contains(session)) {
+				MavenExtension.debug("Deleting temp file of interrupted build: %s", f);
+				FileUtils.deleteQuietly(f);
+			}
+		}
+	}
+
+	/**
+	 * Session id of given journal (its name, which is also part of the session's temp file names).
+	 */
+	static private String getSession(File journal) {
+		return journal.getName().substring(0, journal.getName().length() - JOURNAL_SUFFIX.length());
+	}
+
+	static private File[] listJournals() {
+		File[] files = SESSIONS_DIR.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().endsWith(JOURNAL_SUFFIX);
+			}
+		});
+		return (files != null) ? files : new File[0];
+	}
+
+	static private boolean isRunning(File f) {
+		RewriteJournal journal = tryLease(f);
+		if (journal == null) {
+			return true;
+		}
+		journal.release();
+		return false;
+	}
+
+	/**
+	 * Acquires lease of a journal whose owner is not running.
+	 *
+	 * @return leased journal, or {@code null} if the owner is running (or the journal is gone)
+	 */
+	static private RewriteJournal tryLease(File f) {
+		synchronized (leased) {
+			if (leased.contains(f.getAbsoluteFile()) || !f.isFile()) {
+				return null;
+			}
+			RewriteJournal journal = new RewriteJournal(f, null);
+			try {
+				return journal.lease(false) ? journal : null;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+
+	private boolean lease(boolean wait) throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		FileLock lease = null;
+		try {
+			lease = wait ? channel.lock(LEASE_POSITION, 1, false) : channel.tryLock(LEASE_POSITION, 1, false);
+		} catch (OverlappingFileLockException e) {
+			// held by this JVM
+		} finally {
+			if (lease == null) {
+				IOUtils.closeQuietly(channel);
+				channel = null;
+			}
+		}
+		if (lease != null) {
+			leased.add(file);
+		}
+		return lease != null;
+	}
+
+	private void release() {
+		synchronized (leased) {
+			IOUtils.closeQuietly(channel); // releases the lease
+			channel = null;
+			leased.remove(file);
+		}
+	}
+
+	private void close() {
+		synchronized (leased) {
+			FileUtils.deleteQuietly(file); // while leased, so that no one recovers it meanwhile
+			release();
+			FileUtils.deleteQuietly(file); // platforms that do not delete open files
+		}
+		if (committed) {
+			committed = false;
+			changed();
+		}
+	}
+
+	static private void changed() {
+		try {
+			FileOutputStream out = new FileOutputStream(CHANGES, true);
+			try {
+				out.write('.');
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			MavenExtension.debug("Cannot record journal change: %s", e);
+		}
+	}
+
+	private void read() throws IOException {
+		List<String> lines = FileUtils.readLines(file, "UTF-8");
+		if (lines.isEmpty() || !lines.get(0).equals(FORMAT)) {
+			throw new IOException("Unsupported journal format: " + file);
+		}
+		if (lines.size() < 3 || lines.get(1).length() != 1) {
+			throw new IOException("Incomplete journal: " + file);
+		}
+		ending = lines.get(1).charAt(0) == ENDING;
+		root = new File(lines.get(2));
+		String session = getSession(file);
+		for (String line : lines.subList(3, lines.size())) {
+			if (!line.isEmpty()) {
+				Record r = Record.parse(line);
+				r.temp = new File(root, r.path + "." + session + TEMP_SUFFIX);
+				records.add(r);
+			}
+		}
+	}
+
+	private String relativize(File pom) {
+		return root.toPath().relativize(pom.toPath().toAbsolutePath()).toString();
+	}
+
+	static private File normalize(File f) {
+		return f.getAbsoluteFile().toPath().normalize().toFile();
+	}
+
+	static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+						  StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	static String sha1(File f) throws IOException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			InputStream in = new FileInputStream(f);
+			try {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					md.update(buf, 0, n);
+				}
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+			return GitRepository.toHex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new UnsupportedOperationException(e);
+		}
+	}
+
+	///
+
+	/**
+	 * Lock of a POM's directory stripe: a JVM lock, and a lock of one byte of the shared lock file (if it can be
+	 * written) against other processes. Only one stripe is held at a time, so stripes cannot deadlock.
+	 */
+	static class Stripe {
+
+		static private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+		static {
+			for (int i = 0; i < STRIPES; i++) {
+				locks[i] = new ReentrantLock();
+			}
+		}
+
+		static private FileChannel channel;
+		static private boolean unavailable;
+
+		static Stripe lock(File pom) throws IOException {
+			int index = (normalize(pom).getParent().hashCode() & 0x7fffffff) % STRIPES;
+			locks[index].lock();
+			try {
+				FileChannel ch = getChannel();
+				return new Stripe(index, (ch != null) ? ch.lock(index, 1, false) : null);
+			} catch (IOException e) {
+				locks[index].unlock();
+				throw e;
+			} catch (RuntimeException e) {
+				locks[index].unlock();
+				throw e;
+			}
+		}
+
+		static synchronized private FileChannel getChannel() {
+			if (channel == null && !unavailable) {
+				try {
+					SESSIONS_DIR.mkdirs();
+					// never closed: closing would release locks of other threads
+					channel = new RandomAccessFile(new File(SESSIONS_DIR, "stripes.lock"), "rw").getChannel();
+				} catch (IOException e) {
+					MavenExtension.debug("POM locks are local to this JVM: %s", e);
+					unavailable = true;
+				}
+			}
+			return channel;
+		}
+
+		final int index;
+		final FileLock lock;
+
+		Stripe(int index, FileLock lock) {
+			this.index = index;
+			this.lock = lock;
+		}
+
+		void unlock() {
+			try {
+				if (lock != null) {
+					lock.release();
+				}
+			} catch (IOException e) {
+				MavenExtension.debug("Cannot release POM lock: %s", e);
+			} finally {
+				locks[index].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Committed journals of other running sessions, by POM. Read at the first lookup and re-read only if some session
+	 * has committed, started restoring or ended since ({@link #CHANGES} has grown), so that a lookup costs a
+	 * {@code stat} and, for POMs in the map, a hash of the POM.
+	 */
+	class Others {
+
+		private long changes = -1;
+		private Map<File, List<Record>> records = Collections.emptyMap();
+
+		synchronized Record findHolder(File pom) throws IOException {
+			long current = CHANGES.length();
+			if (current != changes) {
+				changes = current; // taken first: changes made while reading are seen next time
+				records = load();
+			}
+			List<Record> candidates = records.get(normalize(pom));
+			if (candidates == null || !pom.isFile()) {
+				return null;
+			}
+			String hash = sha1(pom);
+			for (Record r : candidates) {
+				if (hash.equals(r.rewrittenHash) && !hash.equals(r.originalHash)) {
+					return r;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Forces the next lookup to re-read journals.
+		 */
+		synchronized void reload() {
+			changes = -1;
+		}
+
+		private Map<File, List<Record>> load() {
+			Map<File, List<Record>> map = new HashMap<File, List<Record>>();
+			for (File f : listJournals()) {
+				if (f.equals(file) || !isRunning(f)) {
+					continue;
+				}
+				RewriteJournal other = new RewriteJournal(f, null);
+				try {
+					other.read();
+				} catch (IOException e) {
+					continue; // not committed, or ended meanwhile
+				}
+				for (Record r : other.records) {
+					r.journal = f;
+					r.ending = other.ending;
+					File key = normalize(new File(other.root, r.path));
+					List<Record> list = map.get(key);
+					if (list == null) {
+						map.put(key, list = new ArrayList<Record>(1));
+					}
+					list.add(r);
+				}
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Journal record of one rewritten POM.
+	 */
+	static public class Record {
+
+		final String path;
+		final long modified;
+		final String originalHash;
+		String rewrittenHash;
+		final List<PomRewriter.Replacement> ranges = new ArrayList<PomRewriter.Replacement>(2);
+		byte[] original;
+		transient File temp;
+		transient File journal; // owner, in records of other sessions
+		transient boolean ending; // owner is restoring
+
+		Record(String path, File pom, File temp) throws IOException {
+			this(path, pom.lastModified(), sha1(pom));
+			this.temp = temp;
+			this.rewrittenHash = sha1(temp);
+		}
+
+		private Record(String path, long modified, String originalHash) {
+			this.path = path;
+			this.modified = modified;
+			this.originalHash = originalHash;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public File getJournal() {
+			return journal;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(path).append('\t').append(modified).append('\t')
+					.append(originalHash).append('\t').append(rewrittenHash).append('\t');
+			if (original != null) {
+				sb.append("*").append(GitRepository.toHex(original));
+			} else {
+				for (PomRewriter.Replacement r : ranges) {
+					sb.append(r.start).append(',').append(r.end).append(',').append(GitRepository.toHex(r.bytes)).append(';');
+				}
+			}
+			return sb.toString();
+		}
+
+		static Record parse(String line) {
+			String[] t = line.split("\t", -1);
+			Record r = new Record(t[0], Long.parseLong(t[1]), t[2]);
+			r.rewrittenHash = t[3];
+			if (t[4].startsWith("*")) {
+				r.original = GitRepository.toBytes(t[4].substring(1));
+			} else {
+				for (String range : t[4].split(";")) {
+					if (range.isEmpty()) {
+						continue;
+					}
+					String[] v = range.split(",", -1);
+					r.ranges.add(new PomRewriter.Replacement(
+							Long.parseLong(v[0]), Long.parseLong(v[1]), GitRepository.toBytes(v[2])));
+				}
+			}
+			return r;
+		}
+	}
+}
@@ -1,27 +1,55 @@
 package org.jrevolt.build;
 
-import static org.twdata.maven.mojoexecutor.MojoExecutor.configuration;
-import static org.twdata.maven.mojoexecutor.MojoExecutor.element;
-import static org.twdata.maven.mojoexecutor.MojoExecutor.executeMojo;
-import static org.twdata.maven.mojoexecutor.MojoExecutor.executionEnvironment;
-import static org.twdata.maven.mojoexecutor.MojoExecutor.goal;
-import static org.twdata.maven.mojoexecutor.MojoExecutor.name;
-import static org.twdata.maven.mojoexecutor.MojoExecutor.plugin;
-
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.maven.execution.MavenSession;
-import org.apache.maven.model.Dependency;
-import org.apache.maven.model.Plugin;
 import org.apache.maven.plugin.AbstractMojo;
-import org.apache.maven.plugin.BuildPluginManager;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
-import org.apache.maven.project.MavenProject;
-import org.twdata.maven.mojoexecutor.MojoExecutor;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactType;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.graph.Dependency;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResolutionException;
+import org.eclipse.aether.resolution.VersionRequest;
+import org.eclipse.aether.resolution.VersionResolutionException;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Allows executing any class from any artifact in repository, without any project required.
+ * <p/>
+ * Main artifact and its runtime dependencies are resolved once; the resolved classpath is cached in the local
+ * repository (see {@link ClasspathCache}), and later runs of the same artifact version launch the main class right
+ * away. A SNAPSHOT main artifact is keyed by its timestamped version and by its local POM, so a new deployment or
+ * local install is picked up (changes of its SNAPSHOT dependencies are not).
+ * <p/>
+ * By default, main class runs inside Maven JVM. In fork mode, it runs in a child JVM which, on JDK 13+, gets a
+ * per-artifact dynamic CDS archive (see {@link CdsArchive}) created by the first run. In daemon mode, it runs in a
+ * long-lived local JVM (see {@link LauncherDaemon}), started on demand, which keeps class loaders of recently used
+ * artifacts.
+ * <p/>
+ * A {@link #batch} runs several entry points at once, in any of the modes.
  *
  * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
  * @version $Id$
@@ -32,78 +60,604 @@ import java.util.LinkedList;
 public class RunMojo extends AbstractMojo {
 
 	/**
-	 * The project currently being build.
+	 * The current Maven session.
 	 *
-	 * @parameter default-value="${project}"
+	 * @parameter default-value="${session}"
 	 * @required
 	 * @readonly
 	 */
-	private MavenProject project;
+	MavenSession session;
 
 	/**
-	 * The current Maven session.
+	 * The entry point to Aether, i.e. the component doing all the work.
 	 *
-	 * @parameter default-value="${session}"
-	 * @parameter required
+	 * @component
+	 * @required
+	 */
+	RepositorySystem repoSystem;
+
+	/**
+	 * The current repository/network configuration of Maven.
+	 *
+	 * @parameter default-value="${repositorySystemSession}"
+	 * @required
 	 * @readonly
 	 */
-	MavenSession session;
+	RepositorySystemSession repoSession;
 
 	/**
-	 * The Maven BuildPluginManager component.
+	 * The project's remote repositories to use for the resolution.
 	 *
-	 * @component
+	 * @parameter default-value="${project.remoteProjectRepositories}"
 	 * @required
+	 * @readonly
 	 */
-	BuildPluginManager pluginManager;
+	List<RemoteRepository> remoteRepositories;
 
 	/**
+	 * Required unless {@link #batch} is given.
+	 *
 	 * @parameter default-value="${run.mainClass}"
-	 * @required
 	 */
 	String mainClass;
 
 	/**
+	 * Required unless {@link #batch} is given.
+	 *
 	 * @parameter default-value="${run.mainArtifact}"
-	 * @required
 	 */
 	String mainArtifact;
 
+	/**
+	 * Arguments passed to the main class, parsed like a command line (quoting is supported).
+	 *
+	 * @parameter default-value="${run.args}"
+	 */
+	String args;
+
+	/**
+	 * Whether to cache resolved classpath in the local repository.
+	 *
+	 * @parameter property="run.cache" default-value="true"
+	 */
+	boolean cache;
+
+	/**
+	 * Whether to run the main class in a child JVM rather than in Maven JVM.
+	 *
+	 * @parameter property="run.fork" default-value="false"
+	 */
+	boolean fork;
+
+	/**
+	 * Options of the child JVM (fork mode), parsed like a command line. Maven user properties ({@code -Dname=value}) are
+	 * always passed on.
+	 *
+	 * @parameter default-value="${run.jvmArgs}"
+	 */
+	String jvmArgs;
+
+	/**
+	 * Java installation running the child JVM (fork mode).
+	 *
+	 * @parameter property="run.javaHome" default-value="${java.home}"
+	 */
+	File javaHome;
+
+	/**
+	 * Whether the child JVM (fork mode) uses per-artifact dynamic CDS archive, created by the first run. Requires JDK
+	 * 13+, ignored otherwise.
+	 *
+	 * @parameter property="run.cds" default-value="true"
+	 */
+	boolean cds;
+
+	/**
+	 * Whether to run the main class in a warm launcher daemon (started on demand, with {@link #jvmArgs} and
+	 * {@link #javaHome}). Takes precedence over {@link #fork}. Falls back to fork mode where the daemon cannot trap
+	 * {@code System.exit()} (Java 24 and newer).
+	 *
+	 * @parameter property="run.daemon" default-value="false"
+	 */
+	boolean daemon;
+
+	/**
+	 * Maximum number of class loaders (main artifacts) kept by the daemon.
+	 *
+	 * @parameter property="run.daemon.loaders" default-value="16"
+	 */
+	int daemonLoaders;
+
+	/**
+	 * Minutes after which the daemon closes an unused class loader; it exits when it has none left.
+	 *
+	 * @parameter property="run.daemon.idle" default-value="30"
+	 */
+	int daemonIdle;
+
+	/**
+	 * Batch of tasks replacing {@link #mainArtifact}, {@link #mainClass} and {@link #args}: one task per line (or
+	 * separated by {@code ;}), each being {@code groupId:artifactId:version:packaging mainClass [arguments]}, parsed like
+	 * {@link #args}. Classpaths of all tasks are resolved before any of them starts; tasks then run concurrently (in
+	 * the mode selected by {@link #fork} or {@link #daemon}), each with its own class loader and with its output lines
+	 * prefixed by {@code [number:artifactId]}.
+	 *
+	 * @parameter default-value="${run.batch}"
+	 */
+	String batch;
+
+	/**
+	 * Maximum number of batch tasks resolved and run at the same time; {@code 0} stands for the number of CPUs.
+	 *
+	 * @parameter property="run.batch.threads" default-value="0"
+	 */
+	int batchThreads;
+
+	/**
+	 * Whether batch tasks run one by one in the given order, stopping at the first failed task.
+	 *
+	 * @parameter property="run.batch.sequential" default-value="false"
+	 */
+	boolean batchSequential;
+
 	@Override
 	public void execute() throws MojoExecutionException, MojoFailureException {
+		int version = daemon ? CdsArchive.getJavaVersion(javaHome) : 0;
+		if (daemon && !LauncherDaemon.canTrapExit(version)) {
+			getLog().warn(String.format("Daemon mode needs a JVM that can trap System.exit() with a security manager "
+													  + "(Java 23 and older), %s is Java %d; running in fork mode",
+												 javaHome, version));
+			daemon = false;
+			fork = true;
+		}
+		if (StringUtils.isNotBlank(batch)) {
+			executeBatch(parseBatch(batch));
+			return;
+		}
+		if (mainArtifact == null || mainClass == null) {
+			throw new MojoFailureException("Specify run.mainArtifact and run.mainClass (or run.batch)");
+		}
+		Task task = new Task(mainArtifact, mainClass, parseArguments(args));
+		prepare(task);
+		task.classpath = resolveClasspath(task.artifact, task.key);
+		int status = launch(task, System.out, System.err, System.in);
+		if (status != 0) {
+			throw new MojoExecutionException(String.format("%s exited with %d", mainClass, status));
+		}
+	}
+
+	/**
+	 * Runs the task in the selected mode.
+	 *
+	 * @return exit status of the task (in-process task either succeeds or throws)
+	 */
+	int launch(Task task, OutputStream stdout, OutputStream stderr, InputStream stdin)
+			throws MojoExecutionException, MojoFailureException {
+		if (daemon) {
+			return runInDaemon(task, stdout, stderr);
+		}
+		if (fork) {
+			return fork(task, stdout, stderr, stdin);
+		}
+		try {
+			Launcher.run(Launcher.newClassLoader(task.classpath), task.mainClass, task.args);
+			return 0;
+		} catch (IllegalArgumentException e) {
+			throw new MojoFailureException(e.getMessage(), e);
+		} catch (Throwable e) {
+			throw new MojoExecutionException("An exception occured while executing the Java class. " + e.getMessage(), e);
+		}
+	}
+
+	///
+
+	/**
+	 * Entry point to run, with its resolution and its outcome.
+	 */
+	static class Task {
+
+		final String mainArtifact;
+		final String mainClass;
+		final String[] args;
+		String name;
 
-		MojoExecutor.ExecutionEnvironment env = executionEnvironment(project, session, pluginManager);
+		Artifact artifact;
+		String key;
+		List<File> classpath;
 
-		Dependency dependency = new Dependency();
-		{
-			String[] tokens = mainArtifact.split(":");
-			if (tokens.length != 4) {
+		/** exit status; {@code null} if the task has not run */
+		Integer status;
+		long millis;
+
+		Task(String mainArtifact, String mainClass, String[] args) {
+			this.mainArtifact = mainArtifact;
+			this.mainClass = mainClass;
+			this.args = args;
+		}
+	}
+
+	void prepare(Task task) throws MojoExecutionException, MojoFailureException {
+		task.artifact = parseArtifact(task.mainArtifact);
+		task.key = isVersionRange(task.artifact.getVersion()) ? null : getCacheKey(task.artifact, task.mainArtifact);
+	}
+
+	/**
+	 * Splits batch into tasks, at line breaks and {@code ;} outside of quotes.
+	 */
+	static List<Task> parseBatch(String batch) throws MojoFailureException {
+		List<String> entries = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		char quote = 0;
+		for (char c : batch.toCharArray()) {
+			if (quote == 0 && (c == ';' || c == '\n' || c == '\r')) {
+				entries.add(sb.toString());
+				sb.setLength(0);
+				continue;
+			}
+			if (quote == 0 && (c == '\'' || c == '"')) {
+				quote = c;
+			} else if (c == quote) {
+				quote = 0;
+			}
+			sb.append(c);
+		}
+		entries.add(sb.toString());
+
+		List<Task> tasks = new ArrayList<Task>();
+		for (String entry : entries) {
+			String[] tokens = parseArguments(entry);
+			if (tokens.length == 0) {
+				continue;
+			}
+			if (tokens.length < 2) {
 				throw new MojoFailureException(
-						"Invalid artifact definition: \"" + mainArtifact + "\". Expected: groupId:artifactId:version:packaging");
+						"Invalid batch entry: \"" + entry.trim() + "\". Expected: groupId:artifactId:version:packaging mainClass [arguments]");
 			}
+			String[] coordinates = tokens[0].split(":");
+			Task task = new Task(tokens[0], tokens[1], Arrays.copyOfRange(tokens, 2, tokens.length));
+			task.name = String.format("%d:%s", tasks.size() + 1, coordinates[Math.min(1, coordinates.length - 1)]);
+			tasks.add(task);
+		}
+		if (tasks.isEmpty()) {
+			throw new MojoFailureException("Empty batch");
+		}
+		return tasks;
+	}
 
-			dependency.setGroupId(tokens[0]);
-			dependency.setArtifactId(tokens[1]);
-			dependency.setVersion(tokens[2]);
-			dependency.setType(tokens[3]);
+	/**
+	 * Resolves all tasks (concurrently), then runs them (concurrently, unless {@link #batchSequential}), and reports
+	 * their outcome.
+	 */
+	void executeBatch(final List<Task> tasks) throws MojoExecutionException, MojoFailureException {
+		int threads = (batchThreads > 0) ? batchThreads : Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		// captured before redirection, prefixed lines go straight to the console
+		final PrintStream stdout = System.out;
+		final PrintStream stderr = System.err;
+		boolean inProcess = !daemon && !fork;
+		try {
+			long started = System.currentTimeMillis();
+			for (Task task : tasks) {
+				prepare(task);
+			}
+			List<Future<List<File>>> resolved = new ArrayList<Future<List<File>>>();
+			for (final Task task : tasks) {
+				resolved.add(executor.submit(new Callable<List<File>>() {
+					@Override
+					public List<File> call() throws Exception {
+						return resolveClasspath(task.artifact, task.key);
+					}
+				}));
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				tasks.get(i).classpath = get(resolved.get(i));
+			}
+			getLog().debug(String.format("Resolved %d task(s) in %d msec", tasks.size(),
+												  System.currentTimeMillis() - started));
+
+			if (inProcess) {
+				Launcher.installRedirection();
+			}
+			if (batchSequential) {
+				for (Task task : tasks) {
+					if (runTask(task, stdout, stderr) != 0) {
+						break;
+					}
+				}
+			} else {
+				List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+				for (final Task task : tasks) {
+					results.add(executor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() {
+							return runTask(task, stdout, stderr);
+						}
+					}));
+				}
+				for (Future<Integer> result : results) {
+					get(result);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			if (inProcess) {
+				Launcher.uninstallRedirection();
+			}
 		}
 
-		Plugin exec = plugin("org.codehaus.mojo", "exec-maven-plugin", "1.2.1");
-		// Maven 3.1 update: original dependency list is immutable, must build a new one
-		exec.setDependencies(new LinkedList<Dependency>(exec.getDependencies()));
-		exec.addDependency(dependency);
+		int failed = 0;
+		for (Task task : tasks) {
+			if (task.status == null) {
+				getLog().info(String.format("[%s] %s: skipped", task.name, task.mainClass));
+				failed++;
+			} else if (task.status != 0) {
+				getLog().error(String.format("[%s] %s: exited with %d in %d msec", task.name, task.mainClass, task.status,
+													  task.millis));
+				failed++;
+			} else {
+				getLog().info(String.format("[%s] %s: OK in %d msec", task.name, task.mainClass, task.millis));
+			}
+		}
+		if (failed > 0) {
+			throw new MojoExecutionException(String.format("%d of %d task(s) failed or skipped", failed, tasks.size()));
+		}
+	}
 
-		executeMojo(
-				exec,
-				goal("java"),
-				configuration(
-						element(name("mainClass"), mainClass),
-						element(name("includeProjectDependencies"), "false"),
-						element(name("includeProjectDependencies"), "false"),
-						element(name("includePluginDependencies"), "true")
-				),
-				env);
+	/**
+	 * Runs batch task with prefixed output. Failure to run the task is reported to its output.
+	 *
+	 * @return exit status, also recorded in the task
+	 */
+	int runTask(Task task, OutputStream stdout, OutputStream stderr) {
+		Launcher.Prefixed out = new Launcher.Prefixed(stdout, String.format("[%s] ", task.name));
+		Launcher.Prefixed err = new Launcher.Prefixed(stderr, String.format("[%s] ", task.name));
+		long started = System.currentTimeMillis();
+		try {
+			Launcher.redirect(out, err);
+			task.status = launch(task, out, err, null);
+		} catch (Exception e) {
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			cause.printStackTrace(new PrintStream(err, true));
+			task.status = 1;
+		} finally {
+			Launcher.redirect(null, null);
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(err);
+			task.millis = System.currentTimeMillis() - started;
+		}
+		return task.status;
 	}
 
-}
+	static <T> T get(Future<T> future) throws MojoExecutionException, MojoFailureException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new MojoExecutionException("Interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MojoExecutionException) {
+				throw (MojoExecutionException) e.getCause();
+			}
+			if (e.getCause() instanceof MojoFailureException) {
+				throw (MojoFailureException) e.getCause();
+			}
+			throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	///
+
+	int fork(Task task, OutputStream stdout, OutputStream stderr, InputStream stdin)
+			throws MojoExecutionException, MojoFailureException {
+		List<String> options = new ArrayList<String>();
+		CdsArchive archive = (cds && task.key != null) ? openCdsArchive(task.key, task.classpath) : null;
+		try {
+			if (archive != null) {
+				options.addAll(archive.getJvmArgs());
+			}
+			options.addAll(Arrays.asList(parseArguments(jvmArgs)));
+			for (String name : session.getUserProperties().stringPropertyNames()) {
+				options.add(String.format("-D%s=%s", name, session.getUserProperties().getProperty(name)));
+			}
+
+			long started = System.currentTimeMillis();
+			int status = Launcher.fork(new File(javaHome, "bin/java"), options, task.classpath, task.mainClass, task.args,
+												stdout, stderr, stdin);
+			getLog().debug(String.format("%s exited with %d in %d msec", task.mainClass, status,
+												  System.currentTimeMillis() - started));
+			if (archive != null && archive.finish(status == 0)) {
+				getLog().info("Created CDS archive " + archive.getFile());
+			}
+			return status;
+		} catch (IOException e) {
+			throw new MojoExecutionException("Cannot fork JVM: " + e.getMessage(), e);
+		}
+	}
+
+	int runInDaemon(Task task, OutputStream stdout, OutputStream stderr) throws MojoExecutionException, MojoFailureException {
+		// daemon runs this plugin's classes (and the libraries they link to)
+		List<File> daemonClasspath = new ArrayList<File>();
+		for (Class<?> c : Arrays.asList(LauncherDaemon.class, FileUtils.class, StringUtils.class, CommandLine.class)) {
+			daemonClasspath.add(new File(c.getProtectionDomain().getCodeSource().getLocation().getPath()));
+		}
+		List<String> command = new ArrayList<String>();
+		command.add(new File(javaHome, "bin/java").getPath());
+		command.addAll(Arrays.asList(parseArguments(jvmArgs)));
+		int version = CdsArchive.getJavaVersion(javaHome);
+		if (version >= 18 && version < 24) {
+			command.add("-Djava.security.manager=allow"); // lets daemon trap System.exit()
+		}
+		command.add("-cp");
+		command.add(StringUtils.join(daemonClasspath, File.pathSeparator));
+		command.add(LauncherDaemon.class.getName());
+
+		// one daemon per Java installation, JVM options and plugin build
+		List<String> stamps = new ArrayList<String>(command);
+		for (File f : daemonClasspath) {
+			stamps.add(String.format("%d:%d", f.length(), f.lastModified()));
+		}
+		File state = new File(repoSession.getLocalRepository().getBasedir(), String.format(
+				".MavenExtension/daemon/%s", BuildInfoCache.key("daemon", stamps.toArray(new String[stamps.size()]))
+						.substring(0, 12)));
+		command.add(state.getAbsolutePath());
+		command.add(Integer.toString(daemonLoaders));
+		command.add(Integer.toString(daemonIdle));
+
+		try {
+			long started = System.currentTimeMillis();
+			int status = LauncherDaemon.run(state, command,
+													  (task.key != null) ? task.key : StringUtils.join(task.classpath, File.pathSeparator),
+													  task.classpath, task.mainClass, task.args, stdout, stderr);
+			getLog().debug(String.format("%s exited with %d in %d msec (daemon %s)", task.mainClass, status,
+												  System.currentTimeMillis() - started, state));
+			return status;
+		} catch (IOException e) {
+			throw new MojoExecutionException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Archive is specific to the main artifact, Java installation, JVM options and classpath files (JVM rejects archive
+	 * if any of them changes, so it would never be recreated).
+	 *
+	 * @return archive in the local repository, or {@code null} if the JVM does not support dynamic archives
+	 */
+	CdsArchive openCdsArchive(String key, List<File> classpath) {
+		int version = CdsArchive.getJavaVersion(javaHome);
+		if (!CdsArchive.isSupported(version)) {
+			getLog().debug(String.format("Java %d in %s does not support dynamic CDS archives", version, javaHome));
+			return null;
+		}
+		List<String> stamps = new ArrayList<String>();
+		stamps.add(javaHome.getAbsolutePath());
+		stamps.add(Integer.toString(version));
+		stamps.add(StringUtils.defaultString(jvmArgs));
+		for (File f : classpath) {
+			stamps.add(String.format("%s:%d:%d", f.getAbsolutePath(), f.length(), f.lastModified()));
+		}
+		String hash = BuildInfoCache.key(key, stamps.toArray(new String[stamps.size()]));
+		return new CdsArchive(new File(repoSession.getLocalRepository().getBasedir(), String.format(
+				".MavenExtension/cds/%s-%s.jsa", key.split(":")[1], hash.substring(0, 12))));
+	}
+
+	///
 
+	Artifact parseArtifact(String definition) throws MojoFailureException {
+		String[] tokens = definition.split(":");
+		if (tokens.length != 4) {
+			throw new MojoFailureException(
+					"Invalid artifact definition: \"" + definition + "\". Expected: groupId:artifactId:version:packaging");
+		}
+		ArtifactType type = repoSession.getArtifactTypeRegistry().get(tokens[3]);
+		return (type != null)
+				? new DefaultArtifact(tokens[0], tokens[1], type.getClassifier(), type.getExtension(), tokens[2], type)
+				: new DefaultArtifact(tokens[0], tokens[1], null, tokens[3], tokens[2]);
+	}
+
+	/**
+	 * Splits arguments at whitespace, except for quoted ('single' or "double") parts.
+	 */
+	static String[] parseArguments(String args) throws MojoFailureException {
+		if (args == null) {
+			return new String[0];
+		}
+		List<String> result = new ArrayList<String>();
+		StringBuilder sb = null;
+		char quote = 0;
+		for (char c : args.toCharArray()) {
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else {
+					sb.append(c);
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+				sb = (sb != null) ? sb : new StringBuilder();
+			} else if (Character.isWhitespace(c)) {
+				if (sb != null) {
+					result.add(sb.toString());
+					sb = null;
+				}
+			} else {
+				sb = (sb != null) ? sb : new StringBuilder();
+				sb.append(c);
+			}
+		}
+		if (quote != 0) {
+			throw new MojoFailureException("Unbalanced quotes in arguments: " + args);
+		}
+		if (sb != null) {
+			result.add(sb.toString());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Resolves runtime classpath of given artifact (itself first, then its dependencies in Maven's order), from the
+	 * cache if possible.
+	 *
+	 * @param key cache key (see {@link #getCacheKey}), or {@code null} if the artifact cannot be cached
+	 */
+	List<File> resolveClasspath(Artifact artifact, String key) throws MojoExecutionException {
+		ClasspathCache classpathCache = null;
+		if (cache && key != null) {
+			classpathCache = ClasspathCache.forRepository(repoSession.getLocalRepository().getBasedir());
+			List<File> cached = classpathCache.get(key);
+			if (cached != null) {
+				getLog().debug(String.format("Using cached classpath of %s (%d entries)", key, cached.size()));
+				return cached;
+			}
+		}
+
+		long started = System.currentTimeMillis();
+		List<File> classpath = new ArrayList<File>();
+		try {
+			CollectRequest collect = new CollectRequest(new Dependency(artifact, "runtime"), remoteRepositories);
+			DependencyRequest request = new DependencyRequest(collect, null);
+			for (ArtifactResult result : repoSystem.resolveDependencies(repoSession, request).getArtifactResults()) {
+				classpath.add(result.getArtifact().getFile());
+			}
+		} catch (DependencyResolutionException e) {
+			throw new MojoExecutionException("Cannot resolve " + artifact + ": " + e.getMessage(), e);
+		}
+		getLog().debug(String.format("Resolved classpath of %s (%d entries) in %d msec",
+											  artifact, classpath.size(), System.currentTimeMillis() - started));
+
+		if (classpathCache != null) {
+			try {
+				classpathCache.put(key, classpath);
+			} catch (IOException e) {
+				getLog().warn(String.format("Cannot cache classpath of %s: %s", key, e));
+			}
+		}
+		return classpath;
+	}
+
+	/**
+	 * {@code groupId:artifactId:version:packaging}, where SNAPSHOT version is resolved to the timestamped one (as known
+	 * to the local repository metadata) and qualified by the timestamp of the locally installed POM.
+	 */
+	String getCacheKey(Artifact artifact, String definition) throws MojoExecutionException {
+		String version = artifact.getVersion();
+		String suffix = "";
+		if (artifact.isSnapshot()) {
+			try {
+				version = repoSystem.resolveVersion(repoSession, new VersionRequest(artifact, remoteRepositories, null))
+						.getVersion();
+			} catch (VersionResolutionException e) {
+				throw new MojoExecutionException("Cannot resolve version of " + artifact + ": " + e.getMessage(), e);
+			}
+			Artifact pom = new DefaultArtifact(artifact.getGroupId(), artifact.getArtifactId(), null, "pom", version);
+			File local = new File(repoSession.getLocalRepository().getBasedir(),
+										 repoSession.getLocalRepositoryManager().getPathForLocalArtifact(pom));
+			suffix = String.format("@%d", local.lastModified());
+		}
+		return String.format("%s:%s:%s:%s%s", artifact.getGroupId(), artifact.getArtifactId(), version,
+									definition.substring(definition.lastIndexOf(':') + 1), suffix);
+	}
+
+	static boolean isVersionRange(String version) {
+		return version.startsWith("[") || version.startsWith("(")
+				|| version.equals("LATEST") || version.equals("RELEASE");
+	}
+}
@@ -0,0 +1,276 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of tags by (peeled) commit id. Built by streaming {@code packed-refs} through a memory-mapped buffer and
+ * overlaying loose {@code refs/tags}. Indexes are cached in memory per repository (for the lifetime of the JVM, they
+ * are not persisted across builds) and rebuilt only when {@code packed-refs} or any directory under {@code refs/tags}
+ * has changed, so lookup cost is proportional to the number of tags on the commit rather than the number of tags in
+ * the repository.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class TagIndex {
+
+	static private final Charset UTF8 = Charset.forName("UTF-8");
+
+	static private final Map<File, Slot> cache = new HashMap<File, Slot>();
+
+	/**
+	 * Returns up-to-date index for given repository, reusing cached one if nothing has changed since it was built.
+	 * Index is built under a per-repository lock, so other repositories are not held up meanwhile.
+	 */
+	static public TagIndex forRepository(GitRepository git) throws IOException {
+		Slot slot;
+		synchronized (cache) {
+			slot = cache.get(git.getCommonDir());
+			if (slot == null) {
+				slot = new Slot();
+				cache.put(git.getCommonDir(), slot);
+			}
+		}
+		synchronized (slot) {
+			Stamp stamp = new Stamp(git.getCommonDir());
+			TagIndex index = slot.index;
+			if (index != null && index.stamp.equals(stamp)) {
+				return index;
+			}
+			// peeled ids of annotated tags never change, carry them over
+			Map<String, String> peeled = (index != null) ? index.peeled : new HashMap<String, String>();
+			slot.index = index = new TagIndex(git, stamp, peeled);
+			return index;
+		}
+	}
+
+	static private class Slot {
+		TagIndex index;
+	}
+
+	final Stamp stamp;
+	final Map<String, List<String>> tagsByCommit = new HashMap<String, List<String>>();
+	final Map<String, String> peeled;
+
+	TagIndex(GitRepository git, Stamp stamp, Map<String, String> peeled) throws IOException {
+		this.stamp = stamp;
+		this.peeled = peeled;
+
+		// tag name -> peeled commit id
+		Map<String, String> tags = new HashMap<String, String>();
+		readPackedRefs(git, new File(git.getCommonDir(), "packed-refs"), tags);
+		readLooseTags(git, new File(git.getCommonDir(), GitRepository.R_TAGS), "", tags);
+
+		for (Map.Entry<String, String> e : tags.entrySet()) {
+			List<String> names = tagsByCommit.get(e.getValue());
+			if (names == null) {
+				names = new ArrayList<String>(1);
+				tagsByCommit.put(e.getValue(), names);
+			}
+			names.add(e.getKey());
+		}
+	}
+
+	/**
+	 * Lists tags pointing to given commit (directly or via annotated tag), sorted by name like {@code git show-ref}
+	 * does.
+	 */
+	public List<String> lookup(String commitId) {
+		List<String> names = tagsByCommit.get(commitId);
+		if (names == null) {
+			return Collections.emptyList();
+		}
+		List<String> sorted = new ArrayList<String>(names);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return commits pointed to by any tag
+	 */
+	public Set<String> getCommits() {
+		return Collections.unmodifiableSet(tagsByCommit.keySet());
+	}
+
+	public int size() {
+		int size = 0;
+		for (List<String> names : tagsByCommit.values()) {
+			size += names.size();
+		}
+		return size;
+	}
+
+	///
+
+	private void readPackedRefs(GitRepository git, File file, Map<String, String> tags) throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("packed-refs too large: " + file);
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			boolean peeledTags = false;  // tags without "^<id>" line are not annotated
+			String lastName = null;  // last tag that may be followed by its peeled "^<id>" line
+			String lastId = null;
+			byte[] line = new byte[256];
+
+			while (buf.hasRemaining()) {
+				int len = 0;
+				while (buf.hasRemaining()) {
+					byte b = buf.get();
+					if (b == '\n') {
+						break;
+					}
+					if (len == line.length) {
+						byte[] bigger = new byte[len * 2];
+						System.arraycopy(line, 0, bigger, 0, len);
+						line = bigger;
+					}
+					line[len++] = b;
+				}
+				if (len > 0 && line[len - 1] == '\r') {
+					len--;
+				}
+
+				if (len > 0 && line[0] == '#') {
+					// "# pack-refs with: peeled fully-peeled sorted"; either trait covers refs/tags
+					String header = new String(line, 0, len, UTF8) + " ";
+					peeledTags = header.startsWith("# pack-refs with:")
+							&& (header.contains(" peeled ") || header.contains(" fully-peeled "));
+					continue;
+				}
+				if (len >= 41 && line[0] == '^') {
+					if (lastName != null) {
+						tags.put(lastName, new String(line, 1, 40, UTF8));
+					}
+					lastName = null;
+					continue;
+				}
+				// flush previous tag that had no peeled line
+				if (lastName != null) {
+					tags.put(lastName, peeledTags ? lastId : peel(git, lastId));
+					lastName = null;
+				}
+				if (len < 41 + GitRepository.R_TAGS.length() || !startsWith(line, 41, GitRepository.R_TAGS)) {
+					continue;
+				}
+				lastId = new String(line, 0, 40, UTF8);
+				lastName = new String(line, 41 + GitRepository.R_TAGS.length(),
+											 len - 41 - GitRepository.R_TAGS.length(), UTF8);
+			}
+			if (lastName != null) {
+				tags.put(lastName, peeledTags ? lastId : peel(git, lastId));
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private void readLooseTags(GitRepository git, File dir, String prefix, Map<String, String> tags)
+			throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				readLooseTags(git, f, prefix + f.getName() + "/", tags);
+			} else {
+				String id = GitRepository.readFirstLine(f);
+				if (id != null && id.length() >= 40) {
+					tags.put(prefix + f.getName(), peel(git, id.substring(0, 40)));
+				}
+			}
+		}
+	}
+
+	private String peel(GitRepository git, String id) throws IOException {
+		String result = peeled.get(id);
+		if (result == null) {
+			result = git.peel(id);
+			peeled.put(id, result);
+		}
+		return result;
+	}
+
+	static private boolean startsWith(byte[] data, int offset, String prefix) {
+		for (int i = 0; i < prefix.length(); i++) {
+			if (data[offset + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	///
+
+	/**
+	 * Change detection fingerprint: {@code packed-refs} size/mtime and mtimes of all {@code refs/tags} directories.
+	 * Creating, deleting or replacing a loose tag always renames an entry in its directory, which updates the directory
+	 * mtime.
+	 */
+	static class Stamp {
+
+		final long packedSize;
+		final long packedModified;
+		final List<Long> tagDirs = new ArrayList<Long>();
+
+		Stamp(File commonDir) {
+			File packed = new File(commonDir, "packed-refs");
+			packedSize = packed.length();
+			packedModified = packed.lastModified();
+			collect(new File(commonDir, GitRepository.R_TAGS));
+		}
+
+		private void collect(File dir) {
+			tagDirs.add(dir.lastModified());
+			File[] files = dir.listFiles();
+			if (files == null) {
+				return;
+			}
+			for (File f : files) {
+				if (f.isDirectory()) {
+					collect(f);
+				}
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Stamp)) {
+				return false;
+			}
+			Stamp that = (Stamp) o;
+			return packedSize == that.packedSize && packedModified == that.packedModified
+					&& tagDirs.equals(that.tagDirs);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (packedSize ^ packedModified) ^ tagDirs.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d:%d:%08x", packedSize, packedModified, tagDirs.hashCode());
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.jrevolt.build;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.building.ModelProcessor;
+import org.apache.maven.model.building.ModelSource;
+import org.apache.maven.model.io.ModelReader;
+import org.apache.maven.model.locator.ModelLocator;
+import org.apache.maven.plugin.LegacySupport;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Applies computed project version to reactor models as they are read, without touching {@code pom.xml} on disk.
+ * Replaces Maven's default {@link ModelProcessor} (role hint {@code default}), which only works if loaded as a core
+ * extension; inactive (pure delegation) unless {@link MavenExtension} has installed an {@link Injection} for the current
+ * session. Model building options do not carry the request, so the session is the one Maven hands to legacy components
+ * of the current thread (see {@link LegacySupport}). Sessions are held weakly, like in {@link BuildInfoRegistry}.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+@Component(role = ModelProcessor.class)
+public class VersionModelProcessor implements ModelProcessor {
+
+	private final Map<MavenSession, Injection> injections = Collections.synchronizedMap(new WeakHashMap<MavenSession, Injection>());
+
+	@Requirement
+	ModelLocator locator;
+
+	@Requirement
+	ModelReader reader;
+
+	@Requirement
+	LegacySupport legacySupport;
+
+	void install(MavenSession session, Injection injection) {
+		injections.put(session, injection);
+	}
+
+	void uninstall(MavenSession session) {
+		injections.remove(session);
+	}
+
+	@Override
+	public File locatePom(File projectDirectory) {
+		return locator.locatePom(projectDirectory);
+	}
+
+	@Override
+	public Model read(File input, Map<String, ?> options) throws IOException {
+		return inject(reader.read(input, options), input);
+	}
+
+	@Override
+	public Model read(Reader input, Map<String, ?> options) throws IOException {
+		return inject(reader.read(input, options), getSourceFile(options));
+	}
+
+	@Override
+	public Model read(InputStream input, Map<String, ?> options) throws IOException {
+		return inject(reader.read(input, options), getSourceFile(options));
+	}
+
+	private File getSourceFile(Map<String, ?> options) {
+		Object source = (options != null) ? options.get(SOURCE) : null;
+		return (source instanceof ModelSource) ? new File(((ModelSource) source).getLocation()) : null;
+	}
+
+	private Model inject(Model model, File file) {
+		MavenSession session = legacySupport.getSession();
+		Injection injection = (session != null) ? injections.get(session) : null;
+		if (injection == null || file == null || model == null) {
+			return model;
+		}
+		injection.apply(model, file);
+		return model;
+	}
+
+	///
+
+	/**
+	 * Version substitution for one session: reactor POMs whose raw version or parent version equals root version get
+	 * the version assigned to them (see {@link WorkspaceRepositories#assign}) instead.
+	 */
+	static class Injection {
+
+		final Map<File, String> versions;
+		final String rootVersion;
+
+		Injection(Map<File, String> versions, String rootVersion) {
+			this.versions = versions;
+			this.rootVersion = rootVersion;
+		}
+
+		void apply(Model model, File file) {
+			String version = versions.get(WorkspaceRepositories.key(file));
+			if (version == null) {
+				return; // not part of this workspace (e.g. POM from local repository)
+			}
+			boolean updated = false;
+			if (model.getVersion() != null && model.getVersion().trim().equals(rootVersion)) {
+				model.setVersion(version);
+				updated = true;
+			}
+			if (model.getParent() != null && model.getParent().getVersion() != null
+					&& model.getParent().getVersion().trim().equals(rootVersion)) {
+				model.getParent().setVersion(WorkspaceRepositories.getParentVersion(
+						versions, file, model.getParent().getRelativePath()));
+				updated = true;
+			}
+			if (updated) {
+				MavenExtension.debug("Injected version %s: %s", version, file);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.jrevolt.build;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps POMs of the workspace to Git working trees owning them: the nearest ancestor directory with {@code .git}
+ * (directory, or file of a submodule or linked worktree). Results are memoized per directory, so the cost grows with
+ * the number of directories between POMs and their repositories, not with the number of POMs.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class WorkspaceRepositories {
+
+	static private final File NONE = new File("");
+
+	private final Map<File, File> owners = new HashMap<File, File>();
+
+	/**
+	 * @return root of the working tree owning given directory, or {@code null} if it is not in any
+	 */
+	public synchronized File getWorkTree(File dir) {
+		List<File> visited = new ArrayList<File>();
+		File owner = NONE;
+		for (File d = dir.getAbsoluteFile(); d != null; d = d.getParentFile()) {
+			File known = owners.get(d);
+			if (known != null) {
+				owner = known;
+				break;
+			}
+			visited.add(d);
+			if (new File(d, ".git").exists()) {
+				owner = d;
+				break;
+			}
+		}
+		for (File d : visited) {
+			owners.put(d, owner);
+		}
+		return (owner != NONE) ? owner : null;
+	}
+
+	/**
+	 * Groups POMs by working trees owning them (POMs outside of any are grouped under {@code null}), in order of first
+	 * appearance.
+	 */
+	public Map<File, List<File>> group(List<File> poms) {
+		Map<File, List<File>> groups = new LinkedHashMap<File, List<File>>();
+		for (File pom : poms) {
+			File workTree = getWorkTree(pom.getAbsoluteFile().getParentFile());
+			List<File> group = groups.get(workTree);
+			if (group == null) {
+				groups.put(workTree, group = new ArrayList<File>());
+			}
+			group.add(pom);
+		}
+		return groups;
+	}
+
+	///
+
+	/**
+	 * Key of given POM in a version assignment: absolute, normalized path.
+	 */
+	static public File key(File pom) {
+		return pom.getAbsoluteFile().toPath().normalize().toFile();
+	}
+
+	/**
+	 * @return assignment of the same version to all given POMs
+	 */
+	static public Map<File, String> assign(List<File> poms, String version) {
+		Map<File, String> versions = new HashMap<File, String>();
+		for (File pom : poms) {
+			versions.put(key(pom), version);
+		}
+		return versions;
+	}
+
+	/**
+	 * Version to put into parent reference of given POM: version assigned to the POM at parent's relative path
+	 * ({@code ../pom.xml} by default), or the POM's own version if the parent is not in the assignment.
+	 */
+	static public String getParentVersion(Map<File, String> versions, File pom, String relativePath) {
+		String own = versions.get(key(pom));
+		relativePath = (relativePath != null) ? relativePath.trim() : "../pom.xml";
+		if (relativePath.isEmpty()) {
+			return own; // parent lookup disabled
+		}
+		File parent = new File(key(pom).getParentFile(), relativePath);
+		if (parent.isDirectory()) {
+			parent = new File(parent, "pom.xml");
+		}
+		String version = versions.get(key(parent));
+		return (version != null) ? version : own;
+	}
+}
@@ -0,0 +1,222 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.maven.cli.MavenCli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures wall time {@link MavenExtension} adds to {@code mvn validate}: for each configured reactor size, generates a
+ * multi-module reactor in a Git repository with a realistic tag history, and runs embedded Maven alternately with the
+ * extension enabled and disabled. Reports median times and exits with status 1 if the overhead of any reactor exceeds
+ * the budget.
+ * <p/>
+ * Configuration (system properties):
+ * <ul>
+ * <li>{@code overhead.modules}: comma separated reactor sizes. Default: 10,100,1000</li>
+ * <li>{@code overhead.runs}: measured runs per mode (after one warm-up run per mode). Default: 5</li>
+ * <li>{@code overhead.budget}: maximum overhead: percent of the baseline ({@code 25%}) or milliseconds
+ * ({@code 500ms}). Default: 25%</li>
+ * <li>{@code overhead.dir}: work directory. Default: target/overhead</li>
+ * </ul>
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class OverheadBenchmark {
+
+	static final int COMMITS = 50;
+	static final int TAGS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		String[] modules = System.getProperty("overhead.modules", "10,100,1000").split(",");
+		int runs = Integer.parseInt(System.getProperty("overhead.runs", "5"));
+		String budget = System.getProperty("overhead.budget", "25%").trim();
+		File dir = new File(System.getProperty("overhead.dir", "target/overhead")).getAbsoluteFile();
+
+		List<String> failures = new ArrayList<String>();
+		List<String> report = new ArrayList<String>();
+		report.add(String.format("%8s %14s %14s %14s %10s", "modules", "baseline [ms]", "extension [ms]", "overhead [ms]", "overhead"));
+
+		for (String m : modules) {
+			int count = Integer.parseInt(m.trim());
+			File reactor = new File(dir, "reactor-" + count);
+			FileUtils.deleteQuietly(reactor);
+			createReactor(reactor, count);
+
+			long[] baseline = new long[runs];
+			long[] extension = new long[runs];
+			run(reactor, false);
+			run(reactor, true);
+			for (int i = 0; i < runs; i++) {
+				baseline[i] = run(reactor, false);
+				extension[i] = run(reactor, true);
+			}
+			long b = median(baseline);
+			long e = median(extension);
+			long overhead = e - b;
+			double percent = (b > 0) ? overhead * 100.0 / b : 0;
+			report.add(String.format("%8d %14d %14d %14d %9.1f%%", count, b, e, overhead, percent));
+
+			boolean exceeded = budget.endsWith("%")
+					? percent > Double.parseDouble(budget.substring(0, budget.length() - 1))
+					: overhead > Long.parseLong(budget.replaceFirst("ms$", ""));
+			if (exceeded) {
+				failures.add(String.format("%d modules: overhead %d ms (%.1f%%) exceeds budget %s", count, overhead, percent, budget));
+			}
+		}
+
+		System.out.println();
+		System.out.println("MavenExtension overhead (mvn validate, median of " + runs + " runs):");
+		for (String line : report) {
+			System.out.println(line);
+		}
+		for (String failure : failures) {
+			System.out.println("FAILED: " + failure);
+		}
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * Runs embedded {@code mvn validate} in given reactor.
+	 *
+	 * @return wall time in milliseconds
+	 */
+	static long run(File reactor, boolean enabled) {
+		PrintStream out = new PrintStream(new NullOutputStream());
+		String[] args = {
+				"-B", "-o", "-q", "validate",
+				"-DMavenExtension=" + enabled,
+				"-DMavenExtension.cache.dir=" + new File(reactor.getParentFile(), reactor.getName() + ".cache"),
+		};
+		// the extension prints through System.out
+		PrintStream stdout = System.out;
+		System.setOut(out);
+		long start = System.nanoTime();
+		int status;
+		try {
+			status = new MavenCli().doMain(args, reactor.getPath(), out, out);
+		} finally {
+			System.setOut(stdout);
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		if (status != 0) {
+			throw new IllegalStateException(String.format("mvn %s failed in %s", Arrays.toString(args), reactor));
+		}
+		return millis;
+	}
+
+	static long median(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	///
+
+	/**
+	 * Generates reactor of given number of modules (root aggregator, groups of up to 10 modules), in a repository on
+	 * branch {@code develop} with {@value #COMMITS} commits and {@value #TAGS} tags (packed, some annotated; the last
+	 * release tag points to the {@code HEAD}).
+	 */
+	static void createReactor(File root, int modules) throws IOException {
+		FileUtils.forceMkdir(root);
+		int groups = (modules + 9) / 10;
+		List<String> groupNames = new ArrayList<String>();
+		for (int g = 0; g < groups; g++) {
+			List<String> moduleNames = new ArrayList<String>();
+			for (int i = g * 10; i < Math.min(modules, (g + 1) * 10); i++) {
+				moduleNames.add("module" + i);
+				writePom(new File(root, String.format("group%d/module%d/pom.xml", g, i)), "module" + i, "group" + g,
+							"jar", Collections.<String>emptyList());
+			}
+			groupNames.add("group" + g);
+			writePom(new File(root, String.format("group%d/pom.xml", g)), "group" + g, "root", "pom", moduleNames);
+		}
+		writePom(new File(root, "pom.xml"), "root", null, "pom", groupNames);
+
+		git(root, null, "init", "-q");
+		git(root, null, "checkout", "-q", "-b", "develop");
+		git(root, null, "add", "-A");
+		List<String> commits = new ArrayList<String>();
+		for (int i = 0; i < COMMITS; i++) {
+			git(root, null, "-c", "user.name=overhead", "-c", "user.email=overhead@localhost",
+				 "commit", "-q", "--allow-empty", "-m", "commit " + i);
+			commits.add(git(root, null, "rev-parse", "HEAD").trim());
+		}
+		StringBuilder refs = new StringBuilder();
+		for (int i = 0; i < TAGS; i++) {
+			String name = (i % 4 == 0) ? String.format("build-%d", i) : String.format("1.%d.%d", i / 100, i % 100);
+			refs.append(String.format("create refs/tags/%s %s\n", name, commits.get(i * COMMITS / TAGS)));
+		}
+		git(root, refs.toString(), "update-ref", "--stdin");
+		for (int i = 0; i < 10; i++) {
+			git(root, null, "-c", "user.name=overhead", "-c", "user.email=overhead@localhost",
+				 "tag", "-a", "-m", "release", String.format("2.%d", i), commits.get(COMMITS - 10 + i));
+		}
+		git(root, null, "pack-refs", "--all");
+	}
+
+	static void writePom(File file, String artifactId, String parent, String packaging, List<String> modules)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n");
+		sb.append("\t<modelVersion>4.0.0</modelVersion>\n");
+		if (parent != null) {
+			sb.append("\t<parent>\n\t\t<groupId>overhead</groupId>\n");
+			sb.append("\t\t<artifactId>").append(parent).append("</artifactId>\n");
+			sb.append("\t\t<version>local-SNAPSHOT</version>\n\t</parent>\n");
+		}
+		sb.append("\t<groupId>overhead</groupId>\n");
+		sb.append("\t<artifactId>").append(artifactId).append("</artifactId>\n");
+		sb.append("\t<version>local-SNAPSHOT</version>\n");
+		sb.append("\t<packaging>").append(packaging).append("</packaging>\n");
+		if (!modules.isEmpty()) {
+			sb.append("\t<modules>\n");
+			for (String module : modules) {
+				sb.append("\t\t<module>").append(module).append("</module>\n");
+			}
+			sb.append("\t</modules>\n");
+		}
+		sb.append("</project>\n");
+		FileUtils.writeStringToFile(file, sb.toString(), "UTF-8");
+	}
+
+	static String git(File dir, String input, String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add("git");
+		Collections.addAll(command, args);
+		Process p = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+		OutputStream stdin = p.getOutputStream();
+		try {
+			if (input != null) {
+				stdin.write(input.getBytes("UTF-8"));
+			}
+		} finally {
+			stdin.close();
+		}
+		InputStream in = p.getInputStream();
+		try {
+			String out = IOUtils.toString(in, "UTF-8");
+			if (p.waitFor() != 0) {
+				throw new IOException(command + ": " + out);
+			}
+			return out;
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+}
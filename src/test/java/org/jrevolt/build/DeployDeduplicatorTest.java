@@ -0,0 +1,165 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.manager.ArtifactHandlerManager;
+import org.apache.maven.artifact.repository.ArtifactRepositoryPolicy;
+import org.apache.maven.artifact.repository.MavenArtifactRepository;
+import org.apache.maven.artifact.repository.layout.DefaultRepositoryLayout;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
+import org.codehaus.plexus.DefaultContainerConfiguration;
+import org.codehaus.plexus.DefaultPlexusContainer;
+import org.codehaus.plexus.PlexusConstants;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.deployment.DeployRequest;
+import org.eclipse.aether.repository.LocalRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link DeployDeduplicator} deploying a release twice to a {@code file://} distribution repository, with Maven's own
+ * repository system and project helper (from a Plexus container set up from the test class path). Deployment itself is
+ * what {@code maven-deploy-plugin:deploy} would do after deduplication (see {@link #deploy}).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class DeployDeduplicatorTest {
+
+	static private final String COMMIT = "0123456789abcdef0123456789abcdef01234567";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	DefaultPlexusContainer container;
+	RepositorySystem repositorySystem;
+	MavenProjectHelper projectHelper;
+	MavenSession session;
+	File repository;
+	File build;
+
+	@Before
+	public void setup() throws Exception {
+		container = new DefaultPlexusContainer(
+				new DefaultContainerConfiguration().setClassPathScanning(PlexusConstants.SCANNING_INDEX));
+		repositorySystem = container.lookup(RepositorySystem.class);
+		projectHelper = container.lookup(MavenProjectHelper.class);
+
+		DefaultRepositorySystemSession rs = MavenRepositorySystemUtils.newSession();
+		rs.setLocalRepositoryManager(repositorySystem.newLocalRepositoryManager(rs, new LocalRepository(tmp.newFolder())));
+		session = new MavenSession(container, rs, new DefaultMavenExecutionRequest(), new DefaultMavenExecutionResult());
+
+		repository = tmp.newFolder();
+		build = tmp.newFolder();
+		write("pom.xml", "<project/>");
+		write("a.jar", "classes");
+		write("a-sources.jar", "sources");
+		write("a-javadoc.jar", "javadoc");
+	}
+
+	@After
+	public void dispose() {
+		container.dispose();
+	}
+
+	@Test
+	public void skipsProjectDeployedFromSameCommit() throws Exception {
+		assertEquals(Arrays.asList("pom", "jar", "sources:jar", "javadoc:jar", "deploy-manifest:properties"),
+						 deploy(COMMIT));
+		assertEquals(Arrays.<String>asList(), deploy(COMMIT));
+	}
+
+	@Test
+	public void detachesOnlyMatchingArtifacts() throws Exception {
+		deploy(COMMIT);
+		write("a.jar", "classes, rebuilt");
+		write("a-javadoc.jar", "javadoc, rebuilt");
+		assertEquals(Arrays.asList("pom", "jar", "javadoc:jar", "deploy-manifest:properties"), deploy(COMMIT));
+	}
+
+	@Test
+	public void deploysEverythingFromOtherCommit() throws Exception {
+		deploy(COMMIT);
+		assertEquals(Arrays.asList("pom", "jar", "sources:jar", "javadoc:jar", "deploy-manifest:properties"),
+						 deploy(COMMIT.replace('0', 'f')));
+	}
+
+	///
+
+	/**
+	 * Deduplicates and then deploys the project built into {@link #build}, unless {@code maven.deploy.skip} is set.
+	 *
+	 * @return files deployed (see {@link DeployDeduplicator#getKey})
+	 */
+	private List<String> deploy(String commit) throws Exception {
+		MavenProject project = newProject();
+		DeployDeduplicator deduplicator = new DeployDeduplicator(repositorySystem, projectHelper, commit);
+		deduplicator.deduplicate(session, project);
+
+		List<String> deployed = new ArrayList<String>();
+		if (Boolean.valueOf(project.getProperties().getProperty("maven.deploy.skip"))) {
+			return deployed;
+		}
+		DeployRequest request = new DeployRequest()
+				.setRepository(RepositoryUtils.toRepo(project.getDistributionManagementArtifactRepository()));
+		request.addArtifact(new org.eclipse.aether.artifact.DefaultArtifact(
+				project.getGroupId(), project.getArtifactId(), "", "pom", project.getVersion()).setFile(project.getFile()));
+		deployed.add("pom");
+		request.addArtifact(RepositoryUtils.toArtifact(project.getArtifact()));
+		deployed.add(DeployDeduplicator.getKey(project.getArtifact()));
+		for (org.apache.maven.artifact.Artifact a : project.getAttachedArtifacts()) {
+			request.addArtifact(RepositoryUtils.toArtifact(a));
+			deployed.add(DeployDeduplicator.getKey(a));
+		}
+		repositorySystem.deploy(session.getRepositorySession(), request);
+		return deployed;
+	}
+
+	private MavenProject newProject() throws Exception {
+		Model model = new Model();
+		model.setGroupId("g");
+		model.setArtifactId("a");
+		model.setVersion("1.0");
+		model.setPackaging("jar");
+		model.setBuild(new Build());
+		model.getBuild().setDirectory(new File(build, "target").getPath());
+		MavenProject project = new MavenProject(model);
+		project.setFile(new File(build, "pom.xml"));
+
+		ArtifactHandlerManager handlers = container.lookup(ArtifactHandlerManager.class);
+		DefaultArtifact artifact = new DefaultArtifact("g", "a", "1.0", null, "jar", null, handlers.getArtifactHandler("jar"));
+		artifact.setFile(new File(build, "a.jar"));
+		project.setArtifact(artifact);
+		projectHelper.attachArtifact(project, "jar", "sources", new File(build, "a-sources.jar"));
+		projectHelper.attachArtifact(project, "jar", "javadoc", new File(build, "a-javadoc.jar"));
+
+		ArtifactRepositoryPolicy policy = new ArtifactRepositoryPolicy();
+		project.setReleaseArtifactRepository(new MavenArtifactRepository(
+				"dist", repository.toURI().toString(), new DefaultRepositoryLayout(), policy, policy));
+		return project;
+	}
+
+	private void write(String name, String content) throws IOException {
+		FileUtils.writeStringToFile(new File(build, name), content, "UTF-8");
+	}
+}
@@ -0,0 +1,188 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link PomRewriter#scan} and {@link PomRewriter#patch}: only {@code project/version} and
+ * {@code project/parent/version} are found and replaced, everything else is preserved byte for byte.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class PomRewriterTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void patchesProjectAndParentVersion() throws IOException {
+		String pom = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n"
+				+ "\t<parent>\n"
+				+ "\t\t<groupId>g</groupId><artifactId>parent</artifactId><version>1.0</version>\n"
+				+ "\t</parent>\n"
+				+ "\t<artifactId>a</artifactId>\n"
+				+ "\t<version> 1.0-SNAPSHOT </version>\n"
+				+ "\t<dependencies><dependency><version>1.0</version></dependency></dependencies>\n"
+				+ "</project>\n";
+		PomRewriter.Scan scan = PomRewriter.scan(write(pom, "UTF-8"));
+		assertEquals("1.0-SNAPSHOT", scan.getVersion());
+		assertEquals("1.0", scan.getParentVersion());
+		assertEquals(" 1.0-SNAPSHOT ", new String(scan.versionRaw, "UTF-8"));
+
+		assertEquals(pom.replace("<version> 1.0-SNAPSHOT </version>", "<version>2.0</version>")
+								 .replace("<artifactId>parent</artifactId><version>1.0</version>",
+											 "<artifactId>parent</artifactId><version>3.0</version>"),
+						 patch(pom, "UTF-8", "2.0", "3.0"));
+	}
+
+	@Test
+	public void nullLeavesVersionUntouched() throws IOException {
+		String pom = "<project><parent><version>1</version></parent><version>2</version></project>";
+		assertEquals("<project><parent><version>1</version></parent><version>3</version></project>",
+						 patch(pom, "UTF-8", "3", null));
+		assertEquals("<project><parent><version>3</version></parent><version>2</version></project>",
+						 patch(pom, "UTF-8", null, "3"));
+	}
+
+	@Test
+	public void missingVersion() throws IOException {
+		// version inherited from parent
+		String pom = "<project><parent><version>1</version></parent><artifactId>a</artifactId></project>";
+		PomRewriter.Scan scan = PomRewriter.scan(write(pom, "UTF-8"));
+		assertNull(scan.getVersion());
+		assertEquals(-1, scan.versionStart);
+		assertEquals("1", scan.getParentVersion());
+		assertEquals("<project><parent><version>2</version></parent><artifactId>a</artifactId></project>",
+						 patch(pom, "UTF-8", "2", "2"));
+
+		// no parent
+		pom = "<project><artifactId>a</artifactId><version>1</version></project>";
+		scan = PomRewriter.scan(write(pom, "UTF-8"));
+		assertNull(scan.getParentVersion());
+		assertEquals(-1, scan.parentVersionStart);
+		assertEquals(pom.replace(">1<", ">2<"), patch(pom, "UTF-8", "2", "2"));
+	}
+
+	@Test
+	public void skipsComments() throws IOException {
+		String pom = "<!-- <project><version>0</version></project> -->\n"
+				+ "<project>\n"
+				+ "\t<!-- <version>1</version> -->\n"
+				+ "\t<!--<parent><version>1</version></parent>-->\n"
+				+ "\t<version>2</version><!-- <version>3</version> -->\n"
+				+ "</project>\n";
+		PomRewriter.Scan scan = PomRewriter.scan(write(pom, "UTF-8"));
+		assertEquals("2", scan.getVersion());
+		assertNull(scan.getParentVersion());
+		assertEquals(pom.replace("<version>2</version>", "<version>4</version>"), patch(pom, "UTF-8", "4", "4"));
+	}
+
+	@Test
+	public void skipsCdataAndProcessingInstructionsAndDoctype() throws IOException {
+		String pom = "<?xml version=\"1.0\"?>\n"
+				+ "<!DOCTYPE project [ <!ENTITY v \"0\"> ]>\n"
+				+ "<project>\n"
+				+ "\t<description><![CDATA[ <version>1</version> ]]></description>\n"
+				+ "\t<?custom <version>1</version> ?>\n"
+				+ "\t<version>2</version>\n"
+				+ "</project>\n";
+		assertEquals("2", PomRewriter.scan(write(pom, "UTF-8")).getVersion());
+		assertEquals(pom.replace("<version>2</version>", "<version>3</version>"), patch(pom, "UTF-8", "3", null));
+	}
+
+	@Test
+	public void rejectsMarkupInsideVersion() throws IOException {
+		expectUnsupported("<project><version><!-- x -->1</version></project>");
+		expectUnsupported("<project><version><![CDATA[1]]></version></project>");
+		expectUnsupported("<project><parent><version>${v}<x/></version></parent></project>");
+	}
+
+	@Test
+	public void ignoresNamespacePrefixesAndAttributes() throws IOException {
+		String pom = "<pom:project xmlns:pom=\"http://maven.apache.org/POM/4.0.0\">"
+				+ "<pom:version a='>' b=\"/\">1</pom:version><empty/></pom:project>";
+		PomRewriter.Scan scan = PomRewriter.scan(write(pom, "UTF-8"));
+		assertEquals("1", scan.getVersion());
+		assertEquals(pom.replace(">1<", ">2<"), patch(pom, "UTF-8", "2", null));
+	}
+
+	@Test
+	public void preservesSingleByteEncoding() throws IOException {
+		String pom = "<?xml version='1.0' encoding='ISO-8859-1'?>\n"
+				+ "<project><name>Grüße, déjà vu</name><version>1</version></project>\n";
+		File file = write(pom, "ISO-8859-1");
+		PomRewriter.Scan scan = PomRewriter.scan(file);
+		assertEquals("ISO-8859-1", scan.encoding);
+		File target = tmp.newFile();
+		PomRewriter.patch(file, target, scan, "2", null);
+		assertArrayEquals(pom.replace(">1<", ">2<").getBytes("ISO-8859-1"), FileUtils.readFileToByteArray(target));
+	}
+
+	@Test
+	public void patchesMultiByteContentInUtf8() throws IOException {
+		String pom = "<project><name>žluťoučký</name><version>1</version></project>";
+		assertEquals(pom.replace(">1<", ">é-SNAPSHOT<"), patch(pom, "UTF-8", "é-SNAPSHOT", null));
+	}
+
+	@Test
+	public void rejectsUnsupportedEncodings() throws IOException {
+		String pom = "<?xml version=\"1.0\" encoding=\"UTF-16\"?><project><version>1</version></project>";
+		expectUnsupported(write(pom, "UTF-16"));  // with BOM
+		expectUnsupported(write(pom, "UTF-16BE"));
+		expectUnsupported(write(pom.replace("UTF-16", "EBCDIC-CP-US"), "UTF-8"));
+	}
+
+	@Test
+	public void detectsChangedFile() throws IOException {
+		File file = write("<project><version>1</version></project>", "UTF-8");
+		PomRewriter.Scan scan = PomRewriter.scan(file);
+		assertTrue(scan.isValid(file));
+		FileUtils.writeStringToFile(file, "<project><version>10</version></project>", "UTF-8");
+		assertFalse(scan.isValid(file));
+	}
+
+	///
+
+	private File write(String content, String encoding) throws IOException {
+		File file = tmp.newFile();
+		FileUtils.writeStringToFile(file, content, encoding);
+		return file;
+	}
+
+	private String patch(String pom, String encoding, String version, String parentVersion) throws IOException {
+		File source = write(pom, encoding);
+		File target = tmp.newFile();
+		List<PomRewriter.Replacement> replacements = PomRewriter.patch(
+				source, target, PomRewriter.scan(source), version, parentVersion);
+		assertTrue(replacements.size() <= 2);
+		return FileUtils.readFileToString(target, encoding);
+	}
+
+	private void expectUnsupported(String pom) throws IOException {
+		expectUnsupported(write(pom, "UTF-8"));
+	}
+
+	private void expectUnsupported(File file) throws IOException {
+		try {
+			PomRewriter.scan(file);
+			fail("Expected UnsupportedEncodingException: " + FileUtils.readFileToString(file));
+		} catch (UnsupportedEncodingException expected) {
+		}
+	}
+}
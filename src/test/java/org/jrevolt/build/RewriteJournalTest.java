@@ -0,0 +1,244 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link RewriteJournal}: apply/restore round trip, recovery after a crash (of a real child JVM, see {@link #main}) and
+ * two sessions rewriting the same POM. Journals go to {@link RewriteJournal#SESSIONS_DIR} under the {@code user.home}
+ * set up for tests (see {@code pom.xml}).
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class RewriteJournalTest {
+
+	static private final String ORIGINAL = "<?xml version=\"1.0\"?>\n"
+			+ "<project>\n"
+			+ "\t<artifactId>a</artifactId>\n"
+			+ "\t<version>local-SNAPSHOT</version>\n"
+			+ "</project>\n";
+
+	static private final long MODIFIED = 1400000000000L;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	File root;
+	File pom;
+
+	@Before
+	public void setup() throws IOException {
+		root = tmp.newFolder();
+		pom = new File(root, "pom.xml");
+		FileUtils.writeStringToFile(pom, ORIGINAL, "UTF-8");
+		pom.setLastModified(MODIFIED);
+	}
+
+	@Test
+	public void applyAndRestore() throws IOException {
+		RewriteJournal journal = RewriteJournal.open(root);
+		RewriteJournal.Record r = prepare(journal, pom, "1.0");
+		journal.commit();
+		assertTrue(journal.file.isFile());
+		assertNull(journal.apply(r));
+		assertEquals("1.0", PomRewriter.scan(pom).getVersion());
+		assertFalse(r.temp.exists());
+
+		assertEquals(1, journal.restore());
+		assertOriginal();
+		assertFalse(journal.file.exists());
+	}
+
+	@Test
+	public void recoversAfterCrash() throws Exception {
+		File journal = crash("applied");
+		assertEquals("1.0", PomRewriter.scan(pom).getVersion());
+		assertTrue(journal.isFile());
+
+		assertEquals(1, RewriteJournal.recover());
+		assertOriginal();
+		assertFalse(journal.exists());
+		assertEquals(Arrays.asList("pom.xml"), Arrays.asList(root.list()));
+	}
+
+	@Test
+	public void dropsJournalCommittedBeforeCrash() throws Exception {
+		File journal = crash("committed");
+		assertEquals(0, RewriteJournal.recover());
+		assertOriginal();
+		assertFalse(journal.exists());
+		assertEquals(Arrays.asList("pom.xml"), Arrays.asList(root.list()));
+	}
+
+	@Test
+	public void dropsUncommittedJournal() throws Exception {
+		File journal = crash("prepared");
+		assertEquals(0, RewriteJournal.recover());
+		assertOriginal();
+		assertFalse(journal.exists());
+		assertEquals(Arrays.asList("pom.xml"), Arrays.asList(root.list()));
+	}
+
+	@Test
+	public void doesNotRecoverRunningSession() throws IOException {
+		RewriteJournal journal = RewriteJournal.open(root);
+		RewriteJournal.Record r = prepare(journal, pom, "1.0");
+		journal.commit();
+		journal.apply(r);
+
+		assertEquals(0, RewriteJournal.recover());
+		assertEquals("1.0", PomRewriter.scan(pom).getVersion());
+
+		journal.restore();
+		assertOriginal();
+	}
+
+	@Test
+	public void sharesSameRewriteUntilLastSessionEnds() throws IOException {
+		for (boolean firstEndsFirst : new boolean[]{true, false}) {
+			RewriteJournal first = RewriteJournal.open(root);
+			RewriteJournal second = RewriteJournal.open(root);
+
+			RewriteJournal.Record r1 = prepare(first, pom, "1.0");
+			first.commit();
+			assertNull(first.apply(r1));
+
+			RewriteJournal.Record holder = second.findHolder(pom);
+			assertNotNull(holder);
+			assertEquals(first.file, holder.getJournal());
+			File temp = second.newTempFile(pom, "");
+			PomRewriter.patch(pom, temp, PomRewriter.scan(pom), "1.0", null);
+			second.share(pom, temp, holder);
+			second.commit();
+			assertNull(second.apply(second.getRecords().get(0)));
+
+			RewriteJournal last = firstEndsFirst ? second : first;
+			assertEquals(0, (firstEndsFirst ? first : second).restore());
+			assertEquals("1.0", PomRewriter.scan(pom).getVersion());
+			assertEquals(1, last.restore());
+			assertOriginal();
+			assertEquals(Arrays.asList("pom.xml"), Arrays.asList(root.list()));
+		}
+	}
+
+	@Test
+	public void differentRewriteWaitsForOtherSession() throws Exception {
+		final RewriteJournal first = RewriteJournal.open(root);
+		RewriteJournal second = RewriteJournal.open(root);
+
+		// both prepared before either applied
+		RewriteJournal.Record r1 = prepare(first, pom, "1.0");
+		RewriteJournal.Record r2 = prepare(second, pom, "2.0");
+		first.commit();
+		second.commit();
+		assertNull(first.apply(r1));
+
+		Thread ender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(500);
+					first.restore();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		ender.start();
+		// depending on journal names, second either waits in apply() or has to yield
+		RewriteJournal.Record holder = second.apply(r2);
+		if (holder != null) {
+			assertEquals(first.file, holder.getJournal());
+			second.rollback();
+			second.await(holder);
+			assertNull(second.apply(r2));
+		}
+		ender.join();
+		assertEquals("2.0", PomRewriter.scan(pom).getVersion());
+
+		assertEquals(1, second.restore());
+		assertOriginal();
+	}
+
+	///
+
+	private void assertOriginal() throws IOException {
+		assertEquals(ORIGINAL, FileUtils.readFileToString(pom, "UTF-8"));
+		assertEquals(MODIFIED, pom.lastModified());
+	}
+
+	/**
+	 * Runs {@link #main} in a child JVM, which dies at given stage.
+	 *
+	 * @return journal left behind
+	 */
+	private File crash(String stage) throws Exception {
+		List<String> before = listJournals();
+		Process p = new ProcessBuilder(
+				new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"),
+				"-Duser.home=" + System.getProperty("user.home"),
+				RewriteJournalTest.class.getName(), pom.getPath(), stage)
+				.redirectErrorStream(true)
+				.start();
+		String output = new String(IOUtils.toByteArray(p.getInputStream()), "UTF-8");
+		assertEquals(output, 13, p.waitFor());
+		List<String> after = listJournals();
+		after.removeAll(before);
+		assertEquals(1, after.size());
+		return new File(RewriteJournal.SESSIONS_DIR, after.get(0));
+	}
+
+	/**
+	 * Child JVM of {@link #crash}: rewrites given POM to version 1.0 and halts once given stage ({@code prepared},
+	 * {@code committed} or {@code applied}) is reached.
+	 */
+	static public void main(String[] args) throws IOException {
+		File pom = new File(args[0]);
+		String stage = args[1];
+		RewriteJournal journal = RewriteJournal.open(pom.getParentFile());
+		RewriteJournal.Record r = prepare(journal, pom, "1.0");
+		if (!stage.equals("prepared")) {
+			journal.commit();
+		}
+		if (stage.equals("applied")) {
+			journal.apply(r);
+		}
+		Runtime.getRuntime().halt(13);
+	}
+
+	static private RewriteJournal.Record prepare(RewriteJournal journal, File pom, String version) throws IOException {
+		File temp = journal.newTempFile(pom, "");
+		journal.add(pom, temp, PomRewriter.patch(pom, temp, PomRewriter.scan(pom), version, null));
+		List<RewriteJournal.Record> records = journal.getRecords();
+		return records.get(records.size() - 1);
+	}
+
+	static private List<String> listJournals() {
+		List<String> journals = new ArrayList<String>();
+		String[] names = RewriteJournal.SESSIONS_DIR.list();
+		for (String name : (names != null) ? names : new String[0]) {
+			if (name.endsWith(".journal")) {
+				journals.add(name);
+			}
+		}
+		return journals;
+	}
+}
@@ -0,0 +1,177 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link TagIndex} over {@code packed-refs} variants and loose tags. Repositories have no objects: ids that need
+ * peeling are known to the index up front (see {@link #index()}), any other peeling fails.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class TagIndexTest {
+
+	static final String C1 = id('1');
+	static final String C2 = id('2');
+	static final String T1 = id('a'); // annotated tag of C1
+	static final String T2 = id('b'); // annotated tag of C2
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	GitRepository git;
+	Map<String, String> peeled;
+
+	@Before
+	public void setup() throws IOException {
+		File dir = tmp.newFolder();
+		File dotgit = new File(dir, ".git");
+		new File(dotgit, GitRepository.R_TAGS).mkdirs();
+		git = new GitRepository(dir, dotgit);
+		peeled = new HashMap<String, String>();
+	}
+
+	@Test
+	public void fullyPeeled() throws IOException {
+		packedRefs("# pack-refs with: peeled fully-peeled sorted \n"
+						  + C1 + " refs/heads/master\n"
+						  + T1 + " refs/tags/v1\n"
+						  + "^" + C1 + "\n"
+						  + C1 + " refs/tags/v1-light\n"
+						  + T2 + " refs/tags/v2\n"
+						  + "^" + C2 + "\n");
+		TagIndex index = index();
+		assertEquals(Arrays.asList("v1", "v1-light"), index.lookup(C1));
+		assertEquals(Collections.singletonList("v2"), index.lookup(C2));
+		assertEquals(3, index.size());
+	}
+
+	@Test
+	public void peeledTraitCoversTags() throws IOException {
+		// no "^" line: not annotated, must not be peeled (there is nothing to peel it with)
+		packedRefs("# pack-refs with: peeled sorted \n"
+						  + T1 + " refs/tags/v1\n"
+						  + "^" + C1 + "\n"
+						  + C2 + " refs/tags/v2\n");
+		TagIndex index = index();
+		assertEquals(Collections.singletonList("v1"), index.lookup(C1));
+		assertEquals(Collections.singletonList("v2"), index.lookup(C2));
+	}
+
+	@Test
+	public void noTraits() throws IOException {
+		// tags without "^" line may be annotated
+		packedRefs(T1 + " refs/tags/v1\n"
+						  + C2 + " refs/tags/v2\n"
+						  + T2 + " refs/tags/v3\n"
+						  + "^" + C2 + "\n");
+		peeled.put(T1, C1);
+		peeled.put(C2, C2);
+		TagIndex index = index();
+		assertEquals(Collections.singletonList("v1"), index.lookup(C1));
+		assertEquals(Arrays.asList("v2", "v3"), index.lookup(C2));
+	}
+
+	@Test
+	public void unknownTraitsArePeeled() throws IOException {
+		packedRefs("# pack-refs with: sorted \n"
+						  + C1 + " refs/tags/v1\n");
+		try {
+			index();
+			fail("Expected tag to be peeled");
+		} catch (IOException expected) {
+		}
+		peeled.put(C1, C1);
+		assertEquals(Collections.singletonList("v1"), index().lookup(C1));
+	}
+
+	@Test
+	public void crlfAndTrailingTagWithoutNewline() throws IOException {
+		packedRefs("# pack-refs with: peeled fully-peeled sorted \r\n"
+						  + T1 + " refs/tags/v1\r\n"
+						  + "^" + C1 + "\r\n"
+						  + C2 + " refs/tags/v2");
+		TagIndex index = index();
+		assertEquals(Collections.singletonList("v1"), index.lookup(C1));
+		assertEquals(Collections.singletonList("v2"), index.lookup(C2));
+	}
+
+	@Test
+	public void longLinesAndNestedNames() throws IOException {
+		String name = "release/" + new String(new char[300]).replace('\0', 'x');
+		packedRefs("# pack-refs with: peeled fully-peeled sorted \n"
+						  + C1 + " refs/tags/" + name + "\n");
+		assertEquals(Collections.singletonList(name), index().lookup(C1));
+	}
+
+	@Test
+	public void looseTagsOverridePackedOnes() throws IOException {
+		packedRefs("# pack-refs with: peeled fully-peeled sorted \n"
+						  + C1 + " refs/tags/v1\n"
+						  + C1 + " refs/tags/v2\n");
+		looseTag("v2", C2);
+		looseTag("release/v3", T2);
+		peeled.put(C2, C2);
+		peeled.put(T2, C2);
+		TagIndex index = index();
+		assertEquals(Collections.singletonList("v1"), index.lookup(C1));
+		assertEquals(Arrays.asList("release/v3", "v2"), index.lookup(C2));
+		assertEquals(Collections.<String>emptyList(), index.lookup(id('9')));
+	}
+
+	@Test
+	public void noPackedRefs() throws IOException {
+		looseTag("v1", C1);
+		peeled.put(C1, C1);
+		assertEquals(Collections.singletonList("v1"), index().lookup(C1));
+	}
+
+	@Test
+	public void cachedUntilChanged() throws IOException {
+		packedRefs("# pack-refs with: peeled fully-peeled sorted \n"
+						  + C1 + " refs/tags/v1\n");
+		TagIndex index = TagIndex.forRepository(git);
+		assertSame(index, TagIndex.forRepository(git));
+
+		packedRefs("# pack-refs with: peeled fully-peeled sorted \n"
+						  + C1 + " refs/tags/v1\n"
+						  + C2 + " refs/tags/v2\n");
+		TagIndex updated = TagIndex.forRepository(git);
+		assertNotSame(index, updated);
+		assertEquals(Collections.singletonList("v2"), updated.lookup(C2));
+	}
+
+	///
+
+	private TagIndex index() throws IOException {
+		return new TagIndex(git, new TagIndex.Stamp(git.getCommonDir()), peeled);
+	}
+
+	private void packedRefs(String content) throws IOException {
+		FileUtils.writeStringToFile(new File(git.getCommonDir(), "packed-refs"), content, "UTF-8");
+	}
+
+	private void looseTag(String name, String id) throws IOException {
+		FileUtils.writeStringToFile(new File(git.getCommonDir(), GitRepository.R_TAGS + name), id + "\n", "UTF-8");
+	}
+
+	static private String id(char c) {
+		return new String(new char[40]).replace('\0', c);
+	}
+}
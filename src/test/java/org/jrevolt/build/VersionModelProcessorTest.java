@@ -0,0 +1,118 @@
+package org.jrevolt.build;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.building.DefaultModelBuildingRequest;
+import org.apache.maven.model.building.ModelBuilder;
+import org.apache.maven.model.building.ModelBuildingRequest;
+import org.apache.maven.model.building.ModelProcessor;
+import org.apache.maven.plugin.LegacySupport;
+import org.codehaus.plexus.DefaultContainerConfiguration;
+import org.codehaus.plexus.DefaultPlexusContainer;
+import org.codehaus.plexus.PlexusConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link VersionModelProcessor} in a Plexus container set up from the test class path, where this project's classes
+ * precede Maven's own (as {@code maven.ext.class.path} and {@code lib/ext} do in {@code m2.conf}): it is the model
+ * processor Maven's {@link ModelBuilder} reads reactor POMs with, and injects versions of the current session only.
+ *
+ * @author <a href="mailto:patrikbeno@gmail.com">Patrik Beno</a>
+ * @version $Id$
+ */
+public class VersionModelProcessorTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	DefaultPlexusContainer container;
+	LegacySupport legacySupport;
+	File parent;
+	File child;
+
+	@Before
+	public void setup() throws Exception {
+		container = new DefaultPlexusContainer(
+				new DefaultContainerConfiguration().setClassPathScanning(PlexusConstants.SCANNING_INDEX));
+		legacySupport = container.lookup(LegacySupport.class);
+
+		File root = tmp.newFolder();
+		parent = new File(root, "pom.xml");
+		child = new File(root, "a/pom.xml");
+		FileUtils.writeStringToFile(parent, "<project>\n"
+				+ "\t<modelVersion>4.0.0</modelVersion>\n"
+				+ "\t<groupId>g</groupId><artifactId>parent</artifactId><version>local-SNAPSHOT</version>\n"
+				+ "\t<packaging>pom</packaging>\n"
+				+ "</project>\n", "UTF-8");
+		FileUtils.writeStringToFile(child, "<project>\n"
+				+ "\t<modelVersion>4.0.0</modelVersion>\n"
+				+ "\t<parent><groupId>g</groupId><artifactId>parent</artifactId><version>local-SNAPSHOT</version></parent>\n"
+				+ "\t<artifactId>a</artifactId>\n"
+				+ "</project>\n", "UTF-8");
+	}
+
+	@After
+	public void dispose() {
+		legacySupport.setSession(null);
+		container.dispose();
+	}
+
+	@Test
+	public void replacesDefaultModelProcessor() throws Exception {
+		ModelProcessor processor = container.lookup(ModelProcessor.class, "default");
+		assertTrue(processor.getClass().getName(), processor instanceof VersionModelProcessor);
+		assertSame(processor, container.lookup(ModelProcessor.class));
+	}
+
+	@Test
+	public void injectsVersionOfCurrentSession() throws Exception {
+		VersionModelProcessor processor = (VersionModelProcessor) container.lookup(ModelProcessor.class);
+		MavenSession session = newSession();
+		processor.install(session, new VersionModelProcessor.Injection(
+				WorkspaceRepositories.assign(Arrays.asList(parent, child), "1.0"), "local-SNAPSHOT"));
+
+		legacySupport.setSession(session);
+		Model model = build(child);
+		assertEquals("1.0", model.getVersion());
+		assertEquals("1.0", model.getParent().getVersion());
+		assertEquals("1.0", build(parent).getVersion());
+
+		// other session (e.g. another build in the same JVM) reads POMs as they are
+		legacySupport.setSession(newSession());
+		assertEquals("local-SNAPSHOT", build(child).getVersion());
+
+		processor.uninstall(session);
+		legacySupport.setSession(session);
+		assertEquals("local-SNAPSHOT", build(child).getVersion());
+	}
+
+	///
+
+	private MavenSession newSession() {
+		return new MavenSession(container, null, new DefaultMavenExecutionRequest(), new DefaultMavenExecutionResult());
+	}
+
+	private Model build(File pom) throws Exception {
+		ModelBuildingRequest request = new DefaultModelBuildingRequest()
+				.setPomFile(pom)
+				.setValidationLevel(ModelBuildingRequest.VALIDATION_LEVEL_MINIMAL)
+				.setProcessPlugins(false)
+				.setSystemProperties(System.getProperties());
+		return container.lookup(ModelBuilder.class).build(request).getEffectiveModel();
+	}
+}